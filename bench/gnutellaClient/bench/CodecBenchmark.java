@@ -0,0 +1,67 @@
+package gnutellaClient.bench;
+
+import gnutellaClient.Message;
+import gnutellaClient.MessageHandler;
+import gnutellaClient.Metrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the descriptor codec: MessageHandler.getMessage and
+ * Message.toByteArray of every descriptor type.
+ *
+ * <pre>
+ * gradle jmh -Pjmh="CodecBenchmark"
+ * </pre>
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CodecBenchmark {
+	@Param({ "ping", "pong", "query", "queryHit" })
+	public String type;
+
+	private Message message;
+	private byte[] bytes;
+	private MessageHandler handler;
+
+	@Setup
+	public void setup() throws IOException {
+		message = new Samples().message(type);
+		bytes = message.toByteArray();
+		handler = new MessageHandler(Samples.NODE, new Metrics());
+	}
+
+	@Benchmark
+	public Message decode() {
+		return handler.getMessage(new DataInputStream(new ByteArrayInputStream(
+				bytes)));
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return message.toByteArray();
+	}
+}
@@ -0,0 +1,90 @@
+package gnutellaClient.bench;
+
+import gnutellaClient.Message;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the lookups in the history of descriptors that decides if a
+ * descriptor was already seen. The history is shared by the threads, run
+ * with -t 4 to measure it under contention.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HistoryBenchmark {
+	private static final int HISTORY_SIZE = 100000;
+
+	/**
+	 * Position of each thread in the ids
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		private int i;
+
+		private int next() {
+			i = (i + 1) % HISTORY_SIZE;
+			return i;
+		}
+	}
+
+	private ConcurrentHashMap<String, InetSocketAddress> history;
+	private String[] present;
+	private String[] absent;
+	private Message[] incoming;
+
+	@Setup
+	public void setup() {
+		Samples samples = new Samples();
+		history = new ConcurrentHashMap<String, InetSocketAddress>();
+		present = new String[HISTORY_SIZE];
+		absent = new String[HISTORY_SIZE];
+		incoming = new Message[HISTORY_SIZE];
+		for (int i = 0; i < HISTORY_SIZE; i++) {
+			present[i] = samples.ping().idMessageToString();
+			absent[i] = samples.ping().idMessageToString();
+			history.put(present[i], Samples.NODE);
+		}
+		for (int i = 0; i < HISTORY_SIZE; i++) {
+			incoming[i] = samples.ping();
+		}
+	}
+
+	@Benchmark
+	public boolean hit(Cursor c) {
+		return history.containsKey(present[c.next()]);
+	}
+
+	@Benchmark
+	public boolean miss(Cursor c) {
+		return history.containsKey(absent[c.next()]);
+	}
+
+	/**
+	 * Includes the cost of turning the id into the key
+	 */
+	@Benchmark
+	public boolean keyAndLookup(Cursor c) {
+		return history.containsKey(incoming[c.next()].idMessageToString());
+	}
+}
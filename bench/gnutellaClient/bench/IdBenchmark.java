@@ -0,0 +1,54 @@
+package gnutellaClient.bench;
+
+import gnutellaClient.IdGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of IdGenerator.getIdMessage on one thread and under contention.
+ * Other numbers of threads are measured with the -t option of JMH.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IdBenchmark {
+
+	@Benchmark
+	@Threads(1)
+	public byte[] oneThread() {
+		return IdGenerator.getIdMessage();
+	}
+
+	@Benchmark
+	@Threads(2)
+	public byte[] twoThreads() {
+		return IdGenerator.getIdMessage();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public byte[] fourThreads() {
+		return IdGenerator.getIdMessage();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public byte[] eightThreads() {
+		return IdGenerator.getIdMessage();
+	}
+}
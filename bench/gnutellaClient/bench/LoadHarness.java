@@ -0,0 +1,420 @@
+package gnutellaClient.bench;
+
+import gnutellaClient.GnutellaConstants;
+import gnutellaClient.LatencyHistogram;
+import gnutellaClient.Metrics;
+import gnutellaClient.QueryHitMessage;
+import gnutellaClient.QueryTracer;
+import gnutellaClient.Servent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Load harness that boots several Servents on loopback ports in this virtual
+ * machine, connects them in a topology, shares generated files on each of
+ * them and drives a workload of pings, queries and downloads. At the end it
+ * reports descriptors per second, the latency from a query to its first hit,
+ * the ratio of duplicated descriptors and the CPU used by the threads of every
+ * node.
+ *
+ * <pre>
+ * gradle loadHarness -Pargs="nodes=10 topology=ring degree=4 files=100
+ *     pings=20 queries=50 downloads=5 basePort=20000 capture=traffic.bin
+ *     threads=platform leaves=0"
+ * </pre>
+ *
+ * The topology is one of ring, star or regular (random graph where every node
+ * has the given degree). If a capture file is given, the descriptors received
+ * by the first node are recorded in it. The connections run on platform
+ * threads or, with threads=virtual and Java 21, on virtual threads. With
+ * leaves=n the last n nodes are leaves: the topology joins the ultrapeers and
+ * every leaf connects to GnutellaConstants.LEAF_DEGREE random ultrapeers.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class LoadHarness {
+	private static final long SEED = 42;
+	private static final String[] WORDS = { "free", "software", "song",
+			"live", "remix", "album", "video", "track", "demo", "mix" };
+	private static final long HIT_TIMEOUT = 3000;
+	private static final long DOWNLOAD_TIMEOUT = 5000;
+
+	private HashMap<String, String> options;
+	private Random random;
+	private InetAddress loopback;
+	private ArrayList<Servent> nodes;
+	private ArrayList<File> directories;
+	private ArrayList<Long> firstHitLatencies;
+	private int unanswered;
+	private int downloadsCompleted;
+	private int downloadsRequested;
+
+	public LoadHarness(HashMap<String, String> options) {
+		this.options = options;
+		random = new Random(SEED);
+		loopback = InetAddress.getLoopbackAddress();
+		nodes = new ArrayList<Servent>();
+		directories = new ArrayList<File>();
+		firstHitLatencies = new ArrayList<Long>();
+	}
+
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> options = new HashMap<String, String>();
+		options.put("nodes", "10");
+		options.put("topology", "ring");
+		options.put("degree", "4");
+		options.put("files", "100");
+		options.put("pings", "20");
+		options.put("queries", "50");
+		options.put("downloads", "5");
+		options.put("basePort", "20000");
+		options.put("capture", "");
+		options.put("threads", "platform");
+		options.put("leaves", "0");
+		for (String arg : args) {
+			String[] kv = arg.split("=", 2);
+			if (kv.length != 2 || !options.containsKey(kv[0])) {
+				System.err.println("[ERROR] UNKNOWN OPTION " + arg
+						+ ", OPTIONS: " + options.keySet());
+				System.exit(1);
+			}
+			options.put(kv[0], kv[1]);
+		}
+		LoadHarness harness = new LoadHarness(options);
+		try {
+			harness.boot();
+			harness.connect();
+			long begin = System.nanoTime();
+			harness.workload();
+			long elapsed = System.nanoTime() - begin;
+			harness.report(elapsed);
+		} finally {
+			harness.shutdown();
+		}
+		System.exit(0);
+	}
+
+	private int threadsMode() {
+		return options.get("threads").equals("virtual") ? GnutellaConstants.VIRTUAL_THREADS
+				: GnutellaConstants.PLATFORM_THREADS;
+	}
+
+	private int option(String name) {
+		return Integer.parseInt(options.get(name));
+	}
+
+	/**
+	 * Creates the Servents, each one with its own directory of generated
+	 * files
+	 */
+	public void boot() throws IOException {
+		int n = option("nodes");
+		int basePort = option("basePort");
+		for (int i = 0; i < n; i++) {
+			File dir = new File(System.getProperty("java.io.tmpdir"),
+					"gnutella-load-" + basePort + "-" + i);
+			populate(dir, i, option("files"));
+			directories.add(dir);
+			nodes.add(new Servent(dir.getPath(), (short) (basePort + i),
+					loopback, threadsMode(), i < n - option("leaves")));
+		}
+		if (!options.get("capture").isEmpty()) {
+			nodes.get(0).startCapture(new File(options.get("capture")));
+		}
+		System.out.println("BOOTED " + n + " NODES ON PORTS " + basePort
+				+ "-" + (basePort + n - 1));
+	}
+
+	private void populate(File dir, int node, int files) throws IOException {
+		dir.mkdirs();
+		File[] old = dir.listFiles();
+		if (old != null) {
+			for (File f : old) {
+				f.delete();
+			}
+		}
+		byte[] content = new byte[1024];
+		for (int i = 0; i < files; i++) {
+			String name = WORDS[random.nextInt(WORDS.length)] + "_"
+					+ WORDS[random.nextInt(WORDS.length)] + "_" + node + "_"
+					+ i + ".dat";
+			random.nextBytes(content);
+			FileOutputStream fos = new FileOutputStream(new File(dir, name));
+			fos.write(content, 0, 1 + random.nextInt(content.length));
+			fos.close();
+		}
+	}
+
+	/**
+	 * Connects the Servents following the chosen topology
+	 */
+	public void connect() throws InterruptedException {
+		String topology = options.get("topology");
+		List<int[]> edges = new ArrayList<int[]>();
+		int leaves = option("leaves");
+		int n = nodes.size() - leaves;
+		if (topology.equals("ring")) {
+			for (int i = 0; i < n && n > 1; i++) {
+				edges.add(new int[] { i, (i + 1) % n });
+			}
+		} else if (topology.equals("star")) {
+			for (int i = 1; i < n; i++) {
+				edges.add(new int[] { i, 0 });
+			}
+		} else if (topology.equals("regular")) {
+			edges = regularGraph(n, option("degree"));
+		} else {
+			throw new IllegalArgumentException("UNKNOWN TOPOLOGY " + topology);
+		}
+		for (int i = n; i < n + leaves; i++) {
+			ArrayList<Integer> ultrapeers = new ArrayList<Integer>();
+			for (int j = 0; j < n; j++) {
+				ultrapeers.add(j);
+			}
+			Collections.shuffle(ultrapeers, random);
+			for (int j = 0; j < GnutellaConstants.LEAF_DEGREE && j < n; j++) {
+				edges.add(new int[] { i, ultrapeers.get(j) });
+			}
+		}
+		int connected = 0;
+		for (int[] e : edges) {
+			if (nodes.get(e[0]).connect(loopback.getHostAddress(),
+					nodes.get(e[1]).getMyPort())) {
+				connected++;
+			}
+		}
+		Thread.sleep(500);
+		System.out.println("CONNECTED " + connected + " OF " + edges.size()
+				+ " EDGES (" + topology + ")");
+	}
+
+	/**
+	 * Builds a random graph in which every node has the given degree pairing
+	 * stubs at random, retrying when the pairing has loops or repeated edges
+	 */
+	private List<int[]> regularGraph(int n, int degree) {
+		for (int attempt = 0; attempt < 1000; attempt++) {
+			ArrayList<Integer> stubs = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < degree; j++) {
+					stubs.add(i);
+				}
+			}
+			Collections.shuffle(stubs, random);
+			List<int[]> edges = new ArrayList<int[]>();
+			HashSet<Long> seen = new HashSet<Long>();
+			boolean valid = stubs.size() % 2 == 0;
+			for (int i = 0; valid && i + 1 < stubs.size(); i += 2) {
+				int a = stubs.get(i);
+				int b = stubs.get(i + 1);
+				long key = (long) Math.min(a, b) * n + Math.max(a, b);
+				valid = a != b && seen.add(key);
+				edges.add(new int[] { a, b });
+			}
+			if (valid) {
+				return edges;
+			}
+		}
+		throw new IllegalArgumentException("CAN NOT BUILD A " + degree
+				+ "-REGULAR GRAPH WITH " + n + " NODES");
+	}
+
+	/**
+	 * Sends the pings, then the queries measuring the time to the first hit,
+	 * then downloads files from the hits
+	 */
+	public void workload() throws InterruptedException {
+		int n = nodes.size();
+		for (int i = 0; i < option("pings"); i++) {
+			nodes.get(random.nextInt(n)).makePing();
+		}
+		ArrayList<QueryHitMessage> results = new ArrayList<QueryHitMessage>();
+		ArrayList<Integer> owners = new ArrayList<Integer>();
+		for (int i = 0; i < option("queries"); i++) {
+			int issuer = random.nextInt(n);
+			Servent s = nodes.get(issuer);
+			ArrayList<QueryHitMessage> hits = s.getQueryHitMessage();
+			int before = hits.size();
+			long start = System.nanoTime();
+			s.makeQuery(WORDS[random.nextInt(WORDS.length)]);
+			long deadline = start + HIT_TIMEOUT * 1000000L;
+			while (hits.size() == before && System.nanoTime() < deadline) {
+				Thread.sleep(1);
+			}
+			if (hits.size() > before) {
+				firstHitLatencies.add(System.nanoTime() - start);
+				results.add(hits.get(before));
+				owners.add(issuer);
+			} else {
+				unanswered++;
+			}
+		}
+		for (int i = 0; i < option("downloads") && i < results.size(); i++) {
+			download(owners.get(i), results.get(i));
+		}
+	}
+
+	private void download(int node, QueryHitMessage hit)
+			throws InterruptedException {
+		String name = hit.getFileName()[0].trim();
+		long size = hit.getFileSize()[0];
+		File target = new File(directories.get(node), name);
+		downloadsRequested++;
+		nodes.get(node).makeDownload(loopback.getHostAddress(),
+				hit.getPort(), name, size);
+		long deadline = System.currentTimeMillis() + DOWNLOAD_TIMEOUT;
+		while (System.currentTimeMillis() < deadline) {
+			if (target.length() > 0) {
+				downloadsCompleted++;
+				return;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Prints the results of the workload
+	 */
+	public void report(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		long received = 0;
+		long duplicated = 0;
+		long bytes = 0;
+		long bytesOut = 0;
+		long wireOut = 0;
+		long cacheHits = 0;
+		long cacheMisses = 0;
+		for (Servent s : nodes) {
+			Metrics m = s.getMetrics();
+			for (long r : m.getReceived()) {
+				received += r;
+			}
+			for (long d : m.getDuplicated()) {
+				duplicated += d;
+			}
+			bytes += m.getBytesIn();
+			bytesOut += m.getBytesOut();
+			wireOut += m.getWireBytesOut();
+			cacheHits += m.getQueryCacheHits();
+			cacheMisses += m.getQueryCacheMisses();
+		}
+		System.out.println();
+		System.out.println(String.format("ELAPSED              %10.2f s",
+				seconds));
+		System.out.println(String.format("DESCRIPTORS/SEC      %10.1f",
+				received / seconds));
+		System.out.println(String.format("BYTES IN/SEC         %10.1f",
+				bytes / seconds));
+		System.out.println(String.format("WIRE BYTES OUT/SEC   %10.1f",
+				wireOut / seconds));
+		System.out.println(String.format("WIRE/DESCRIPTOR BYTES %9.3f",
+				bytesOut == 0 ? 0 : (double) wireOut / bytesOut));
+		System.out.println(String.format("QUERY CACHE HIT RATIO %9.3f",
+				cacheHits + cacheMisses == 0 ? 0 : (double) cacheHits
+						/ (cacheHits + cacheMisses)));
+		System.out.println(String.format("DUPLICATE RATIO      %10.3f",
+				received == 0 ? 0 : (double) duplicated / received));
+		System.out.println(String.format("QUERIES ANSWERED     %6d / %d",
+				firstHitLatencies.size(), firstHitLatencies.size()
+						+ unanswered));
+		if (!firstHitLatencies.isEmpty()) {
+			Collections.sort(firstHitLatencies);
+			System.out.println(String.format(
+					"FIRST HIT ms p50 %.2f p90 %.2f p99 %.2f max %.2f",
+					percentile(50), percentile(90), percentile(99),
+					percentile(100)));
+		}
+		long[] hops = new long[GnutellaConstants.MAX_TTL + 1];
+		LatencyHistogram lastHit = new LatencyHistogram();
+		for (Servent s : nodes) {
+			QueryTracer tracer = s.getQueryTracer();
+			long[] h = tracer.getHitsByHop();
+			for (int i = 0; i < hops.length; i++) {
+				hops[i] += h[i];
+			}
+			for (QueryTracer.Trace t : tracer.getTraces()) {
+				if (t.getTimeToLastHit() >= 0) {
+					lastHit.record(t.getTimeToLastHit());
+				}
+			}
+		}
+		if (lastHit.getCount() > 0) {
+			System.out.println(String.format(
+					"LAST HIT us p50 <%d p90 <%d p99 <%d",
+					lastHit.getPercentileMicros(50),
+					lastHit.getPercentileMicros(90),
+					lastHit.getPercentileMicros(99)));
+		}
+		System.out.println("HITS BY HOP          " + Arrays.toString(hops));
+		System.out.println(String.format("DOWNLOADS COMPLETED  %6d / %d",
+				downloadsCompleted, downloadsRequested));
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		HashMap<String, Long> cpu = new HashMap<String, Long>();
+		for (long id : threads.getAllThreadIds()) {
+			ThreadInfo info = threads.getThreadInfo(id);
+			long time = threads.getThreadCpuTime(id);
+			if (info == null || time < 0) {
+				continue;
+			}
+			// Los hilos de cada nodo terminan con su puerto
+			String name = info.getThreadName();
+			String port = name.substring(name.lastIndexOf('-') + 1);
+			Long acc = cpu.get(port);
+			cpu.put(port, (acc == null ? 0 : acc) + time);
+		}
+		System.out.println("\nNODE   PORT   CPU ms   RECEIVED   NEIGHBORS ROLE");
+		for (int i = 0; i < nodes.size(); i++) {
+			Servent s = nodes.get(i);
+			Long time = cpu.get(s.getMyPort() + "");
+			long nodeReceived = 0;
+			for (long r : s.getMetrics().getReceived()) {
+				nodeReceived += r;
+			}
+			System.out.println(String.format("%4d %6d %8d %10d %11d %s", i,
+					s.getMyPort(), time == null ? 0 : time / 1000000,
+					nodeReceived, s.getMetrics().getMessagesToSend().length,
+					s.getUltrapeer() ? "ULTRAPEER" : "LEAF"));
+		}
+		System.out.println(String.format("\nLIVE THREADS %d (%s THREADS)",
+				threads.getThreadCount(),
+				nodes.get(0).getExecutionMode() == GnutellaConstants.VIRTUAL_THREADS ? "VIRTUAL"
+						: "PLATFORM"));
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		long heap = memory.getHeapMemoryUsage().getUsed();
+		System.out.println(String.format(
+				"\nHEAP USED %.1f MB (%.1f MB PER NODE, SHARED JVM)",
+				heap / 1048576.0, heap / 1048576.0 / nodes.size()));
+	}
+
+	private double percentile(double p) {
+		int idx = (int) Math.ceil(firstHitLatencies.size() * p / 100.0) - 1;
+		idx = Math.max(0, Math.min(idx, firstHitLatencies.size() - 1));
+		return firstHitLatencies.get(idx) / 1e6;
+	}
+
+	/**
+	 * Stops every Servent
+	 */
+	public void shutdown() {
+		for (Servent s : nodes) {
+			s.shutdown();
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package gnutellaClient.bench;
+
+import gnutellaClient.GnutellaConstants;
+import gnutellaClient.IdGenerator;
+import gnutellaClient.Message;
+import gnutellaClient.PingMessage;
+import gnutellaClient.PongMessage;
+import gnutellaClient.QueryHitMessage;
+import gnutellaClient.QueryMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+
+/**
+ * Descriptors and directories used by the benchmarks. Everything is generated
+ * from a fixed seed so the results of two runs can be compared.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+class Samples {
+	static final long SEED = 42;
+	static final InetSocketAddress NODE = new InetSocketAddress(
+			InetAddress.getLoopbackAddress(), 6346);
+
+	private Random ids;
+
+	Samples() {
+		ids = new Random(SEED);
+	}
+
+	byte[] id() {
+		byte[] id = new byte[GnutellaConstants.ID_LENGTH];
+		ids.nextBytes(id);
+		// Primer byte positivo y distinto de cero, el id ocupa los 16 bytes
+		id[0] = (byte) (1 + (id[0] & 0x3F));
+		return id;
+	}
+
+	PingMessage ping() {
+		return new PingMessage(id(), GnutellaConstants.DEFAULT_TTL, (byte) 0,
+				NODE);
+	}
+
+	PongMessage pong() throws IOException {
+		return new PongMessage(id(), GnutellaConstants.DEFAULT_TTL, (byte) 0,
+				NODE, (short) 6346, InetAddress.getByName("10.1.2.3"), 120, 4096);
+	}
+
+	QueryMessage query() {
+		String criteria = "free software song";
+		return new QueryMessage(id(), GnutellaConstants.DEFAULT_TTL, (byte) 0,
+				2 + criteria.length(), NODE, (short) 0, criteria);
+	}
+
+	QueryHitMessage queryHit() throws IOException {
+		int hits = 5;
+		int[] index = new int[hits];
+		long[] size = new long[hits];
+		String[] name = new String[hits];
+		for (int i = 0; i < hits; i++) {
+			index[i] = i + 1;
+			size[i] = 1000000 + i;
+			name[i] = "free software song " + i + ".mp3";
+		}
+		return new QueryHitMessage(id(), GnutellaConstants.DEFAULT_TTL,
+				(byte) 0, 0, NODE, (byte) hits, (short) 6346,
+				InetAddress.getByName("10.1.2.3"),
+				GnutellaConstants.DFLT_SPEED, index, size, name,
+				IdGenerator.getIdServent());
+	}
+
+	/**
+	 * Returns a descriptor of the given type
+	 *
+	 * @param type
+	 *            ping, pong, query or queryHit
+	 * @return the descriptor
+	 */
+	Message message(String type) throws IOException {
+		if (type.equals("ping")) {
+			return ping();
+		} else if (type.equals("pong")) {
+			return pong();
+		} else if (type.equals("query")) {
+			return query();
+		} else if (type.equals("queryHit")) {
+			return queryHit();
+		}
+		throw new IllegalArgumentException(type);
+	}
+
+	/**
+	 * Creates, or reuses if it already exists, a directory with the given
+	 * number of empty files with generated names
+	 */
+	static File syntheticDirectory(int size) throws IOException {
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"gnutella-bench-" + size);
+		String[] existing = dir.list();
+		if (existing != null && existing.length == size) {
+			return dir;
+		}
+		dir.mkdirs();
+		Random r = new Random(SEED);
+		String[] words = { "free", "software", "song", "live", "remix",
+				"album", "video", "track", "demo", "mix" };
+		for (int i = 0; i < size; i++) {
+			String fileName = words[r.nextInt(words.length)] + " "
+					+ words[r.nextInt(words.length)] + " " + i + ".mp3";
+			new File(dir, fileName).createNewFile();
+		}
+		return dir;
+	}
+}
@@ -0,0 +1,70 @@
+package gnutellaClient.bench;
+
+import gnutellaClient.Client;
+import gnutellaClient.IdGenerator;
+import gnutellaClient.InboundScheduler;
+import gnutellaClient.Metrics;
+import gnutellaClient.NeighborRegistry;
+import gnutellaClient.QueryHitMessage;
+import gnutellaClient.ServentThread;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of Client.searchFile over generated directories. The directories
+ * are kept in the temporary directory and reused by later runs, larger ones
+ * are measured with -p size=1000000.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SearchBenchmark {
+	@Param({ "1000", "10000", "100000" })
+	public int size;
+
+	private Client client;
+
+	@Setup
+	public void setup() throws IOException {
+		Metrics metrics = new Metrics();
+		client = new Client((short) 6346, new NeighborRegistry(),
+				new ConcurrentHashMap<String, InetSocketAddress>(),
+				new ConcurrentHashMap<String, InetSocketAddress>(),
+				new InboundScheduler(metrics),
+				InetAddress.getLoopbackAddress(), new IdGenerator(),
+				Samples.syntheticDirectory(size), IdGenerator.getIdServent(),
+				new ConcurrentHashMap<InetSocketAddress, ServentThread>(),
+				new ArrayList<QueryHitMessage>(), metrics, null, null,
+				new ConcurrentHashMap<InetSocketAddress, Long>(), null, null,
+				true);
+	}
+
+	@Benchmark
+	public byte searchFile() {
+		return client.searchFile("song 7");
+	}
+}
@@ -0,0 +1,232 @@
+package gnutellaClient.bench;
+
+import gnutellaClient.Client;
+import gnutellaClient.GnutellaConstants;
+import gnutellaClient.HashedWheelTimer;
+import gnutellaClient.IdGenerator;
+import gnutellaClient.InboundDispatcher;
+import gnutellaClient.InboundScheduler;
+import gnutellaClient.Metrics;
+import gnutellaClient.NeighborRegistry;
+import gnutellaClient.QueryHitMessage;
+import gnutellaClient.ServentThread;
+import gnutellaClient.TrafficCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Feeds a traffic capture into the receive path of a Client without sockets.
+ * Every neighbor found in the capture is replaced by a connection that
+ * discards what is sent to it, and its descriptors are handed to
+ * ServentThread.receive, so they are decoded, policed by the FloodPolicer,
+ * pass through the InboundDispatcher and are routed by Client.run exactly as
+ * if they came from the network.
+ *
+ * <pre>
+ * java -cp out gnutellaClient.bench.TrafficReplay capture.bin [fast|recorded] [loops] [shared directory]
+ * </pre>
+ *
+ * In fast mode the records are replayed as fast as the node accepts them: a
+ * record waits while the queue of its neighbor is full instead of pushing out
+ * the oldest descriptor, but the FloodPolicer still drops what exceeds the
+ * rate of the neighbor. In recorded mode the time between records is
+ * respected. The records of a neighbor disconnected for flooding are skipped
+ * and reported.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class TrafficReplay {
+	private ArrayList<TrafficCapture.Record> records;
+	private Metrics metrics;
+	private InboundScheduler pendingMessages;
+	private ConcurrentHashMap<String, InetSocketAddress> historyPing;
+	private ConcurrentHashMap<String, InetSocketAddress> historyQuery;
+	private NeighborRegistry neighbors;
+	private InboundDispatcher dispatcher;
+	private HashedWheelTimer timer;
+	private Client client;
+	private volatile boolean draining;
+
+	public TrafficReplay(File capture, File directory) throws IOException {
+		records = new ArrayList<TrafficCapture.Record>();
+		TrafficCapture.Reader reader = new TrafficCapture.Reader(capture);
+		TrafficCapture.Record r;
+		while ((r = reader.next()) != null) {
+			records.add(r);
+		}
+		reader.close();
+
+		metrics = new Metrics();
+		pendingMessages = new InboundScheduler(metrics);
+		historyPing = new ConcurrentHashMap<String, InetSocketAddress>();
+		historyQuery = new ConcurrentHashMap<String, InetSocketAddress>();
+		neighbors = new NeighborRegistry();
+		metrics.watch(pendingMessages, neighbors);
+		timer = new HashedWheelTimer("Timer-replay");
+		dispatcher = new InboundDispatcher(historyPing, historyQuery,
+				pendingMessages, metrics, timer);
+		for (TrafficCapture.Record record : records) {
+			InetSocketAddress from = record.getFrom();
+			if (neighbors.get(from) == null) {
+				neighbors.add(from, new ServentThread(new Socket(), dispatcher,
+						from, directory, metrics, null, timer));
+			}
+		}
+		client = new Client((short) 6346, neighbors, historyPing,
+				historyQuery, pendingMessages,
+				InetAddress.getLoopbackAddress(), new IdGenerator(), directory,
+				IdGenerator.getIdServent(),
+				new ConcurrentHashMap<InetSocketAddress, ServentThread>(),
+				new ArrayList<QueryHitMessage>(), metrics, dispatcher, null,
+				new ConcurrentHashMap<InetSocketAddress, Long>(), timer, null,
+				true);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("[ERROR] USE: java "
+					+ "gnutellaClient.bench.TrafficReplay [capture file] "
+					+ "[fast|recorded] [loops] [shared directory]");
+			System.exit(1);
+		}
+		boolean recorded = args.length > 1 && args[1].equals("recorded");
+		int loops = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		File directory = new File(args.length > 3 ? args[3]
+				: System.getProperty("java.io.tmpdir"));
+		TrafficReplay replay = new TrafficReplay(new File(args[0]), directory);
+		replay.replay(recorded, loops);
+		System.exit(0);
+	}
+
+	/**
+	 * Replays the capture the given number of times and prints the results
+	 *
+	 * @param recorded
+	 *            true to respect the time between records
+	 * @param loops
+	 *            number of times the capture is replayed
+	 */
+	public void replay(boolean recorded, int loops) throws InterruptedException {
+		System.out.println("REPLAYING " + records.size() + " RECORDS FROM "
+				+ neighbors.size() + " NEIGHBORS, " + loops + " TIME(S)");
+		Thread router = new Thread(client, "Client-replay");
+		router.start();
+		Thread drain = startDrain();
+
+		long begin = System.nanoTime();
+		long fed = 0;
+		long skipped = 0;
+		for (int loop = 0; loop < loops; loop++) {
+			// Cada vuelta es trafico nuevo para el historial, se limpia cuando
+			// el Client termino con la vuelta anterior
+			awaitRouted();
+			historyPing.clear();
+			historyQuery.clear();
+			long loopStart = System.nanoTime();
+			long first = records.isEmpty() ? 0 : records.get(0).getTime();
+			for (TrafficCapture.Record r : records) {
+				if (recorded) {
+					long wait = loopStart + (r.getTime() - first)
+							- System.nanoTime();
+					if (wait > 0) {
+						Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+					}
+				}
+				ServentThread sT = neighbors.get(r.getFrom());
+				if (sT == null) {
+					// Vecino desconectado por inundar
+					skipped++;
+					continue;
+				}
+				if (!recorded) {
+					// Se espera al Client en vez de descartar los mas viejos
+					while (pendingMessages.size(r.getFrom()) >= GnutellaConstants.INBOUND_QUEUE_CAPACITY) {
+						Thread.yield();
+					}
+				}
+				sT.receive(r.getDescriptor());
+				fed++;
+			}
+		}
+		long fedAt = System.nanoTime();
+		awaitRouted();
+		long end = System.nanoTime();
+		client.close();
+		draining = false;
+		router.join();
+		drain.join();
+
+		System.out.println(String.format(
+				"FED       %10d descriptors in %.3f s (%.1f/s)", fed,
+				(fedAt - begin) / 1e9, fed * 1e9 / (fedAt - begin)));
+		System.out.println(String.format(
+				"ROUTED    %10d descriptors in %.3f s (%.1f/s)",
+				metrics.getRoutingCount(), (end - begin) / 1e9,
+				metrics.getRoutingCount() * 1e9 / (end - begin)));
+		System.out.println(String.format(
+				"SKIPPED   %10d descriptors of %d neighbor(s) disconnected "
+						+ "for flooding", skipped,
+				metrics.getFloodDisconnects()));
+		System.out.println("TYPES      "
+				+ Arrays.toString(metrics.getPayloadTypes()));
+		System.out.println("RECEIVED   "
+				+ Arrays.toString(metrics.getReceived()));
+		System.out.println("DUPLICATED "
+				+ Arrays.toString(metrics.getDuplicated()));
+		System.out.println("FORWARDED  "
+				+ Arrays.toString(metrics.getForwarded()));
+		System.out.println("DROPPED    "
+				+ Arrays.toString(metrics.getDropped()));
+		System.out.println("POLICED    "
+				+ Arrays.toString(metrics.getPoliced()));
+		System.out.println("TTL CLAMPED " + metrics.getTtlClamped());
+		System.out.println(String.format(
+				"DECODE  us mean %.2f p50 %d p99 %d",
+				metrics.getDecodeMeanMicros(), metrics.getDecodeP50Micros(),
+				metrics.getDecodeP99Micros()));
+		System.out.println(String.format(
+				"ROUTING us mean %.2f p50 %d p99 %d",
+				metrics.getRoutingMeanMicros(), metrics.getRoutingP50Micros(),
+				metrics.getRoutingP99Micros()));
+	}
+
+	private void awaitRouted() throws InterruptedException {
+		while (!pendingMessages.isEmpty()) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Starts a thread that discards the messages routed to the neighbors
+	 */
+	private Thread startDrain() {
+		draining = true;
+		Thread drain = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (draining) {
+					boolean idle = true;
+					for (ServentThread sT : neighbors.getSnapshot()) {
+						while (sT.nextMessageToSend() != null) {
+							idle = false;
+						}
+					}
+					if (idle) {
+						Thread.yield();
+					}
+				}
+			}
+		}, "Drain-replay");
+		drain.start();
+		return drain;
+	}
+}
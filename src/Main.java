@@ -97,7 +97,7 @@ public class Main {
 						System.out.println("FILE NAME:");
 						String nameD = keyboard.next();
 						System.out.println("SIZE: ");
-						int sizeD = keyboard.nextInt();
+						long sizeD = keyboard.nextLong();
 						peer.makeDownload(ipD, portD, nameD, sizeD);
 					case 6:
 						if (!peer.getQueryHitMessage().isEmpty()) {
@@ -131,7 +131,7 @@ public class Main {
 
 								peer.makeDownload(tmpQ.getMyIpAddress()
 										.getHostAddress(), tmpQ.getPort(), tmpQ
-										.getFileName()[j], 0);
+										.getFileName()[j], tmpQ.getFileSize()[j]);
 							}
 
 							peer.getQueryHitMessage().removeAll(
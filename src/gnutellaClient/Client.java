@@ -7,22 +7,30 @@ import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.Enumeration;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
-public class Client implements Runnable {
+public class Client implements Runnable, UdpEndpoint.Handler {
 	private short localPort;
-	private boolean working;
-	private ConcurrentHashMap<InetSocketAddress, ServentThread> neighbors;
+	private volatile boolean working;
+	private NeighborRegistry neighbors;
 	private ConcurrentHashMap<InetSocketAddress, ServentThread> downloads;
 
 	private ConcurrentHashMap<String, InetSocketAddress> historyPing;
 	private ConcurrentHashMap<String, InetSocketAddress> historyQuery;
-	private ConcurrentHashMap<String, ArrayList<InetSocketAddress>> firstPongsFromNeighbors;
-	private ConcurrentLinkedQueue<Message> pendingMessages;
+	private ConcurrentHashMap<InetSocketAddress, Long> hostCache;
+	private HashedWheelTimer timer;
+	private QueryHitCache queryHitCache;
+	private HashingService hashes;
+	private boolean ultrapeer;
+	private volatile int routeTableHash;
+	private volatile long routeTableGeneration;
+	private InboundScheduler pendingMessages;
 	private ArrayList<QueryHitMessage> queryHitMessage;
 	private InetSocketAddress myInetSocketAddress;
 	private InetAddress ipAddress;
@@ -30,7 +38,15 @@ public class Client implements Runnable {
 	private int numberKbShared;
 	private File myDirectory;
 	private byte[] idServent;
-	private int maxNodes;
+	private Metrics metrics;
+	private InboundDispatcher dispatcher;
+	private ConnectionExecutor executor;
+	private UdpEndpoint udp;
+	private QueryTracer tracer;
+	private ServentThread.Listener downloadsListener;
+	// Solo los usa el hilo que enruta
+	private RoutingEvent routing;
+	private Message routed;
 
 	/**
 	 * Creates a Client who manage sending/receiving Messages of the Gnutella
@@ -40,9 +56,9 @@ public class Client implements Runnable {
 	 *            * @param localPort Port in which the servent owner of this
 	 *            client works
 	 * @param neighbors
-	 *            HashMap that contains the connections to its neighbors nodes.
-	 *            Keys are in format InetSocketAddress, those InetSocketAddress
-	 *            are bound with each connection(ServentThread).
+	 *            Registry of the connections to its neighbors nodes. Keys are
+	 *            in format InetSocketAddress, those InetSocketAddress are bound
+	 *            with each connection(ServentThread).
 	 * @param historyPing
 	 *            HashMap that contains de history of every PingMessage received
 	 *            from a neighbor Servent and every PingMessage generated by the
@@ -52,7 +68,7 @@ public class Client implements Runnable {
 	 *            received from a neighbor Servent and every QueryMessage
 	 *            generated by the Servent that owns this Server
 	 * @param pendingMessages
-	 *            Queue which contains every message that needs to be process by
+	 *            Queues of each neighbor which contain every message that needs to be process by
 	 *            the Servent that owns this Server
 	 * @param ipAddress
 	 *            the ip address bound to this client
@@ -73,16 +89,39 @@ public class Client implements Runnable {
 	 * @param queryHitMessage
 	 *            IO error when opening the socket in which this Server listens
 	 *            for upcoming connections
+	 * @param metrics
+	 *            Metrics of the Servent that owns this Client
+	 * @param dispatcher
+	 *            Receive path of the Servent that owns this Client, shared by
+	 *            every connection
+	 * @param executor
+	 *            Executor that runs the connections of the Servent
+	 * @param hostCache
+	 *            Hosts discovered through the pongs of our pings, with the time
+	 *            they were last seen. Keys are the address in which each host
+	 *            listens.
+	 * @param timer
+	 *            Timer of the Servent, sends the keepalive pings and forgets
+	 *            the old entries of the history
+	 * @param hashes
+	 *            Hashes of the shared files, answers the queries for a SHA-1
+	 *            URN. If null those queries are searched as names.
+	 * @param ultrapeer
+	 *            true if the Servent is an ultrapeer, false if it is a leaf
 	 */
 	public Client(short localPort,
-			ConcurrentHashMap<InetSocketAddress, ServentThread> neighbors,
+			NeighborRegistry neighbors,
 			ConcurrentHashMap<String, InetSocketAddress> historyPing,
 			ConcurrentHashMap<String, InetSocketAddress> historyQuery,
-			ConcurrentLinkedQueue<Message> pendingMessages,
+			InboundScheduler pendingMessages,
 			InetAddress ipAddress, IdGenerator myIdGenerator, File myDirectory,
 			byte[] idServent,
 			ConcurrentHashMap<InetSocketAddress, ServentThread> downloads,
-			ArrayList<QueryHitMessage> queryHitMessage) throws IOException {
+			ArrayList<QueryHitMessage> queryHitMessage, Metrics metrics,
+			InboundDispatcher dispatcher, ConnectionExecutor executor,
+			ConcurrentHashMap<InetSocketAddress, Long> hostCache,
+			HashedWheelTimer timer, HashingService hashes, boolean ultrapeer)
+			throws IOException {
 		this.localPort = localPort;
 		working = true;
 		this.neighbors = neighbors;
@@ -95,29 +134,228 @@ public class Client implements Runnable {
 		numberFileShared = 0;
 		numberKbShared = 0;
 		myInetSocketAddress = new InetSocketAddress(ipAddress, localPort);
-		firstPongsFromNeighbors = new ConcurrentHashMap<String, ArrayList<InetSocketAddress>>();
+		this.hostCache = hostCache;
 		this.myDirectory = myDirectory;
 		this.idServent = idServent;
-		maxNodes = 10;
+		this.metrics = metrics;
+		this.dispatcher = dispatcher;
+		this.executor = executor;
+		this.timer = timer;
+		this.ultrapeer = ultrapeer;
+		this.hashes = hashes;
+		queryHitCache = new QueryHitCache(myDirectory, timer);
+		downloadsListener = new ServentThread.Adapter() {
+			@Override
+			public void closed(ServentThread sT) {
+				// La descarga termino o fallo, deja su lugar
+				Client.this.downloads.remove(sT.getKey(), sT);
+			}
+		};
+	}
+
+	private void send(ServentThread neighbor, Message m) {
+		if (neighbor == null) {
+			// La conexion se cerro mientras se enrutaba el mensaje
+			dropped(m);
+			return;
+		}
+		metrics.forwarded(m.getPayloadD());
+		if (routing != null) {
+			if (m == routed) {
+				routing.forwarded++;
+			} else {
+				// Pong o query hit creado para contestar
+				routing.answered = true;
+			}
+		}
+		neighbor.messageToSend(m);
+	}
+
+	/**
+	 * Counts a copy of the descriptor being routed that is not sent
+	 */
+	private void dropped(Message m) {
+		metrics.dropped(m.getPayloadD());
+		if (routing != null) {
+			routing.dropped++;
+		}
+	}
+
+	/**
+	 * Forwards a query to the neighbors, the most responsive and with the
+	 * highest yield first. The QUERY_MIN_FANOUT best neighbors always receive
+	 * it, the rest are skipped while their connection has more than
+	 * MAX_SEND_BACKLOG descriptors waiting to be sent.
+	 * 
+	 * @param query
+	 *            the query to forward
+	 * @param from
+	 *            neighbor that sent the query, null if we created it
+	 */
+	private void forwardQuery(QueryMessage query, InetSocketAddress from) {
+		ServentThread[] snapshot = neighbors.getSnapshot();
+		ArrayList<ServentThread> targets = new ArrayList<ServentThread>(
+				snapshot.length);
+		for (ServentThread sT : snapshot) {
+			if (!sT.getLeaf() && !sT.getKey().equals(from)) {
+				targets.add(sT);
+			}
+		}
+		Collections.sort(targets, new Comparator<ServentThread>() {
+			@Override
+			public int compare(ServentThread o1, ServentThread o2) {
+				return Double.compare(o2.getStats().getQueryPriority(), o1
+						.getStats().getQueryPriority());
+			}
+		});
+		for (int i = 0; i < targets.size(); i++) {
+			ServentThread sT = targets.get(i);
+			if (i >= GnutellaConstants.QUERY_MIN_FANOUT
+					&& sT.getPendingToSend() > GnutellaConstants.MAX_SEND_BACKLOG) {
+				// Enlace saturado, el vecino es de los menos utiles
+				dropped(query);
+				continue;
+			}
+			sT.getStats().queryForwarded();
+			send(sT, query);
+		}
+		forwardToLeaves(query, from);
+	}
+
+	/**
+	 * Forwards a query to the leaves whose route table says they can answer
+	 * it
+	 * 
+	 * @param query
+	 *            the query to forward
+	 * @param from
+	 *            neighbor that sent the query, null if we created it
+	 */
+	private void forwardToLeaves(QueryMessage query, InetSocketAddress from) {
+		for (ServentThread sT : neighbors.getSnapshot()) {
+			if (sT.getLeaf() && !sT.getKey().equals(from)
+					&& sT.routeTableMatches(query.getSearchCriteria())) {
+				send(sT, query);
+			}
+		}
 	}
 
-	private synchronized void removeDeathConnections() {
-		Enumeration<InetSocketAddress> e = neighbors.keys();
-		while (e.hasMoreElements()) {
-			InetSocketAddress iSA = e.nextElement();
-			ServentThread sT = neighbors.get(iSA);
-			if (!sT.getStillConnected()) {
-				neighbors.remove(iSA);
+	/**
+	 * Forwards a ping to the neighbors that are not leaves
+	 * 
+	 * @param ping
+	 *            the ping to forward
+	 * @param from
+	 *            neighbor that sent the ping, null if we created it
+	 */
+	private void forwardPing(Message ping, InetSocketAddress from) {
+		for (ServentThread sT : neighbors.getSnapshot()) {
+			if (!sT.getLeaf() && !sT.getKey().equals(from)) {
+				send(sT, ping);
 			}
 		}
 	}
 
-	public synchronized void setMaxNodes() {
-		maxNodes++;
+	/**
+	 * Returns the number of neighbors that are ultrapeers or full peers
+	 * 
+	 * @return number of neighbors that are not leaves
+	 */
+	public int getPeerCount() {
+		int peers = 0;
+		for (ServentThread sT : neighbors.getSnapshot()) {
+			if (!sT.getLeaf()) {
+				peers++;
+			}
+		}
+		return peers;
+	}
+
+	/**
+	 * Returns the number of neighbors that are leaves of this Servent
+	 * 
+	 * @return number of leaves
+	 */
+	public int getLeafCount() {
+		return neighbors.size() - getPeerCount();
 	}
 
-	public synchronized int getMaxNodes() {
-		return maxNodes;
+	/**
+	 * Returns true if this Servent is an ultrapeer, false if it is a leaf
+	 * 
+	 * @return true if this Servent is an ultrapeer
+	 */
+	public boolean getUltrapeer() {
+		return ultrapeer;
+	}
+
+	/**
+	 * Sends the table of the files of this Servent to its ultrapeers if it
+	 * changed since the last time, or to the given ultrapeer. Only the
+	 * neighbors that announced X-Ultrapeer: True get it, the others would not
+	 * know the message. The directory is only listed again if it changed
+	 * since the last table.
+	 * 
+	 * @param to
+	 *            a new ultrapeer, or null to send the table only if it changed
+	 */
+	private void sendRouteTable(ServentThread to) {
+		// Se lee antes de listar, como pide QueryHitCache
+		long generation = queryHitCache.getGeneration();
+		if (to == null && queryHitCache.getWatching()
+				&& generation == routeTableGeneration) {
+			return;
+		}
+		String[] names = sharedNames();
+		if (names == null) {
+			return;
+		}
+		Arrays.sort(names);
+		int hash = Arrays.hashCode(names);
+		if (to != null) {
+			// Los demas ultrapeers pueden tener todavia la tabla anterior
+			to.messageToSend(new RouteTableMessage(myInetSocketAddress, names));
+			return;
+		}
+		if (hash != routeTableHash) {
+			RouteTableMessage table = new RouteTableMessage(
+					myInetSocketAddress, names);
+			for (ServentThread sT : neighbors.getSnapshot()) {
+				if (sT.getUltrapeer()) {
+					sT.messageToSend(table);
+				}
+			}
+		}
+		routeTableHash = hash;
+		routeTableGeneration = generation;
+	}
+
+	/**
+	 * Lists the names of the files of the directory that are shared, the
+	 * store of the hashes and the subdirectories are not
+	 * 
+	 * @return the names, or null if the directory can not be listed
+	 */
+	private String[] sharedNames() {
+		File[] files = myDirectory.listFiles();
+		if (files == null) {
+			return null;
+		}
+		ArrayList<String> names = new ArrayList<String>();
+		for (File f : files) {
+			if (HashingService.isShared(f)) {
+				names.add(f.getName());
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * Stops the routing of messages
+	 */
+	public void close() {
+		working = false;
+		queryHitCache.close();
 	}
 
 	/**
@@ -130,10 +368,14 @@ public class Client implements Runnable {
 	 */
 	public byte searchFile(String file) {
 		byte hit = 0;
-		String[] myFiles = myDirectory.list();
+		String[] myFiles = sharedNames();
+		if (myFiles == null) {
+			return hit;
+		}
+		file = QueryHitCache.normalize(file);
 
 		for (int i = 0; i < myFiles.length; i++) {
-			if (myFiles[i].contains(file)) {
+			if (QueryHitCache.normalize(myFiles[i]).contains(file)) {
 
 				++hit;
 			}
@@ -155,11 +397,12 @@ public class Client implements Runnable {
 		return m;
 	}
 
-	private synchronized PongMessage createPong(byte[] messageId) {
+	private PongMessage createPong(byte[] messageId) {
+		// Sin el monitor, una conexion en curso no detiene al enrutador
 		PongMessage pong = new PongMessage(messageId,
 				GnutellaConstants.DEFAULT_TTL, (byte) 0, myInetSocketAddress,
-				(short) myInetSocketAddress.getPort(), getIpAddress(),
-				getNumberFileShared(), getNumberKbShared());
+				(short) myInetSocketAddress.getPort(), ipAddress,
+				numberFileShared, numberKbShared);
 		return pong;
 	}
 
@@ -170,9 +413,9 @@ public class Client implements Runnable {
 		return query;
 	}
 
-	private Message createQueryHit(byte[] idMessage, int pL,
+	private QueryHitMessage createQueryHit(byte[] idMessage, int pL,
 			InetSocketAddress receptorNode, byte numberOfHits, short port,
-			InetAddress myIpAddress, int[] fileIndex, int[] fileSize,
+			InetAddress myIpAddress, int[] fileIndex, long[] fileSize,
 			String[] fileName, byte[] idServent) {
 
 		QueryHitMessage queryHit = new QueryHitMessage(idMessage,
@@ -183,6 +426,110 @@ public class Client implements Runnable {
 		return queryHit;
 	}
 
+	/**
+	 * Answers a query with a query hit if this Servent has files whose name
+	 * contains the search string, or a file with the SHA-1 URN it asks for.
+	 * 
+	 * @param query
+	 *            the query to answer
+	 */
+	private void answerQuery(QueryMessage query) {
+		QueryHitMessage hit = localHit(query);
+		if (hit != null) {
+			send(neighbors.get(query.getReceptorNode()), hit);
+		}
+	}
+
+	/**
+	 * Creates the query hit with the files of this Servent that answer a
+	 * query. The directory is only listed and the hit only encoded the first
+	 * time a search string arrives after the directory changed, the next times
+	 * the hit is taken from the cache. A URN is looked up in the index of
+	 * hashes.
+	 * 
+	 * @param query
+	 *            the query to answer
+	 * @return the hit, or null if no file answers the query
+	 */
+	private QueryHitMessage localHit(QueryMessage query) {
+		byte[] idMessage = query.getIdMessage().toByteArray();
+		String urn = hashes == null ? null : HashingService.toUrn(query
+				.getSearchCriteria());
+		if (urn != null) {
+			File file = hashes.getFile(urn);
+			if (file == null) {
+				return null;
+			}
+			return createQueryHit(idMessage, new File[] { file },
+					new int[] { 0 });
+		}
+		String key = QueryHitCache.normalize(query.getSearchCriteria());
+		QueryHitMessage hit = queryHitCache.get(key);
+		if (hit != null) {
+			metrics.queryCacheHit();
+		} else {
+			metrics.queryCacheMiss();
+			long generation = queryHitCache.getGeneration();
+			hit = buildQueryHit(idMessage, key);
+			if (hit == null) {
+				return null;
+			}
+			queryHitCache.put(key, hit, generation);
+		}
+		if (hit.getNumberOfHits() == 0) {
+			return null;
+		}
+		return new QueryHitMessage(idMessage, hit);
+	}
+
+	/**
+	 * Lists the directory and creates the query hit with the files whose name
+	 * contains the search string, the least recently modified first
+	 * 
+	 * @param idMessage
+	 *            MessageID of the query
+	 * @param key
+	 *            the normalized search string
+	 * @return the hit, with no files if none matches, or null if the
+	 *         directory can not be listed
+	 */
+	private QueryHitMessage buildQueryHit(byte[] idMessage, String key) {
+		File myFiles[] = myDirectory.listFiles();
+		if (myFiles == null) {
+			return null;
+		}
+		sortFilesDesc(myFiles);
+		ArrayList<Integer> matches = new ArrayList<Integer>();
+		for (int i = 0; i < myFiles.length; i++) {
+			if (HashingService.isShared(myFiles[i])
+					&& QueryHitCache.normalize(myFiles[i].getName()).contains(
+							key)) {
+				matches.add(i);
+			}
+		}
+		File[] files = new File[matches.size()];
+		int[] fileIdx = new int[matches.size()];
+		for (int j = 0; j < files.length; j++) {
+			fileIdx[j] = matches.get(j);
+			files[j] = myFiles[fileIdx[j]];
+		}
+		return createQueryHit(idMessage, files, fileIdx);
+	}
+
+	private QueryHitMessage createQueryHit(byte[] idMessage, File[] files,
+			int[] fileIdx) {
+		String[] name = new String[files.length];
+		long[] size = new long[files.length];
+		for (int j = 0; j < files.length; j++) {
+			name[j] = files[j].getName();
+			size[j] = files[j].length();
+		}
+		// La longitud del payload la calcula toByteArray
+		return createQueryHit(idMessage, 0, myInetSocketAddress,
+				(byte) files.length, (short) myInetSocketAddress.getPort(),
+				ipAddress, fileIdx, size, name, idServent);
+	}
+
 	/**
 	 * Adds a PingMessage to the pending Message queue
 	 */
@@ -192,8 +539,7 @@ public class Client implements Runnable {
 		Message messageTmp = createPing();
 		historyPing.putIfAbsent(messageTmp.idMessageToString(),
 				myInetSocketAddress);
-		firstPongsFromNeighbors.putIfAbsent(messageTmp.idMessageToString(),
-				new ArrayList<InetSocketAddress>());
+		forgetLater(historyPing, messageTmp.idMessageToString());
 
 		pendingMessages.add(messageTmp);
 	}
@@ -213,21 +559,219 @@ public class Client implements Runnable {
 		Message messageTmp = createQuery(minSpeed, searchCriteria);
 		historyQuery.putIfAbsent(messageTmp.idMessageToString(),
 				myInetSocketAddress);
+		forgetLater(historyQuery, messageTmp.idMessageToString());
+		if (tracer != null) {
+			tracer.issued(messageTmp.idMessageToString(), searchCriteria);
+		}
 		pendingMessages.add(messageTmp);
 
 	}
 
+	/**
+	 * Sets the UdpEndpoint through which hosts are probed and searched
+	 * without a connection
+	 * 
+	 * @param udp
+	 *            the endpoint, or null if the port could not be bound
+	 */
+	public void setUdpEndpoint(UdpEndpoint udp) {
+		this.udp = udp;
+	}
+
+	/**
+	 * Sets the QueryTracer that follows the queries of this Client and their
+	 * hits
+	 * 
+	 * @param tracer
+	 *            the tracer
+	 */
+	public void setQueryTracer(QueryTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Sends a ping in a datagram to a host. Its pong adds it to the host
+	 * cache.
+	 * 
+	 * @param host
+	 *            address of the Server of the host
+	 * @return true if the ping was sent
+	 */
+	public boolean udpPing(InetSocketAddress host) {
+		if (udp == null) {
+			return false;
+		}
+		Message messageTmp = createPing();
+		historyPing.putIfAbsent(messageTmp.idMessageToString(),
+				myInetSocketAddress);
+		forgetLater(historyPing, messageTmp.idMessageToString());
+		return udp.send(messageTmp, host);
+	}
+
+	/**
+	 * Sends a query in datagrams to the hosts of the host cache, the most
+	 * recently seen first and at most GnutellaConstants.UDP_QUERY_HOSTS. The
+	 * hosts answer without forwarding it and their hits arrive as the ones of
+	 * the queries sent through the connections.
+	 * 
+	 * @param minSpeed
+	 *            The minimum speed (in kB/second) of servents that should
+	 *            respond to this message.
+	 * @param searchCriteria
+	 *            the search string
+	 * @return number of hosts the query was sent to
+	 */
+	public int addAUdpQuery(short minSpeed, String searchCriteria) {
+		if (udp == null) {
+			return 0;
+		}
+		Message messageTmp = createQuery(minSpeed, searchCriteria);
+		historyQuery.putIfAbsent(messageTmp.idMessageToString(),
+				myInetSocketAddress);
+		forgetLater(historyQuery, messageTmp.idMessageToString());
+		ArrayList<Map.Entry<InetSocketAddress, Long>> hosts = new ArrayList<Map.Entry<InetSocketAddress, Long>>(
+				hostCache.entrySet());
+		Collections.sort(hosts,
+				new Comparator<Map.Entry<InetSocketAddress, Long>>() {
+					@Override
+					public int compare(Map.Entry<InetSocketAddress, Long> o1,
+							Map.Entry<InetSocketAddress, Long> o2) {
+						return o2.getValue().compareTo(o1.getValue());
+					}
+				});
+		int sent = 0;
+		for (Map.Entry<InetSocketAddress, Long> host : hosts) {
+			if (sent >= GnutellaConstants.UDP_QUERY_HOSTS) {
+				break;
+			}
+			if (!host.getKey().equals(myInetSocketAddress)
+					&& udp.send(messageTmp, host.getKey())) {
+				sent++;
+			}
+		}
+		if (sent > 0 && tracer != null) {
+			tracer.issued(messageTmp.idMessageToString(), searchCriteria);
+		}
+		return sent;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see gnutellaClient.UdpEndpoint.Handler#datagram(gnutellaClient.Message,
+	 * java.net.InetSocketAddress)
+	 */
+	@Override
+	public Message datagram(Message m, InetSocketAddress from) {
+		switch (m.getPayloadD()) {
+		case GnutellaConstants.PING:
+			return createPong(m.getIdMessage().toByteArray());
+		case GnutellaConstants.QUERY:
+			// Se contesta sin propagar, quien pregunta por UDP ya eligio a
+			// quien preguntar
+			return localHit((QueryMessage) m);
+		case GnutellaConstants.PONG:
+			if (myInetSocketAddress.equals(historyPing.get(m
+					.idMessageToString()))) {
+				pendingMessages.add(m);
+				return null;
+			}
+			break;
+		case GnutellaConstants.QUERY_HIT:
+			if (myInetSocketAddress.equals(historyQuery.get(m
+					.idMessageToString()))) {
+				pendingMessages.add(m);
+				return null;
+			}
+			break;
+		}
+		// Lo que no pedimos no se reenvia
+		metrics.dropped(m.getPayloadD());
+		return null;
+	}
+
+	/**
+	 * Takes the address in which a neighbor listens from the pong it sent
+	 * about itself, the one that travelled a single hop from its address
+	 * 
+	 * @param pong
+	 *            a pong received from a neighbor
+	 */
+	private void learnListenAddress(PongMessage pong) {
+		if (pong.getHop() > 1) {
+			return;
+		}
+		ServentThread from = neighbors.get(pong.getReceptorNode());
+		if (from != null && from.getListenAddress() == null
+				&& pong.getReceptorNode().getAddress().equals(pong.getIp())) {
+			from.setListenAddress(new InetSocketAddress(pong.getIp(), pong
+					.getPort() & 0xFFFF));
+		}
+	}
+
+	/**
+	 * Removes an entry of our own from the history after
+	 * GnutellaConstants.HISTORY_TTL, when no answer can arrive anymore
+	 */
+	private void forgetLater(
+			final ConcurrentHashMap<String, InetSocketAddress> history,
+			final String id) {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				history.remove(id, myInetSocketAddress);
+			}
+		}, GnutellaConstants.HISTORY_TTL);
+	}
+
+	/**
+	 * Sends a ping every GnutellaConstants.KEEPALIVE_INTERVAL while the Client
+	 * works, so the neighbors that stop answering are detected even when
+	 * there is no traffic
+	 */
+	private void scheduleKeepalive() {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (working) {
+					addAPing();
+					if (!ultrapeer) {
+						// Listar el directorio no debe bloquear al timer
+						try {
+							executor.execute(new Runnable() {
+								@Override
+								public void run() {
+									sendRouteTable(null);
+								}
+							});
+						} catch (RejectedExecutionException e) {
+							return;
+						}
+					}
+					scheduleKeepalive();
+				}
+			}
+		}, GnutellaConstants.KEEPALIVE_INTERVAL);
+	}
+
 	@Override
 	public void run() {
-		int newPing = 1;
+		scheduleKeepalive();
 		while (working) {
-			if (newPing % 10 == 0) {
-				addAPing();
+			Message message;
+			try {
+				// Espera el siguiente mensaje sin consumir CPU
+				message = pendingMessages.poll(
+						GnutellaConstants.POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				return;
 			}
-			if (!pendingMessages.isEmpty()) {
-				Message message = pendingMessages.poll();
+			if (message != null) {
+				long start = System.nanoTime();
+				routing = new RoutingEvent();
+				routing.begin();
+				routed = message;
 				boolean fordward = message.refreshMessage();
-				newPing++;
 				switch (message.getPayloadD()) {
 
 				case GnutellaConstants.PING:
@@ -239,49 +783,32 @@ public class Client implements Runnable {
 						// Si yo lo cree
 						if (myInetSocketAddress.equals(message
 								.getReceptorNode())) {
-							Enumeration<InetSocketAddress> e = neighbors.keys();
 							// Lo envio a todos mis nodos
-
-							while (e.hasMoreElements()) {
-								InetSocketAddress idNodeNext = e.nextElement();
-								neighbors.get(idNodeNext)
-										.messageToSend(message);
-							}
+							forwardPing(message, null);
 							// yo no lo cree
 						} else {
 							// contesto al que lo envio
-							neighbors.get(message.getReceptorNode())
-									.messageToSend(
-											createPong(message.getIdMessage()
-													.toByteArray()));
-							Enumeration<InetSocketAddress> e = neighbors.keys();
-							// propago el ping
-							while (e.hasMoreElements()) {
-
-								InetSocketAddress idNodeNext = e.nextElement();
-								// a todos los que no son el que lo recibio
-								if (!idNodeNext.equals(message
-										.getReceptorNode())) {
-
-									neighbors.get(idNodeNext).messageToSend(
-											message);
-								}
-
+							send(neighbors.get(message.getReceptorNode()),
+									createPong(message.getIdMessage()
+											.toByteArray()));
+							// propago el ping a todos los que no son el que
+							// lo recibio, una hoja no propaga
+							if (ultrapeer) {
+								forwardPing(message, message.getReceptorNode());
 							}
-
 						}
 
 					} else {
 						// no tiene vida solo contesto
-						neighbors.get(message.getReceptorNode())
-								.messageToSend(
-										createPong(message.getIdMessage()
-												.toByteArray()));
+						dropped(message);
+						send(neighbors.get(message.getReceptorNode()),
+								createPong(message.getIdMessage().toByteArray()));
 					}
 
 					break;
 				case GnutellaConstants.PONG:
 					PongMessage messageP = (PongMessage) message;
+					learnListenAddress(messageP);
 
 					// 3 casos es nuestro, no es nuestro, no debio de haber
 					// llegado
@@ -295,26 +822,15 @@ public class Client implements Runnable {
 								.idMessageToString());
 						if (myInetSocketAddress.equals(ownerPing)) {
 
-							// No es el primer Pong que recibe este nodo
-							if (firstPongsFromNeighbors.get(
-									messageP.idMessageToString()).contains(
-									messageP.getReceptorNode())) {
-
-								connect(messageP.getIpAddressString(),
-										messageP.getPort());
-
-							} else { // Es el primer pong que recibe este nodo
-
-								firstPongsFromNeighbors.get(
-										messageP.idMessageToString()).add(
-										messageP.getReceptorNode());
-
-							}
+							// El ConnectionManager decide si nos conectamos
+							hostCache.put(new InetSocketAddress(messageP.getIp(),
+									messageP.getPort() & 0xFFFF),
+									System.currentTimeMillis());
 						} else {
 							// no es nuestro entonces lo envio por donde lo
 							// pidieron
 
-							neighbors.get(ownerPing).messageToSend(messageP);
+							send(neighbors.get(ownerPing), messageP);
 						}
 
 					} else {
@@ -322,7 +838,7 @@ public class Client implements Runnable {
 						// QUE NO CONOZCO DEBO SACAR EL PONG DE LA RED
 						// PERO ESO YA LO HACEMOS AL HACER PULL SOBRE LA LISTA
 						// DE MENSAJES
-
+						dropped(messageP);
 					}
 
 					break;
@@ -339,73 +855,19 @@ public class Client implements Runnable {
 
 						if (myInetSocketAddress.equals(queryMessage
 								.getReceptorNode())) {
-							Enumeration<InetSocketAddress> e = neighbors.keys();
 							// Lo envio a todos mis nodos
-
-							while (e.hasMoreElements()) {
-								InetSocketAddress idNodeNext = e.nextElement();
-								neighbors.get(idNodeNext).messageToSend(
-										queryMessage);
-							}
+							forwardQuery(queryMessage, null);
 							// yo no lo cree
 						} else {
 							// verifico si tengo lo que pidio
 
-							short hits = searchFile(queryMessage
-									.getSearchCriteria());
-							if (hits > 0) {
-								// si lo tengo repondo con un query hit
-								int i;
-								String[] myFileN = myDirectory.list();
-								File myFiles[] = myDirectory.listFiles();
-								sortFilesDesc(myFiles);
-								int fileIdx[] = new int[hits];
-								String[] name = new String[hits];
-								int[] size = new int[hits];
-								int payloadL = GnutellaConstants.QUERYHIT_PART_L
-										+ GnutellaConstants.SERVER_ID_L;
-								int j = 0;
-								for (i = 0; i < myFileN.length; i++) {
-									if (myFileN[i].contains(queryMessage
-											.getSearchCriteria())) {
-										fileIdx[j] = i;
-										name[j] = myFileN[i];
-
-										size[j] = (int) myFiles[i].length();
-
-										payloadL += size[j++];
-
-									}
-
-								}
-
-								Message mQueryH = createQueryHit(message
-										.getIdMessage().toByteArray(),
-										payloadL, myInetSocketAddress,
-										(byte) hits,
-										(short) myInetSocketAddress.getPort(),
-										ipAddress, fileIdx, size, name,
-										idServent);
-								
-								neighbors.get(message.getReceptorNode())
-										.messageToSend(mQueryH);
-
-							}
-
-							Enumeration<InetSocketAddress> e = neighbors.keys();
-
-							// propago el query
-							while (e.hasMoreElements()) {
-
-								InetSocketAddress idNodeNext = e.nextElement();
-								// a todos los que no son el que lo recibio
-								if (!idNodeNext.equals(message
-										.getReceptorNode())) {
-
-									neighbors.get(idNodeNext).messageToSend(
-											message);
-								}
+							answerQuery(queryMessage);
 
+							// propago el query a todos los que no son el que
+							// lo recibio, una hoja no propaga
+							if (ultrapeer) {
+								forwardQuery(queryMessage,
+										queryMessage.getReceptorNode());
 							}
 
 						}
@@ -413,41 +875,23 @@ public class Client implements Runnable {
 					} else {
 						// no tiene vida solo
 						// verifico si tengo lo que pidio
-						byte hits = searchFile(queryMessage.getSearchCriteria());
-						if (hits > 0) {
-
-							int i;
-							String[] myFileN = myDirectory.list();
-							File myFiles[] = myDirectory.listFiles();
-							sortFilesDesc(myFiles);
-							int fileIdx[] = new int[hits];
-							String[] name = new String[hits];
-							int[] size = new int[hits];
-							int payloadL = GnutellaConstants.QUERYHIT_PART_L
-									+ GnutellaConstants.SERVER_ID_L;
-							int j = 0;
-							for (i = 0; i < myFileN.length; i++) {
-								if (myFileN[i].contains(queryMessage
-										.getSearchCriteria())) {
-									fileIdx[j] = i;
-									name[j] = myFileN[i];
-									size[j] = myFileN[i].length();
-									payloadL += size[j++];
-
-								}
-
-							}
-
-							Message mQueryH = createQueryHit(message
-									.getIdMessage().toByteArray(), payloadL,
-									myInetSocketAddress, (byte) hits,
-									(short) myInetSocketAddress.getPort(),
-									ipAddress, fileIdx, size, name, idServent);
-							
-							neighbors.get(message.getReceptorNode())
-									.messageToSend(mQueryH);
-
+						dropped(queryMessage);
+						// y contesto por mis hojas
+						if (ultrapeer) {
+							forwardToLeaves(queryMessage,
+									queryMessage.getReceptorNode());
 						}
+						answerQuery(queryMessage);
+					}
+					break;
+
+				case GnutellaConstants.ROUTE_TABLE:
+					ServentThread leaf = neighbors.get(message
+							.getReceptorNode());
+					if (ultrapeer && leaf != null && leaf.getLeaf()) {
+						leaf.setRouteTable((RouteTableMessage) message);
+					} else {
+						dropped(message);
 					}
 					break;
 
@@ -466,12 +910,21 @@ public class Client implements Runnable {
 						//
 						InetSocketAddress ownerQuery = historyQuery
 								.get(messageQH.idMessageToString());
+						ServentThread from = neighbors.get(messageQH
+								.getReceptorNode());
+						if (from != null) {
+							from.getStats().hit();
+						}
 						if (myInetSocketAddress.equals(ownerQuery)) {
 							
 							queryHitMessage.add(messageQH);
+							if (tracer != null) {
+								tracer.hit(messageQH,
+										messageQH.getReceptorNode());
+							}
 
 						} else {
-							neighbors.get(ownerQuery).messageToSend(messageQH);
+							send(neighbors.get(ownerQuery), messageQH);
 							
 						}
 					} else {
@@ -480,15 +933,28 @@ public class Client implements Runnable {
 						// QUE NO CONOZCO DEBO SACAR EL QUERYHIT DE LA RED
 						// PERO ESO YA LO HACEMOS AL HACER PULL SOBRE LA LISTA
 						// DE MENSAJES
-
+						dropped(messageQH);
 					}
 					//
 					break;
 				//
 
 				}
+				metrics.routingLatency(System.nanoTime() - start);
+				if (routing.shouldCommit()) {
+					routing.guid = message.idMessageToString();
+					routing.type = Metrics.typeName(message.getPayloadD());
+					routing.hops = message.getHop();
+					routing.ttl = message.getTtl();
+					routing.bytes = GnutellaConstants.HEADER_LENGTH
+							+ Math.max(0, message.getPayloadL());
+					routing.neighbor = String.valueOf(message
+							.getReceptorNode());
+					routing.commit();
+				}
+				routing = null;
+				routed = null;
 			}
-			removeDeathConnections();
 		}
 	}
 
@@ -549,25 +1015,37 @@ public class Client implements Runnable {
 	 *            A number, assigned by the responding host, which is used to
 	 *            uniquely identify the file matching the corresponding query.
 	 */
-	public synchronized void download(String ip, short port, String file,
+	public void download(String ip, short port, String file,
 
-	int size, int range) {
+	long size, long range) {
 		if (downloads.size() <= GnutellaConstants.MAX_DOWNLOADS) {
-			Socket sktTmp;
-
 			try {
-				sktTmp = new Socket(InetAddress.getByName(ip), port);
-
-				InetSocketAddress inetSocketA = new InetSocketAddress(
-						sktTmp.getInetAddress(), sktTmp.getLocalPort());
-				ServentThread thread = new ServentThread(sktTmp, null, null,
-						null, inetSocketA, myDirectory);
-				if (thread.downloadRequest(file, size, range)) {
-					downloads.putIfAbsent(inetSocketA, thread);
-
-					new Thread(thread).start();
+				// La conexion y la peticion se hacen sin el monitor
+				ServentThread thread = newDownload(ip, port);
+				boolean accepted = thread.downloadRequest(file, size, range,
+						true);
+				if (!accepted && !thread.getAnswered()) {
+					// Servidor que no conoce el arbol de hashes
+					thread.close();
+					thread = newDownload(ip, port);
+					accepted = thread.downloadRequest(file, size, range, false);
+				}
+				if (accepted) {
+					InetSocketAddress inetSocketA = thread.getKey();
+					synchronized (this) {
+						// Otra descarga pudo llenar los lugares mientras tanto
+						if (downloads.size() > GnutellaConstants.MAX_DOWNLOADS
+								|| downloads.putIfAbsent(inetSocketA, thread) != null) {
+							thread.close();
+							System.out.println("MAX DOWNLOADS EXCEEDED");
+							return;
+						}
+					}
+					thread.addListener(downloadsListener);
+					executor.execute(thread);
 
 				} else {
+					thread.close();
 					System.out.println("DENIED  DOWNLOAD CONNECTION");
 				}
 			} catch (UnknownHostException e) {
@@ -593,20 +1071,35 @@ public class Client implements Runnable {
 	 *            the port number
 	 * @return true if the connection is establish, otherwise false
 	 */
-	public synchronized boolean connect(String ip, short port) {
-		if (neighbors.size() <= maxNodes) {
+	public boolean connect(String ip, short port) {
+		if (getPeerCount() < maxPeers()) {
 			ServentThread node;
 			try {
-				Socket sktTmp = new Socket(InetAddress.getByName(ip), port);
-				InetSocketAddress inetSocketA = new InetSocketAddress(
-						sktTmp.getInetAddress(), sktTmp.getLocalPort());
-				node = new ServentThread(sktTmp, historyPing, historyQuery,
-						pendingMessages, inetSocketA, myDirectory);
-
-				if (node.connexionRequest() == GnutellaConstants.ACCEPTED) {
-
-					neighbors.putIfAbsent(inetSocketA, node);
-					new Thread(node).start();
+				// La conexion y el saludo se hacen sin el monitor
+				node = newNeighbor(ip, port);
+				boolean accepted = node.connexionRequest(true, ultrapeer);
+				if (!accepted && !node.getBusy()) {
+					// Un servent sin encabezados no entiende la oferta
+					node = newNeighbor(ip, port);
+					accepted = node.connexionRequest(false, ultrapeer);
+				}
+				if (accepted == GnutellaConstants.ACCEPTED) {
+					InetSocketAddress inetSocketA = new InetSocketAddress(node
+							.getRemoteAddress().getAddress(), node.getPort());
+					node.setListenAddress(node.getRemoteAddress());
+					synchronized (this) {
+						// Otra conexion pudo llenar los lugares mientras tanto
+						if (getPeerCount() >= maxPeers()
+								|| !neighbors.add(inetSocketA, node)) {
+							node.close();
+							return false;
+						}
+					}
+					executor.execute(node);
+					if (!ultrapeer && node.getUltrapeer()) {
+						// El ultrapeer solo nos manda lo que podemos contestar
+						sendRouteTable(node);
+					}
 					return true;
 				}
 			} catch (UnknownHostException e) {
@@ -624,6 +1117,47 @@ public class Client implements Runnable {
 		return false;
 	}
 
+	private int maxPeers() {
+		return ultrapeer ? GnutellaConstants.MAX_DEGREE
+				: GnutellaConstants.LEAF_DEGREE;
+	}
+
+	private ServentThread newNeighbor(String ip, short port)
+			throws IOException {
+		Socket sktTmp = new Socket();
+		try {
+			// Un candidato que no contesta no espera el timeout del sistema
+			sktTmp.connect(new InetSocketAddress(InetAddress.getByName(ip),
+					port & 0xFFFF), GnutellaConstants.HANDSHAKE_TIMEOUT);
+		} catch (IOException e) {
+			sktTmp.close();
+			throw e;
+		}
+		InetSocketAddress inetSocketA = new InetSocketAddress(
+				sktTmp.getInetAddress(), sktTmp.getLocalPort());
+		return new ServentThread(sktTmp, dispatcher, inetSocketA, myDirectory,
+				metrics, executor, timer);
+	}
+
+	private ServentThread newDownload(String ip, short port)
+			throws IOException {
+		Socket sktTmp = new Socket();
+		try {
+			// Un servidor que no contesta no bloquea la descarga
+			sktTmp.connect(new InetSocketAddress(InetAddress.getByName(ip),
+					port & 0xFFFF), GnutellaConstants.HANDSHAKE_TIMEOUT);
+		} catch (IOException e) {
+			sktTmp.close();
+			throw e;
+		}
+		InetSocketAddress inetSocketA = new InetSocketAddress(
+				sktTmp.getInetAddress(), sktTmp.getLocalPort());
+		ServentThread thread = new ServentThread(sktTmp, null, inetSocketA,
+				myDirectory, metrics, executor, timer);
+		thread.setKey(inetSocketA);
+		return thread;
+	}
+
 	private static void sortFilesDesc(File[] files) {
 		Comparator<File> comparator = new Comparator<File>() {
 
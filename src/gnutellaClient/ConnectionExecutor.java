@@ -0,0 +1,109 @@
+package gnutellaClient;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the connections of a Servent. In platform mode every connection gets a
+ * pooled thread named after the port of the Servent, in virtual mode every
+ * connection gets a virtual thread so a Servent can hold tens of thousands of
+ * connections with blocking reads and writes. Virtual threads need Java 21, on
+ * an older runtime the executor falls back to platform mode.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class ConnectionExecutor {
+	private ExecutorService executor;
+	private int mode;
+
+	/**
+	 * Creates a ConnectionExecutor
+	 *
+	 * @param mode
+	 *            GnutellaConstants.PLATFORM_THREADS or
+	 *            GnutellaConstants.VIRTUAL_THREADS
+	 * @param port
+	 *            port of the Servent, used to name the platform threads
+	 */
+	public ConnectionExecutor(int mode, final int port) {
+		if (mode == GnutellaConstants.VIRTUAL_THREADS) {
+			executor = virtualExecutor();
+			if (executor == null) {
+				System.err.println("VIRTUAL THREADS NEED JAVA 21, "
+						+ "USING PLATFORM THREADS");
+			}
+		}
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					return new Thread(r, "Connection-" + port);
+				}
+			});
+			this.mode = GnutellaConstants.PLATFORM_THREADS;
+		} else {
+			this.mode = GnutellaConstants.VIRTUAL_THREADS;
+		}
+	}
+
+	/**
+	 * Reads the execution mode of the system property gnutella.threads,
+	 * "virtual" or "platform"
+	 *
+	 * @return the execution mode, platform by default
+	 */
+	public static int defaultMode() {
+		return "virtual".equalsIgnoreCase(System
+				.getProperty("gnutella.threads")) ? GnutellaConstants.VIRTUAL_THREADS
+				: GnutellaConstants.PLATFORM_THREADS;
+	}
+
+	private static ExecutorService virtualExecutor() {
+		try {
+			// Se busca por reflexion para seguir compilando con Java 17
+			Method m = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the given connection
+	 *
+	 * @param task
+	 *            the connection, or any task that blocks on a connection
+	 */
+	public void execute(Runnable task) {
+		executor.execute(task);
+	}
+
+	/**
+	 * Returns the mode in which the connections are running
+	 *
+	 * @return GnutellaConstants.PLATFORM_THREADS or
+	 *         GnutellaConstants.VIRTUAL_THREADS
+	 */
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Stops accepting connections and waits a moment for the running ones to
+	 * finish
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package gnutellaClient;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the number of neighbors of a Servent between the minimum and the
+ * maximum degree, close to the target degree. Hosts discovered through pongs
+ * are kept in the host cache; while the Servent has fewer neighbors than the
+ * target it connects to them, and when it has enough it replaces, from time
+ * to time, the neighbor with the lowest score by one of them. Only the
+ * neighbors that are not leaves count for the degree: an ultrapeer keeps
+ * GnutellaConstants.TARGET_DEGREE of them and up to
+ * GnutellaConstants.MAX_LEAVES leaves, a leaf keeps
+ * GnutellaConstants.LEAF_DEGREE ultrapeers and accepts no connections.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class ConnectionManager implements Runnable {
+	private NeighborRegistry neighbors;
+	private ConcurrentHashMap<InetSocketAddress, Long> hostCache;
+	private Client client;
+	private InetSocketAddress myAddress;
+	private long lastReplace;
+	private volatile boolean working;
+
+	/**
+	 * Creates a ConnectionManager
+	 *
+	 * @param neighbors
+	 *            Registry of the connections to its neighbors nodes. Keys are
+	 *            in format InetSocketAddress, those InetSocketAddress are bound
+	 *            with each connection(ServentThread).
+	 * @param hostCache
+	 *            Hosts discovered through pongs, with the time they were last
+	 *            seen. Keys are the address in which each host listens.
+	 * @param client
+	 *            Client of the Servent, used to connect and to send pings
+	 * @param myAddress
+	 *            Address in which the Servent listens, never used as candidate
+	 */
+	public ConnectionManager(
+			NeighborRegistry neighbors,
+			ConcurrentHashMap<InetSocketAddress, Long> hostCache,
+			Client client, InetSocketAddress myAddress) {
+		this.neighbors = neighbors;
+		this.hostCache = hostCache;
+		this.client = client;
+		this.myAddress = myAddress;
+		lastReplace = System.currentTimeMillis();
+		working = true;
+	}
+
+	/**
+	 * Returns true if the Servent can accept another connection
+	 *
+	 * @param leaf
+	 *            true if the servent that asks for the connection is a leaf
+	 * @return true if the Servent is an ultrapeer with room for the new
+	 *         neighbor
+	 */
+	public boolean acceptsConnection(boolean leaf) {
+		if (!client.getUltrapeer()) {
+			return false;
+		}
+		return leaf ? client.getLeafCount() < GnutellaConstants.MAX_LEAVES
+				: client.getPeerCount() < GnutellaConstants.MAX_DEGREE;
+	}
+
+	/**
+	 * Returns true if the Servent is an ultrapeer, false if it is a leaf
+	 *
+	 * @return true if the Servent is an ultrapeer
+	 */
+	public boolean getUltrapeer() {
+		return client.getUltrapeer();
+	}
+
+	/**
+	 * Stops the manager
+	 */
+	public void close() {
+		working = false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (working) {
+			try {
+				Thread.sleep(GnutellaConstants.MANAGER_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (working) {
+				manage();
+			}
+		}
+	}
+
+	private void manage() {
+		trimHostCache();
+		boolean ultrapeer = client.getUltrapeer();
+		int min = ultrapeer ? GnutellaConstants.MIN_DEGREE : 1;
+		int target = ultrapeer ? GnutellaConstants.TARGET_DEGREE
+				: GnutellaConstants.LEAF_DEGREE;
+		int max = ultrapeer ? GnutellaConstants.MAX_DEGREE
+				: GnutellaConstants.LEAF_DEGREE;
+		int degree = client.getPeerCount();
+		if (degree > max) {
+			for (int i = degree; i > max; i--) {
+				disconnect(worst(false));
+			}
+		} else if (degree < target) {
+			// Debajo del minimo se conecta de una vez, si no poco a poco
+			int connects = degree < min ? target - degree
+					: GnutellaConstants.CONNECTS_PER_ROUND;
+			int connected = 0;
+			for (InetSocketAddress candidate : candidates()) {
+				if (connected == connects || client.getPeerCount() >= target) {
+					break;
+				}
+				if (connect(candidate)) {
+					connected++;
+				}
+			}
+			if (client.getPeerCount() < target) {
+				// Faltan candidatos, se buscan mas
+				client.addAPing();
+			}
+		} else {
+			replaceWorst();
+		}
+	}
+
+	/**
+	 * Replaces the neighbor with the lowest score if it is clearly worse than
+	 * the average and there is a candidate to take its place
+	 */
+	private void replaceWorst() {
+		long now = System.currentTimeMillis();
+		if (now - lastReplace < GnutellaConstants.REPLACE_INTERVAL) {
+			return;
+		}
+		ServentThread worst = worst(true);
+		if (worst == null) {
+			return;
+		}
+		double total = 0;
+		int peers = 0;
+		for (ServentThread sT : neighbors.getSnapshot()) {
+			if (!sT.getLeaf()) {
+				total += sT.getStats().getScore(now);
+				peers++;
+			}
+		}
+		double mean = total / peers;
+		if (worst.getStats().getScore(now) >= GnutellaConstants.REPLACE_RATIO
+				* mean) {
+			return;
+		}
+		for (InetSocketAddress candidate : candidates()) {
+			if (connect(candidate)) {
+				lastReplace = now;
+				System.out.println("REPLACING NEIGHBOR " + worst.getKey()
+						+ " BY " + candidate);
+				disconnect(worst);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the neighbor with the lowest score that is not a leaf
+	 *
+	 * @param oldOnly
+	 *            true to skip the neighbors younger than
+	 *            GnutellaConstants.MIN_NEIGHBOR_AGE, whose score is not
+	 *            significant yet
+	 * @return the neighbor, or null if there is none
+	 */
+	private ServentThread worst(boolean oldOnly) {
+		long now = System.currentTimeMillis();
+		ServentThread worst = null;
+		double worstScore = Double.MAX_VALUE;
+		for (ServentThread sT : neighbors.getSnapshot()) {
+			NeighborStats stats = sT.getStats();
+			if (sT.getLeaf()) {
+				continue;
+			}
+			if (oldOnly
+					&& now - stats.getConnectedAt() < GnutellaConstants.MIN_NEIGHBOR_AGE) {
+				continue;
+			}
+			double score = stats.getScore(now);
+			if (score < worstScore) {
+				worst = sT;
+				worstScore = score;
+			}
+		}
+		return worst;
+	}
+
+	private void disconnect(ServentThread neighbor) {
+		if (neighbor != null) {
+			// Al cerrarse sale del registro de vecinos
+			neighbor.close();
+		}
+	}
+
+	/**
+	 * Returns the hosts of the host cache that are not neighbors yet, the
+	 * most recently seen first. A neighbor is compared by the address in which
+	 * it listens, and while that is not known every host of its ip is skipped.
+	 */
+	private ArrayList<InetSocketAddress> candidates() {
+		HashSet<InetSocketAddress> connected = new HashSet<InetSocketAddress>();
+		HashSet<InetAddress> unknown = new HashSet<InetAddress>();
+		for (ServentThread sT : neighbors.getSnapshot()) {
+			InetSocketAddress listen = sT.getListenAddress();
+			if (listen != null) {
+				connected.add(listen);
+			} else {
+				// Entrante sin su pong todavia, solo se conoce su ip
+				unknown.add(sT.getKey().getAddress());
+			}
+		}
+		ArrayList<Map.Entry<InetSocketAddress, Long>> hosts = hostsByLastSeen();
+		Collections.reverse(hosts);
+		ArrayList<InetSocketAddress> candidates = new ArrayList<InetSocketAddress>();
+		for (Map.Entry<InetSocketAddress, Long> host : hosts) {
+			if (!host.getKey().equals(myAddress)
+					&& !connected.contains(host.getKey())
+					&& !unknown.contains(host.getKey().getAddress())) {
+				candidates.add(host.getKey());
+			}
+		}
+		return candidates;
+	}
+
+	private boolean connect(InetSocketAddress candidate) {
+		// Si falla no se vuelve a intentar hasta que otro pong lo anuncie
+		hostCache.remove(candidate);
+		InetAddress ip = candidate.getAddress();
+		return client.connect(ip.getHostAddress(),
+				(short) candidate.getPort());
+	}
+
+	/**
+	 * Forgets the hosts seen longest ago when the host cache is full
+	 */
+	private void trimHostCache() {
+		int excess = hostCache.size() - GnutellaConstants.MAX_HOST_CACHE;
+		if (excess <= 0) {
+			return;
+		}
+		ArrayList<Map.Entry<InetSocketAddress, Long>> hosts = hostsByLastSeen();
+		for (int i = 0; i < excess; i++) {
+			hostCache.remove(hosts.get(i).getKey(), hosts.get(i).getValue());
+		}
+	}
+
+	/**
+	 * Returns the hosts of the host cache, the one seen longest ago first
+	 */
+	private ArrayList<Map.Entry<InetSocketAddress, Long>> hostsByLastSeen() {
+		ArrayList<Map.Entry<InetSocketAddress, Long>> hosts = new ArrayList<Map.Entry<InetSocketAddress, Long>>(
+				hostCache.entrySet());
+		Collections.sort(hosts,
+				new Comparator<Map.Entry<InetSocketAddress, Long>>() {
+					@Override
+					public int compare(Map.Entry<InetSocketAddress, Long> o1,
+							Map.Entry<InetSocketAddress, Long> o2) {
+						return o1.getValue().compareTo(o2.getValue());
+					}
+				});
+		return hosts;
+	}
+}
@@ -0,0 +1,46 @@
+package gnutellaClient;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of the decoding of a descriptor received from a
+ * neighbor or in a datagram. Its duration is the time spent decoding.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+@Name("gnutella.Decode")
+@Label("Descriptor Decode")
+@Category({ "Gnutella", "Routing" })
+@Description("A descriptor decoded by the MessageHandler")
+@StackTrace(false)
+public class DecodeEvent extends jdk.jfr.Event {
+	@Label("GUID")
+	String guid;
+
+	@Label("Type")
+	String type;
+
+	@Label("Hops")
+	int hops;
+
+	@Label("TTL")
+	int ttl;
+
+	@Label("Bytes")
+	@Description("Bytes of the descriptor, header included")
+	int bytes;
+
+	@Label("Neighbor")
+	@Description("Address the descriptor was received from")
+	String neighbor;
+
+	@Label("Decoded")
+	@Description("False if the descriptor is not supported or is malformed")
+	boolean decoded;
+}
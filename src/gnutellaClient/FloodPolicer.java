@@ -0,0 +1,93 @@
+package gnutellaClient;
+
+/**
+ * Polices the descriptors received from one neighbor before they reach the
+ * InboundDispatcher. The ttl of every descriptor is lowered so ttl plus hops
+ * does not exceed GnutellaConstants.MAX_TTL, and a descriptor that already
+ * went through more hops than that is dropped. Each type of descriptor has
+ * its own rate per neighbor; the descriptors over the rate are dropped.
+ *
+ * Every dropped descriptor is a violation. A neighbor that commits
+ * GnutellaConstants.FLOOD_ABUSE_LIMIT violations within
+ * GnutellaConstants.FLOOD_ABUSE_WINDOW milliseconds is abusive and must be
+ * disconnected. Only the thread that reads the connection uses the policer.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class FloodPolicer {
+	private TokenBucket[] buckets;
+	private Metrics metrics;
+	private long windowStart;
+	private int violations;
+	private boolean abusive;
+
+	/**
+	 * Creates the FloodPolicer of a new connection
+	 *
+	 * @param metrics
+	 *            Metrics of the Servent, counts the policed descriptors
+	 */
+	public FloodPolicer(Metrics metrics) {
+		this.metrics = metrics;
+		buckets = new TokenBucket[Metrics.typeCount()];
+		limit(GnutellaConstants.PING, GnutellaConstants.FLOOD_PING_RATE);
+		limit(GnutellaConstants.PONG, GnutellaConstants.FLOOD_PONG_RATE);
+		limit(GnutellaConstants.QUERY, GnutellaConstants.FLOOD_QUERY_RATE);
+		limit(GnutellaConstants.QUERY_HIT,
+				GnutellaConstants.FLOOD_QUERY_HIT_RATE);
+		limit(GnutellaConstants.ROUTE_TABLE,
+				GnutellaConstants.FLOOD_ROUTE_TABLE_RATE);
+		windowStart = System.currentTimeMillis();
+	}
+
+	private void limit(byte payloadD, int rate) {
+		buckets[Metrics.typeIndex(payloadD)] = new TokenBucket(rate,
+				GnutellaConstants.FLOOD_BURST * rate);
+	}
+
+	/**
+	 * Polices a descriptor received from the neighbor, lowering its ttl if
+	 * needed
+	 *
+	 * @param m
+	 *            the descriptor
+	 * @return true if it must be dispatched, false if it was dropped
+	 */
+	public boolean admit(Message m) {
+		if (m.getHop() < 0 || m.getHop() > GnutellaConstants.MAX_TTL) {
+			return violation(m);
+		}
+		if (m.clampTtl(GnutellaConstants.MAX_TTL)) {
+			metrics.ttlClamped();
+		}
+		TokenBucket b = buckets[Metrics.typeIndex(m.getPayloadD())];
+		if (b != null && !b.take()) {
+			return violation(m);
+		}
+		return true;
+	}
+
+	/**
+	 * Says if the neighbor sustained the abuse and must be disconnected
+	 *
+	 * @return true if the neighbor is abusive
+	 */
+	public boolean getAbusive() {
+		return abusive;
+	}
+
+	private boolean violation(Message m) {
+		metrics.policed(m.getPayloadD());
+		long now = System.currentTimeMillis();
+		if (now - windowStart > GnutellaConstants.FLOOD_ABUSE_WINDOW) {
+			windowStart = now;
+			violations = 0;
+		}
+		if (++violations >= GnutellaConstants.FLOOD_ABUSE_LIMIT) {
+			abusive = true;
+		}
+		return false;
+	}
+}
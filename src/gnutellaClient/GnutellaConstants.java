@@ -11,7 +11,17 @@ public class GnutellaConstants {
 
 	/* Constantes de solicitud conexion */
 	public static final String CONNECTION_REQUEST = "GNUTELLA CONNECT/<0.4>\n\n ";
+	public static final String PROTOCOL_GNUTELLA = "GNUTELLA CONNECT";
 	public static final String CONNECTION_ACCEPTED = "GNUTELLA OK\n\n";
+	public static final String CONNECTION_REJECTED = "GNUTELLA/0.4 503 Busy\n\n";
+	public static final String CONNECTION_REQUEST_HEADERS = "GNUTELLA CONNECT/<0.4>\n\n";
+	public static final String HEADER_SEPARATOR = ": ";
+	public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	public static final String HEADER_ULTRAPEER = "X-Ultrapeer";
+	public static final String DEFLATE = "deflate";
+	public static final String HEADER_TRUE = "True";
+	public static final String HEADER_FALSE = "False";
 
 	/* Constantes de tipos de mensaje */
 	public static final byte PING = 0x00;
@@ -19,9 +29,13 @@ public class GnutellaConstants {
 	public static final byte PUSH = 0x40;
 	public static final byte QUERY = 80;
 	public static final byte QUERY_HIT = 81;
+	// Mensaje de fabricante, 0x30 es la tabla QRP de la v0.6
+	public static final byte ROUTE_TABLE = 0x31;
 
 	/* Constantes de tamanio */
 	public static final int ID_LENGTH = 16;
+	public static final int GUID_MARK_HIGH = 8;
+	public static final int GUID_MARK_LOW = 15;
 	public static final int PLD_LENGTH = 1;
 	public static final int TTL_LENGTH = 1;
 	public static final int HOP_LENGTH = 1;
@@ -34,12 +48,35 @@ public class GnutellaConstants {
 	public static final byte PING_PLL = 0;
 	public static final byte PONG_PLL = 14;
 	public static final int QUERYHIT_PART_L = 19;
+	public static final int QUERYHIT_HEAD_L = 11;
 	public static final int SERVER_ID_L = 16;
+	public static final long MAX_HIT_SIZE = 0xFFFFFFFFL;
+	public static final byte GGEP_MAGIC = (byte) 0xC3;
+	public static final int GGEP_LAST = 0x80;
+	public static final int GGEP_ENCODED = 0x40;
+	public static final int GGEP_COMPRESSED = 0x20;
+	public static final int GGEP_ID_MASK = 0x0F;
+	public static final int GGEP_MORE_LENGTH = 0x80;
+	public static final int GGEP_LAST_LENGTH = 0x40;
+	public static final int GGEP_LENGTH_MASK = 0x3F;
+	public static final String GGEP_LARGE_FILE = "LF";
+	public static final int MAX_PAYLOAD = 65536;
 
 	/* Constantes de implementacion */
 	public static final byte DEFAULT_TTL = 7;
 	public static final int MY_MESSAGE = -1;
 	public static final int MAX_DOWNLOADS = 10;
+	public static final int MAX_UPLOADS = 10;
+	public static final int MAX_UPLOADS_PER_HOST = 2;
+	public static final int MAX_UPLOAD_QUEUE = 50;
+	public static final int MAX_QUEUED_PER_HOST = 5;
+	public static final int UPLOAD_CHECK_INTERVAL = 1000;
+	public static final int UPLOAD_GRACE_TIME = 10000;
+	public static final int MIN_UPLOAD_RATE = 1024;
+	public static final int TRANSFER_TIMEOUT = 30000;
+	public static final int QUEUE_TIMEOUT = 600000;
+	public static final int QUEUE_REFRESH_INTERVAL = 30000;
+	public static final int UPLOAD_CHUNK = 8192;
 	public static final int MINSPEEDL = 2;
 	public static final byte INITIAL_HOP = -1;
 	public static final byte EOS = 0x0000;
@@ -49,6 +86,105 @@ public class GnutellaConstants {
 	public static final byte END = -1;
 	public static final short MIN_PORT = 1024;
 
+	/* Constantes del saludo de conexiones entrantes */
+	public static final int ACCEPT_BACKLOG = 1024;
+	public static final int HANDSHAKE_THREADS = 4;
+	public static final int HANDSHAKE_QUEUE = 64;
+	public static final int HANDSHAKE_TIMEOUT = 5000;
+	public static final int MAX_HANDSHAKES_PER_HOST = 16;
+	public static final int MAX_PENDING_HANDSHAKES = 4096;
+	public static final int MAX_HANDSHAKE_LENGTH = 4096;
+
+	/* Constantes del manejo de vecinos */
+	public static final int MIN_DEGREE = 3;
+	public static final int TARGET_DEGREE = 6;
+	public static final int MAX_DEGREE = 10;
+	public static final int CONNECTS_PER_ROUND = 2;
+	public static final int MANAGER_INTERVAL = 2000;
+	public static final int MIN_NEIGHBOR_AGE = 30000;
+	public static final int REPLACE_INTERVAL = 30000;
+	public static final double REPLACE_RATIO = 0.5;
+	public static final int MAX_HOST_CACHE = 200;
+	public static final int DEFAULT_RTT = 500;
+	public static final int QUERY_MIN_FANOUT = 3;
+	public static final int MAX_SEND_BACKLOG = 256;
+	public static final int INBOUND_QUEUE_CAPACITY = 1024;
+	public static final int INBOUND_QUANTUM = 512;
+
+	/* Constantes de ultrapeers y hojas */
+	public static final int LEAF_DEGREE = 3;
+	public static final int MAX_LEAVES = 30;
+	public static final String VENDOR_CODE = "GNCL";
+	public static final int VENDOR_HEAD_L = 8;
+	public static final int ROUTE_TABLE_SELECTOR = 1;
+	public static final int ROUTE_TABLE_VERSION = 1;
+
+	/* Constantes del timer */
+	public static final int TIMER_TICK = 100;
+	public static final int TIMER_WHEEL_SIZE = 512;
+	public static final int PING_TIMEOUT = 10000;
+	public static final int KEEPALIVE_INTERVAL = 5000;
+	public static final int HISTORY_TTL = 60000;
+
+	/* Constantes del cache de busquedas */
+	public static final int QUERY_CACHE_SIZE = 256;
+	public static final int QUERY_TRACE_RING = 256;
+	public static final int LIBRARY_POLL_INTERVAL = 1000;
+
+	/* Constantes de hashes de archivos */
+	public static final String URN_SHA1 = "urn:sha1:";
+	public static final int SHA1_BASE32_L = 32;
+	public static final String HASH_STORE_NAME = ".hashes.sha1";
+	public static final int HASH_THREADS = Math.max(1, Math.min(4, Runtime
+			.getRuntime().availableProcessors() / 2));
+	public static final int HASH_THREAD_IDLE = 5000;
+	public static final int HASH_RESCAN_INTERVAL = 30000;
+	public static final int HASH_MAP_WINDOW = 16 * 1024 * 1024;
+	public static final int SHA1_L = 20;
+	public static final int MERKLE_CHUNK = 256 * 1024;
+	public static final int MERKLE_RETRIES = 3;
+	public static final int MERKLE_MAX_CHUNKS = 1 << 20;
+
+	/* Constantes del cache de subidas */
+	public static final int UPLOAD_CACHE_BUDGET = 16 * 1024 * 1024;
+	public static final int UPLOAD_CACHE_MAX_FILE = 1024 * 1024;
+	public static final int UPLOAD_CACHE_MIN_BUFFER = 4096;
+	public static final int UPLOAD_CACHE_AGING = 1024;
+
+	/* Constantes de proteccion contra inundaciones */
+	public static final int MAX_TTL = 7;
+	public static final int FLOOD_PING_RATE = 20;
+	public static final int FLOOD_PONG_RATE = 200;
+	public static final int FLOOD_QUERY_RATE = 50;
+	public static final int FLOOD_QUERY_HIT_RATE = 200;
+	public static final int FLOOD_ROUTE_TABLE_RATE = 10;
+	public static final int FLOOD_BURST = 2;
+	public static final int FLOOD_ABUSE_LIMIT = 500;
+	public static final int FLOOD_ABUSE_WINDOW = 10000;
+
+	/* Constantes del ciclo de vida de las conexiones */
+	public static final int CONNECTION_NEW = 0;
+	public static final int CONNECTION_OPEN = 1;
+	public static final int CONNECTION_CLOSED = 2;
+	public static final int CONNECTION_FAILED = 3;
+
+	/* Constantes de UDP */
+	public static final int UDP_MAX_DATAGRAM = 65507;
+	public static final int UDP_HOST_RATE = 10;
+	public static final int UDP_SEND_RATE = 200;
+	public static final int UDP_MAX_HOSTS = 4096;
+	public static final int UDP_QUERY_HOSTS = 32;
+
+	/* Constantes de compresion */
+	public static final int DEFLATE_LEVEL = 6;
+	public static final int DEFLATE_BUFFER = 8192;
+	public static final int DEFLATE_BATCH = 32;
+
+	/* Constantes de modo de ejecucion */
+	public static final int PLATFORM_THREADS = 1;
+	public static final int VIRTUAL_THREADS = 2;
+	public static final int POLL_INTERVAL = 100;
+
 	/* Constantes tipo de nodos */
 	public static final int DOWNLOAD_NODE = 2;
 	public static final int SERVENT_NODE = 1;
@@ -68,5 +204,8 @@ public class GnutellaConstants {
 	public static final String HTTP_GETPART = "GET /get/";
 	public static final String HTTP_REST = "/ HTTP/1.0\r\nConnection: Keep-Alive\r\nRange: bytes=";
 	public static final String HTTP_DENY = " HTTP 400 Bad Request\r\n\r\n";
+	public static final String HTTP_QUEUED = "HTTP 503 Queued\r\nX-Queue: position=";
+	public static final String HTTP_BUSY = "HTTP 503 Busy\r\n\r\n";
+	public static final String HTTP_MERKLE = "X-Merkle-Tree: sha1";
 
 }
@@ -0,0 +1,366 @@
+package gnutellaClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * First stage of the connections accepted by a Server. The request of every
+ * new connection is read without blocking by a single thread, with a deadline,
+ * so clients that connect and send nothing only cost a registration. The
+ * protocol is detected from the first bytes and connections that are not
+ * Gnutella or HTTP, that announce a request too long or that exceed the
+ * admission limits are closed at once. Complete requests are handed to the
+ * Handler with the connection back in blocking mode.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class HandshakeStage implements Runnable {
+	private static final byte[][] PROTOCOLS = {
+			GnutellaConstants.PROTOCOL_GNUTELLA.getBytes(),
+			GnutellaConstants.HTTP_GET.getBytes() };
+
+	/* Como termina una conexion que no completo su peticion */
+	private static final int REJECTED = 0;
+	private static final int TIMED_OUT = 1;
+	private static final int ABANDONED = 2;
+
+	/**
+	 * Receives the connections whose request was read
+	 */
+	public interface Handler {
+		/**
+		 * Handles a connection whose request was read
+		 *
+		 * @param skt
+		 *            the connection, in blocking mode
+		 * @param request
+		 *            the request sent by the client
+		 */
+		public void handshake(Socket skt, String request);
+	}
+
+	/**
+	 * A connection whose request is being read
+	 */
+	private static class Pending {
+		private SocketChannel channel;
+		private InetAddress host;
+		private HashedWheelTimer.Timeout deadline;
+		private SelectionKey key;
+		private boolean done;
+		private ByteBuffer length;
+		private ByteBuffer request;
+
+		private Pending(SocketChannel channel, InetAddress host) {
+			this.channel = channel;
+			this.host = host;
+			length = ByteBuffer.allocate(2);
+		}
+	}
+
+	private Selector selector;
+	private Handler handler;
+	private Metrics metrics;
+	private HashedWheelTimer timer;
+	private ConcurrentLinkedQueue<Pending> incoming;
+	private ConcurrentLinkedQueue<Pending> expired;
+	private HashMap<InetAddress, Integer> perHost;
+	private int pending;
+	private volatile boolean working;
+
+	/**
+	 * Creates a HandshakeStage
+	 *
+	 * @param handler
+	 *            receives the connections whose request was read
+	 * @param metrics
+	 *            Metrics of the Servent that owns the Server
+	 * @param timer
+	 *            Timer of the Servent, gives the deadline of each handshake
+	 * @throws IOException
+	 *             if the selector can not be opened
+	 */
+	public HandshakeStage(Handler handler, Metrics metrics,
+			HashedWheelTimer timer) throws IOException {
+		this.handler = handler;
+		this.metrics = metrics;
+		this.timer = timer;
+		selector = Selector.open();
+		incoming = new ConcurrentLinkedQueue<Pending>();
+		expired = new ConcurrentLinkedQueue<Pending>();
+		perHost = new HashMap<InetAddress, Integer>();
+		working = true;
+	}
+
+	/**
+	 * Receives a new connection. It is closed at once if there are too many
+	 * handshakes in progress, in total or from its host.
+	 *
+	 * @param channel
+	 *            the new connection
+	 * @return true if the connection was admitted, false if it was closed
+	 */
+	public boolean offer(SocketChannel channel) {
+		InetAddress host = ((InetSocketAddress) channel.socket()
+				.getRemoteSocketAddress()).getAddress();
+		if (!admit(host)) {
+			closeQuietly(channel);
+			return false;
+		}
+		final Pending p = new Pending(channel, host);
+		p.deadline = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				// El hilo del selector lo cierra
+				expired.add(p);
+				selector.wakeup();
+			}
+		}, GnutellaConstants.HANDSHAKE_TIMEOUT);
+		incoming.add(p);
+		selector.wakeup();
+		return true;
+	}
+
+	/**
+	 * Returns the number of connections whose request is being read
+	 *
+	 * @return number of pending handshakes
+	 */
+	public synchronized int getPendingHandshakes() {
+		return pending;
+	}
+
+	/**
+	 * Stops the stage and closes the connections whose request is being read
+	 */
+	public void close() {
+		working = false;
+		selector.wakeup();
+	}
+
+	private synchronized boolean admit(InetAddress host) {
+		Integer n = perHost.get(host);
+		if (pending >= GnutellaConstants.MAX_PENDING_HANDSHAKES
+				|| (n != null && n >= GnutellaConstants.MAX_HANDSHAKES_PER_HOST)) {
+			return false;
+		}
+		perHost.put(host, n == null ? 1 : n + 1);
+		pending++;
+		return true;
+	}
+
+	private synchronized void release(InetAddress host) {
+		Integer n = perHost.get(host);
+		if (n == null || n <= 1) {
+			perHost.remove(host);
+		} else {
+			perHost.put(host, n - 1);
+		}
+		pending--;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (working) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				System.err.println(getClass() + ".run(): " + e.getClass()
+						+ e.getMessage());
+				break;
+			}
+			register();
+			ArrayList<SelectionKey> complete = new ArrayList<SelectionKey>();
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if (read(key)) {
+					key.cancel();
+					complete.add(key);
+				}
+			}
+			if (!complete.isEmpty()) {
+				handOff(complete);
+			}
+			expire();
+		}
+		for (SelectionKey key : selector.keys()) {
+			drop((Pending) key.attachment(), key, ABANDONED);
+		}
+		Pending p;
+		while ((p = incoming.poll()) != null) {
+			drop(p, null, ABANDONED);
+		}
+		expired.clear();
+		try {
+			selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void register() {
+		Pending p;
+		while ((p = incoming.poll()) != null) {
+			try {
+				p.channel.configureBlocking(false);
+				p.key = p.channel.register(selector, SelectionKey.OP_READ, p);
+			} catch (IOException e) {
+				drop(p, null, REJECTED);
+			}
+		}
+	}
+
+	/**
+	 * Reads what arrived of a request
+	 *
+	 * @return true if the request is complete
+	 */
+	private boolean read(SelectionKey key) {
+		Pending p = (Pending) key.attachment();
+		try {
+			if (p.request == null) {
+				if (p.channel.read(p.length) < 0) {
+					drop(p, key, REJECTED);
+					return false;
+				}
+				if (p.length.hasRemaining()) {
+					return false;
+				}
+				int length = ((p.length.get(0) & 0xFF) << 8)
+						| (p.length.get(1) & 0xFF);
+				if (length > GnutellaConstants.MAX_HANDSHAKE_LENGTH) {
+					drop(p, key, REJECTED);
+					return false;
+				}
+				p.request = ByteBuffer.allocate(length);
+			}
+			if (p.channel.read(p.request) < 0 || !knownProtocol(p.request)) {
+				drop(p, key, REJECTED);
+				return false;
+			}
+			return !p.request.hasRemaining();
+		} catch (IOException e) {
+			drop(p, key, REJECTED);
+			return false;
+		}
+	}
+
+	/**
+	 * Compares the bytes read so far with the beginning of every supported
+	 * protocol
+	 */
+	private static boolean knownProtocol(ByteBuffer request) {
+		for (byte[] protocol : PROTOCOLS) {
+			int n = Math.min(request.position(), protocol.length);
+			boolean matches = true;
+			for (int i = 0; i < n && matches; i++) {
+				matches = request.get(i) == protocol[i];
+			}
+			if (matches) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gives the complete requests to the Handler with their connections back
+	 * in blocking mode
+	 */
+	private void handOff(ArrayList<SelectionKey> complete) {
+		try {
+			// Las llaves canceladas se liberan en la siguiente seleccion
+			selector.selectNow();
+		} catch (IOException e) {
+		}
+		for (SelectionKey key : complete) {
+			Pending p = (Pending) key.attachment();
+			String request;
+			try {
+				p.channel.configureBlocking(true);
+				byte[] utf = new byte[2 + p.request.capacity()];
+				utf[0] = p.length.get(0);
+				utf[1] = p.length.get(1);
+				System.arraycopy(p.request.array(), 0, utf, 2,
+						p.request.capacity());
+				request = new DataInputStream(new ByteArrayInputStream(utf))
+						.readUTF();
+			} catch (IOException e) {
+				drop(p, null, REJECTED);
+				continue;
+			}
+			p.done = true;
+			p.deadline.cancel();
+			release(p.host);
+			handler.handshake(p.channel.socket(), request);
+		}
+	}
+
+	private void expire() {
+		Pending p;
+		while ((p = expired.poll()) != null) {
+			// Pudo terminar despues de que el timer lo venciera
+			if (!p.done) {
+				drop(p, p.key, TIMED_OUT);
+			}
+		}
+	}
+
+	/**
+	 * Closes a connection whose request was not completed, counting it once
+	 * according to the reason
+	 *
+	 * @param reason
+	 *            REJECTED, TIMED_OUT or ABANDONED when the stage is closed
+	 */
+	private void drop(Pending p, SelectionKey key, int reason) {
+		if (p.done) {
+			return;
+		}
+		p.done = true;
+		p.deadline.cancel();
+		if (key != null) {
+			key.cancel();
+		}
+		closeQuietly(p.channel);
+		release(p.host);
+		switch (reason) {
+		case REJECTED:
+			metrics.connectionRejected();
+			break;
+		case TIMED_OUT:
+			metrics.handshakeTimeout();
+			break;
+		default:
+			// El cliente no hizo nada mal, el Server se esta cerrando
+			break;
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,233 @@
+package gnutellaClient;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer of a Servent shared by every timeout of its connections, handshakes
+ * and caches. Timeouts are kept in a wheel of buckets that a single thread
+ * visits once per tick, so scheduling and cancelling a timeout cost the same
+ * no matter how many are pending. A timeout expires in the first tick after
+ * its delay, so the precision is GnutellaConstants.TIMER_TICK milliseconds.
+ * The tasks run on the thread of the timer and must be short, a task that
+ * blocks delays every other timeout.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class HashedWheelTimer implements Runnable {
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * A task scheduled in the timer
+	 */
+	public static class Timeout {
+		private Runnable task;
+		private long deadline;
+		private long rounds;
+		private AtomicInteger state;
+		private HashedWheelTimer timer;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+			state = new AtomicInteger(PENDING);
+		}
+
+		/**
+		 * Cancels the timeout if it has not expired yet
+		 *
+		 * @return true if the task will not run because of this call
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			// El hilo del timer lo saca de su cubeta
+			timer.cancelled.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED)) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				System.err.println(getClass() + ".expire(): " + e.getClass()
+						+ e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * List of the timeouts that fall in a slot of the wheel, only used by the
+	 * thread of the timer
+	 */
+	private static class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(Timeout t) {
+			t.bucket = this;
+			if (head == null) {
+				head = tail = t;
+			} else {
+				tail.next = t;
+				t.prev = tail;
+				tail = t;
+			}
+		}
+
+		private Timeout remove(Timeout t) {
+			Timeout next = t.next;
+			if (t.prev != null) {
+				t.prev.next = next;
+			}
+			if (next != null) {
+				next.prev = t.prev;
+			}
+			if (t == head) {
+				head = next;
+			}
+			if (t == tail) {
+				tail = t.prev;
+			}
+			t.prev = null;
+			t.next = null;
+			t.bucket = null;
+			return next;
+		}
+
+		private void expire() {
+			Timeout t = head;
+			while (t != null) {
+				if (t.rounds <= 0) {
+					Timeout next = remove(t);
+					t.expire();
+					t = next;
+				} else {
+					t.rounds--;
+					t = t.next;
+				}
+			}
+		}
+	}
+
+	private Bucket[] wheel;
+	private int mask;
+	private long tickNanos;
+	private long startTime;
+	private long tick;
+	private ConcurrentLinkedQueue<Timeout> added;
+	private ConcurrentLinkedQueue<Timeout> cancelled;
+	private volatile boolean working;
+
+	/**
+	 * Creates a HashedWheelTimer and starts its thread
+	 *
+	 * @param name
+	 *            name of the thread of the timer
+	 */
+	public HashedWheelTimer(String name) {
+		wheel = new Bucket[GnutellaConstants.TIMER_WHEEL_SIZE];
+		for (int i = 0; i < wheel.length; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = wheel.length - 1;
+		tickNanos = TimeUnit.MILLISECONDS
+				.toNanos(GnutellaConstants.TIMER_TICK);
+		added = new ConcurrentLinkedQueue<Timeout>();
+		cancelled = new ConcurrentLinkedQueue<Timeout>();
+		startTime = System.nanoTime();
+		working = true;
+		Thread t = new Thread(this, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * Schedules a task to run once after the given delay
+	 *
+	 * @param task
+	 *            the task, it runs on the thread of the timer
+	 * @param delay
+	 *            delay in milliseconds
+	 * @return the Timeout, used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay) {
+		Timeout t = new Timeout(this, task, System.nanoTime() - startTime
+				+ TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+		added.add(t);
+		return t;
+	}
+
+	/**
+	 * Stops the timer, the pending timeouts never expire
+	 */
+	public void close() {
+		working = false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (working) {
+			long sleep = startTime + (tick + 1) * tickNanos - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			removeCancelled();
+			transferAdded();
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout t;
+		while ((t = cancelled.poll()) != null) {
+			if (t.bucket != null) {
+				t.bucket.remove(t);
+			}
+		}
+	}
+
+	private void transferAdded() {
+		Timeout t;
+		while ((t = added.poll()) != null) {
+			if (t.isCancelled()) {
+				continue;
+			}
+			long ticks = t.deadline / tickNanos;
+			t.rounds = (ticks - tick) / wheel.length;
+			// Un timeout vencido se atiende en el tick actual
+			wheel[(int) (Math.max(ticks, tick) & mask)].add(t);
+		}
+	}
+}
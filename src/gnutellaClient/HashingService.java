@@ -0,0 +1,547 @@
+package gnutellaClient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computes the SHA-1 URN of every file of the shared directory of a Servent,
+ * in the form urn:sha1:BASE32, and the MerkleTree of its chunks that is sent
+ * with every upload. The files are read through memory-mapped
+ * windows by at most GnutellaConstants.HASH_THREADS threads that end when
+ * there is nothing to hash. The directory is scanned again every
+ * GnutellaConstants.HASH_RESCAN_INTERVAL milliseconds and only the files that
+ * are new or whose size or modification time changed are hashed again. The
+ * hashes are kept in a store file, so a Servent that restarts does not hash
+ * its files again. Every record is preceded by its length, so an entry that
+ * can not be read is skipped without losing the rest:
+ *
+ * <pre>
+ * int magic | int version | (int length | UTF path | long size
+ *     | long modified | UTF urn | int chunk size | int leaves | leaves)*
+ * </pre>
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class HashingService {
+	private static final int MAGIC = 0x474E4853; // "GNHS"
+	private static final int VERSION = 3;
+	// Dos UTF, tres long y el arbol mas grande que se acepta
+	private static final int MAX_RECORD = 2 * (2 + 0xFFFF) + 3 * 8 + 2 * 4
+			+ GnutellaConstants.MERKLE_MAX_CHUNKS * GnutellaConstants.SHA1_L;
+	private static final char[] BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567"
+			.toCharArray();
+
+	/**
+	 * The hash of a file, valid while the file keeps its size and
+	 * modification time
+	 */
+	private static class Entry {
+		private File file;
+		private long size;
+		private long modified;
+		private String urn;
+		private MerkleTree tree;
+
+		private Entry(File file, long size, long modified, String urn,
+				MerkleTree tree) {
+			this.file = file;
+			this.size = size;
+			this.modified = modified;
+			this.urn = urn;
+			this.tree = tree;
+		}
+
+		private boolean current(File f) {
+			return f.length() == size && f.lastModified() == modified;
+		}
+	}
+
+	private File directory;
+	private File store;
+	private HashedWheelTimer timer;
+	private ThreadPoolExecutor workers;
+	private ConcurrentHashMap<String, Entry> byPath;
+	private ConcurrentHashMap<String, Entry> byUrn;
+	private Set<String> pending;
+	private volatile boolean dirty;
+	private volatile boolean working;
+
+	/**
+	 * Creates a HashingService, reads the store and starts hashing the files
+	 * that are not in it
+	 *
+	 * @param directory
+	 *            the shared directory
+	 * @param store
+	 *            file where the hashes are kept between restarts
+	 * @param timer
+	 *            Timer of the Servent, scans the directory again from time to
+	 *            time
+	 * @param port
+	 *            port of the Servent, used to name the threads
+	 */
+	public HashingService(File directory, File store, HashedWheelTimer timer,
+			final int port) {
+		this.directory = directory;
+		this.store = store;
+		this.timer = timer;
+		byPath = new ConcurrentHashMap<String, Entry>();
+		byUrn = new ConcurrentHashMap<String, Entry>();
+		pending = ConcurrentHashMap.newKeySet();
+		workers = new ThreadPoolExecutor(GnutellaConstants.HASH_THREADS,
+				GnutellaConstants.HASH_THREADS,
+				GnutellaConstants.HASH_THREAD_IDLE, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "Hasher-" + port);
+						t.setDaemon(true);
+						t.setPriority(Thread.MIN_PRIORITY);
+						return t;
+					}
+				});
+		workers.allowCoreThreadTimeOut(true);
+		load();
+		working = true;
+		rescan();
+		scheduleRescan();
+	}
+
+	/**
+	 * Returns the store used for the given shared directory, a hidden file
+	 * inside it so it is never shared
+	 *
+	 * @param directory
+	 *            the shared directory
+	 * @return the store file
+	 */
+	public static File defaultStore(File directory) {
+		return new File(directory, GnutellaConstants.HASH_STORE_NAME);
+	}
+
+	/**
+	 * Tells if a file of the shared directory is shared with the network, the
+	 * hidden files are not
+	 *
+	 * @param f
+	 *            a file of the shared directory
+	 * @return true if it is a regular file whose name does not start with '.'
+	 */
+	public static boolean isShared(File f) {
+		return f.isFile() && !f.getName().startsWith(".");
+	}
+
+	/**
+	 * Returns the search string as a SHA-1 URN in the form used by this
+	 * service, the prefix is case insensitive and the base 32 is upper case
+	 *
+	 * @param searchCriteria
+	 *            the search string of a query
+	 * @return the URN, or null if the search string is not a SHA-1 URN
+	 */
+	public static String toUrn(String searchCriteria) {
+		String prefix = GnutellaConstants.URN_SHA1;
+		String s = searchCriteria.trim();
+		if (s.length() != prefix.length() + GnutellaConstants.SHA1_BASE32_L
+				|| !s.regionMatches(true, 0, prefix, 0, prefix.length())) {
+			return null;
+		}
+		return prefix + s.substring(prefix.length()).toUpperCase();
+	}
+
+	/**
+	 * Returns the file with the given URN
+	 *
+	 * @param urn
+	 *            the URN, as returned by toUrn
+	 * @return the file, or null if no shared file has that hash
+	 */
+	public File getFile(String urn) {
+		Entry e = byUrn.get(urn);
+		if (e == null || !e.current(e.file)) {
+			return null;
+		}
+		return e.file;
+	}
+
+	/**
+	 * Returns the URN of a shared file
+	 *
+	 * @param file
+	 *            the file
+	 * @return the URN, or null if the file has not been hashed since its last
+	 *         change
+	 */
+	public String getUrn(File file) {
+		Entry e = byPath.get(file.getAbsolutePath());
+		if (e == null || !e.current(file)) {
+			return null;
+		}
+		return e.urn;
+	}
+
+	/**
+	 * Returns the hash tree of the chunks of a shared file
+	 *
+	 * @param file
+	 *            the file
+	 * @return the tree, or null if the file has not been hashed since its
+	 *         last change
+	 */
+	public MerkleTree getTree(File file) {
+		Entry e = byPath.get(file.getAbsolutePath());
+		if (e == null || !e.current(file)) {
+			return null;
+		}
+		return e.tree;
+	}
+
+	/**
+	 * Returns the number of files whose hash is known
+	 *
+	 * @return number of hashed files
+	 */
+	public int getHashedFiles() {
+		return byPath.size();
+	}
+
+	/**
+	 * Returns the number of files waiting to be hashed or being hashed
+	 *
+	 * @return number of pending files
+	 */
+	public int getPendingFiles() {
+		return pending.size();
+	}
+
+	/**
+	 * Lists the shared directory, forgets the files that no longer exist and
+	 * hashes the new and the changed ones
+	 */
+	public void rescan() {
+		File[] files = directory.listFiles();
+		if (files == null || !working) {
+			return;
+		}
+		HashSet<String> present = new HashSet<String>();
+		for (File f : files) {
+			if (!isShared(f)) {
+				continue;
+			}
+			String path = f.getAbsolutePath();
+			present.add(path);
+			Entry e = byPath.get(path);
+			if ((e == null || !e.current(f)) && pending.add(path)) {
+				submit(f);
+			}
+		}
+		for (Map.Entry<String, Entry> e : byPath.entrySet()) {
+			if (!present.contains(e.getKey())) {
+				forget(e.getValue());
+			}
+		}
+		saveIfDone();
+	}
+
+	/**
+	 * Stops hashing and writes the store
+	 */
+	public void close() {
+		working = false;
+		workers.shutdownNow();
+		if (dirty) {
+			save();
+		}
+	}
+
+	private void scheduleRescan() {
+		if (timer == null) {
+			return;
+		}
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (working) {
+					// El listado no debe bloquear al timer
+					try {
+						workers.execute(new Runnable() {
+							@Override
+							public void run() {
+								rescan();
+							}
+						});
+					} catch (RejectedExecutionException e) {
+						return;
+					}
+					scheduleRescan();
+				}
+			}
+		}, GnutellaConstants.HASH_RESCAN_INTERVAL);
+	}
+
+	private void submit(final File f) {
+		try {
+			workers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						hash(f);
+					} finally {
+						pending.remove(f.getAbsolutePath());
+						saveIfDone();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			pending.remove(f.getAbsolutePath());
+		}
+	}
+
+	private void hash(File f) {
+		long size = f.length();
+		long modified = f.lastModified();
+		MessageDigest digest = MerkleTree.newDigest();
+		MessageDigest chunkDigest = MerkleTree.newDigest();
+		int chunkSize = GnutellaConstants.MERKLE_CHUNK;
+		byte[][] leaves;
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			long length = channel.size();
+			leaves = new byte[MerkleTree.chunks(length, chunkSize)][];
+			int chunk = 0;
+			long position = 0;
+			// La ventana es multiplo del trozo, ningun trozo queda partido
+			while (position < length && working) {
+				long mapped = Math.min(GnutellaConstants.HASH_MAP_WINDOW, length
+						- position);
+				MappedByteBuffer window = channel.map(
+						FileChannel.MapMode.READ_ONLY, position, mapped);
+				while (window.hasRemaining()) {
+					ByteBuffer piece = window.duplicate();
+					piece.limit(Math.min(window.limit(), window.position()
+							+ chunkSize));
+					window.position(piece.limit());
+					digest.update(piece.duplicate());
+					chunkDigest.update(piece);
+					leaves[chunk++] = chunkDigest.digest();
+				}
+				position += mapped;
+			}
+			if (length == 0) {
+				leaves[0] = chunkDigest.digest();
+			}
+		} catch (IOException e) {
+			// Se borro o no se puede leer, el siguiente escaneo lo decide
+			return;
+		} catch (InternalError e) {
+			// Se trunco mientras estaba mapeado, se repite cuando cambie
+			return;
+		} finally {
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		// Si cambio mientras se leia el hash no sirve, se repite despues
+		if (!working || f.length() != size || f.lastModified() != modified) {
+			return;
+		}
+		put(new Entry(f, size, modified, GnutellaConstants.URN_SHA1
+				+ base32(digest.digest()), new MerkleTree(chunkSize, size,
+				leaves)));
+	}
+
+	private void put(Entry e) {
+		Entry old = byPath.put(e.file.getAbsolutePath(), e);
+		if (old != null) {
+			byUrn.remove(old.urn, old);
+		}
+		byUrn.put(e.urn, e);
+		dirty = true;
+	}
+
+	private void forget(Entry e) {
+		byPath.remove(e.file.getAbsolutePath(), e);
+		byUrn.remove(e.urn, e);
+		dirty = true;
+	}
+
+	private synchronized void saveIfDone() {
+		if (dirty && pending.isEmpty() && working) {
+			save();
+		}
+	}
+
+	/**
+	 * Writes the hashes in a temporary file that then takes the place of the
+	 * store, so a Servent that dies while writing does not lose it
+	 */
+	private synchronized void save() {
+		dirty = false;
+		File tmp = new File(store.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream record = new DataOutputStream(bytes);
+			for (Entry e : byPath.values()) {
+				bytes.reset();
+				record.writeUTF(e.file.getAbsolutePath());
+				record.writeLong(e.size);
+				record.writeLong(e.modified);
+				record.writeUTF(e.urn);
+				e.tree.write(record);
+				out.writeInt(bytes.size());
+				bytes.writeTo(out);
+			}
+			out.close();
+			out = null;
+			Files.move(tmp.toPath(), store.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			System.err.println(getClass() + ".save(): " + e.getClass()
+					+ e.getMessage());
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the hashes of the store that still belong to a file of the shared
+	 * directory with the same size and modification time. A record that can
+	 * not be read is skipped and the store is written again without it.
+	 */
+	private void load() {
+		if (!store.isFile()) {
+			return;
+		}
+		DataInputStream in = null;
+		boolean skipped = false;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(store)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return;
+			}
+			while (true) {
+				int length = in.readInt();
+				if (length < 0) {
+					// Sin la longitud no se encuentra el siguiente registro
+					skipped = true;
+					break;
+				}
+				if (length > MAX_RECORD) {
+					skip(in, length);
+					skipped = true;
+					continue;
+				}
+				byte[] record = new byte[length];
+				in.readFully(record);
+				try {
+					Entry e = readEntry(record);
+					if (e.current(e.file)) {
+						put(e);
+					}
+				} catch (IOException e) {
+					System.err.println(getClass() + ".load(): "
+							+ e.getClass() + e.getMessage());
+					skipped = true;
+				}
+			}
+		} catch (EOFException e) {
+			// Fin del almacen
+		} catch (IOException e) {
+			System.err.println(getClass() + ".load(): " + e.getClass()
+					+ e.getMessage());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		dirty = skipped;
+	}
+
+	private static Entry readEntry(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				record));
+		File f = new File(in.readUTF());
+		long size = in.readLong();
+		long modified = in.readLong();
+		String urn = in.readUTF();
+		MerkleTree tree = MerkleTree.read(in, size);
+		return new Entry(f, size, modified, urn, tree);
+	}
+
+	private static void skip(DataInputStream in, int length)
+			throws IOException {
+		while (length > 0) {
+			int n = in.skipBytes(length);
+			if (n <= 0) {
+				throw new EOFException();
+			}
+			length -= n;
+		}
+	}
+
+	/**
+	 * Encodes the bytes in base 32 without padding, RFC 4648
+	 */
+	private static String base32(byte[] bytes) {
+		StringBuilder s = new StringBuilder((bytes.length * 8 + 4) / 5);
+		int buffer = 0;
+		int bits = 0;
+		for (byte b : bytes) {
+			buffer = (buffer << 8) | (b & 0xFF);
+			bits += 8;
+			while (bits >= 5) {
+				s.append(BASE32[(buffer >>> (bits - 5)) & 31]);
+				bits -= 5;
+			}
+		}
+		if (bits > 0) {
+			s.append(BASE32[(buffer << (5 - bits)) & 31]);
+		}
+		return s.toString();
+	}
+}
@@ -1,7 +1,6 @@
 package gnutellaClient;
-import java.util.Random;
-
-import javax.swing.text.GapContent;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Clase que generara ids.
@@ -32,28 +31,32 @@ public class IdGenerator {
 	}
 
 	/**
-	 * Devuelve un id para un Servent generado aleatoriamente
+	 * Devuelve un id para un Servent generado aleatoriamente. Solo se pide una
+	 * vez por Servent, asi que se usa un generador seguro.
 	 * 
 	 * @return el id
 	 */
 	public static byte[] getIdServent() {
 		byte id[] = new byte[GnutellaConstants.ID_LENGTH];
-		Random r = new Random();
-		r.nextBytes(id);
+		new SecureRandom().nextBytes(id);
 		return id;
 
 	}
 
 	/**
 	 * Genera un id random y lo guarda en un arreglo de bytes de longitud 16,
-	 * para los mensajes del Protocolo Gnutella
+	 * para los mensajes del Protocolo Gnutella. Cada hilo usa su propio
+	 * generador, sembrado una sola vez, asi que no hay candados. El byte 8 va
+	 * en 0xFF y el byte 15 en 0x00 para que los demas nodos sepan que el
+	 * mensaje viene de un servent moderno.
 	 * 
 	 * @return el id
 	 */
-	public synchronized static byte[] getIdMessage() {
+	public static byte[] getIdMessage() {
 		byte id[] = new byte[GnutellaConstants.ID_LENGTH];
-		Random r = new Random();
-		r.nextBytes(id);
+		ThreadLocalRandom.current().nextBytes(id);
+		id[GnutellaConstants.GUID_MARK_HIGH] = (byte) 0xFF;
+		id[GnutellaConstants.GUID_MARK_LOW] = 0;
 		return id;
 	}
 
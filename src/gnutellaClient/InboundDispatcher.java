@@ -0,0 +1,152 @@
+package gnutellaClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receive path of a Servent. Every descriptor read from a neighbor goes
+ * through here: duplicated pings and queries are discarded using the history
+ * and the rest are queued for the Client to route them.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class InboundDispatcher {
+	private ConcurrentHashMap<String, InetSocketAddress> historyPing;
+	private ConcurrentHashMap<String, InetSocketAddress> historyQuery;
+	private InboundScheduler pendingMessages;
+	private Metrics metrics;
+	private HashedWheelTimer timer;
+	private volatile TrafficCapture capture;
+
+	/**
+	 * Creates an InboundDispatcher
+	 *
+	 * @param historyPing
+	 *            HashMap that contains de history of every PingMessage received
+	 *            from a neighbor Servent and every PingMessage generated by the
+	 *            Servent
+	 * @param historyQuery
+	 *            HashMap that contains de history of every QueryMessage
+	 *            received from a neighbor Servent and every QueryMessage
+	 *            generated by the Servent
+	 * @param pendingMessages
+	 *            Queues of each neighbor which contain every message that needs to be process by
+	 *            the Servent
+	 * @param metrics
+	 *            Metrics of the Servent
+	 * @param timer
+	 *            Timer of the Servent, forgets the entries of the history
+	 *            after GnutellaConstants.HISTORY_TTL
+	 */
+	public InboundDispatcher(
+			ConcurrentHashMap<String, InetSocketAddress> historyPing,
+			ConcurrentHashMap<String, InetSocketAddress> historyQuery,
+			InboundScheduler pendingMessages, Metrics metrics,
+			HashedWheelTimer timer) {
+		this.historyPing = historyPing;
+		this.historyQuery = historyQuery;
+		this.pendingMessages = pendingMessages;
+		this.metrics = metrics;
+		this.timer = timer;
+	}
+
+	/**
+	 * Starts recording every descriptor received in the given capture,
+	 * replacing the current one. Null stops recording.
+	 *
+	 * @param capture
+	 *            the capture
+	 */
+	public void setCapture(TrafficCapture capture) {
+		this.capture = capture;
+	}
+
+	/**
+	 * Records a descriptor in the capture, if there is one. The descriptor is
+	 * recorded as it was read from the neighbor, before it is decoded and
+	 * policed, so a replay goes through the same checks.
+	 *
+	 * @param from
+	 *            InetSocketAddress bound with the connection that received it
+	 * @param descriptor
+	 *            the header and the payload of the descriptor
+	 */
+	public void capture(InetSocketAddress from, byte[] descriptor) {
+		TrafficCapture c = capture;
+		if (c != null) {
+			try {
+				c.record(from, descriptor);
+			} catch (IOException e) {
+				System.err.println(getClass() + ".capture(): " + e.getClass()
+						+ e.getMessage());
+				capture = null;
+			}
+		}
+	}
+
+	/**
+	 * Returns the Metrics of the Servent
+	 *
+	 * @return the metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Receives a descriptor read from a neighbor
+	 *
+	 * @param m
+	 *            the descriptor
+	 * @param from
+	 *            InetSocketAddress bound with the connection that received it
+	 */
+	public void dispatch(Message m, InetSocketAddress from) {
+		metrics.received(m.getPayloadD());
+		String message = m.idMessageToString();
+		switch (m.getPayloadD()) {
+		case GnutellaConstants.PING:
+			if (historyPing.putIfAbsent(message, from) == null) {
+				forgetLater(historyPing, message, from);
+				pendingMessages.add(m);
+			} else {
+				metrics.duplicated(m.getPayloadD());
+			}
+			break;
+		case GnutellaConstants.QUERY:
+			if (historyQuery.putIfAbsent(message, from) == null) {
+				forgetLater(historyQuery, message, from);
+				pendingMessages.add(m);
+			} else {
+				metrics.duplicated(m.getPayloadD());
+			}
+			break;
+		case GnutellaConstants.PONG:
+		case GnutellaConstants.QUERY_HIT:
+		case GnutellaConstants.ROUTE_TABLE:
+			pendingMessages.add(m);
+			break;
+		default:
+			metrics.dropped(m.getPayloadD());
+			break;
+		}
+	}
+
+	/**
+	 * Removes an entry from the history after GnutellaConstants.HISTORY_TTL,
+	 * when no answer to the descriptor can arrive anymore
+	 */
+	private void forgetLater(
+			final ConcurrentHashMap<String, InetSocketAddress> history,
+			final String id, final InetSocketAddress from) {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				history.remove(id, from);
+			}
+		}, GnutellaConstants.HISTORY_TTL);
+	}
+}
@@ -0,0 +1,193 @@
+package gnutellaClient;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of the descriptors that the Client must route. Every neighbor has its
+ * own queue, keyed by the InetSocketAddress the descriptors were received
+ * from, and the queues are drained by deficit round robin: in its turn a
+ * neighbor may hand GnutellaConstants.INBOUND_QUANTUM bytes of descriptors
+ * plus what it did not use in its previous turns, so every neighbor gets the
+ * same share of the Client no matter how much the others send.
+ *
+ * A queue holds at most GnutellaConstants.INBOUND_QUEUE_CAPACITY descriptors.
+ * When it is full the oldest ping, pong or query of the queue is dropped to
+ * make room, those are the descriptors the network sends again; if it only
+ * holds query hits and route tables the new descriptor is dropped.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class InboundScheduler {
+
+	/**
+	 * Descriptors received from one neighbor
+	 */
+	private static class Source {
+		private InetSocketAddress address;
+		private ArrayDeque<Message> queue;
+		private int deficit;
+		private boolean turn;
+
+		private Source(InetSocketAddress address) {
+			this.address = address;
+			queue = new ArrayDeque<Message>();
+		}
+	}
+
+	private HashMap<InetSocketAddress, Source> sources;
+	private ArrayDeque<Source> active;
+	private int size;
+	private Metrics metrics;
+
+	/**
+	 * Creates an empty InboundScheduler
+	 *
+	 * @param metrics
+	 *            Metrics of the Servent, counts the dropped descriptors
+	 */
+	public InboundScheduler(Metrics metrics) {
+		this.metrics = metrics;
+		sources = new HashMap<InetSocketAddress, Source>();
+		active = new ArrayDeque<Source>();
+	}
+
+	/**
+	 * Queues a descriptor in the queue of the neighbor it was received from
+	 *
+	 * @param m
+	 *            the descriptor
+	 * @return true if it was queued, false if it was dropped
+	 */
+	public synchronized boolean add(Message m) {
+		Source s = sources.get(m.getReceptorNode());
+		if (s == null) {
+			s = new Source(m.getReceptorNode());
+			sources.put(s.address, s);
+			active.addLast(s);
+		}
+		if (s.queue.size() >= GnutellaConstants.INBOUND_QUEUE_CAPACITY
+				&& !dropOldest(s)) {
+			metrics.dropped(m.getPayloadD());
+			return false;
+		}
+		s.queue.addLast(m);
+		size++;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Takes the next descriptor to route, waiting until one arrives
+	 *
+	 * @param timeout
+	 *            how long to wait
+	 * @param unit
+	 *            unit of the timeout
+	 * @return the descriptor, or null if none arrived in time
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting
+	 */
+	public synchronized Message poll(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (size == 0) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				return null;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		while (true) {
+			Source s = active.peekFirst();
+			if (!s.turn) {
+				s.deficit += GnutellaConstants.INBOUND_QUANTUM;
+				s.turn = true;
+			}
+			int cost = cost(s.queue.peekFirst());
+			if (cost <= s.deficit) {
+				s.deficit -= cost;
+				Message m = s.queue.removeFirst();
+				size--;
+				if (s.queue.isEmpty()) {
+					// Un vecino sin mensajes no guarda credito
+					active.removeFirst();
+					sources.remove(s.address);
+				}
+				return m;
+			}
+			s.turn = false;
+			active.addLast(active.removeFirst());
+		}
+	}
+
+	/**
+	 * Returns the number of descriptors waiting in all the queues
+	 *
+	 * @return number of descriptors
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of descriptors waiting from a neighbor
+	 *
+	 * @param from
+	 *            InetSocketAddress bound with the connection of the neighbor
+	 * @return number of descriptors
+	 */
+	public synchronized int size(InetSocketAddress from) {
+		Source s = sources.get(from);
+		return s == null ? 0 : s.queue.size();
+	}
+
+	public synchronized boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Returns the number of descriptors waiting from each neighbor
+	 *
+	 * @return address=depth of every neighbor with descriptors waiting
+	 */
+	public synchronized String[] getDepths() {
+		String[] depths = new String[active.size()];
+		int i = 0;
+		for (Source s : active) {
+			depths[i++] = s.address + "=" + s.queue.size();
+		}
+		return depths;
+	}
+
+	/**
+	 * Drops the oldest ping, pong or query of a queue
+	 *
+	 * @return true if one was dropped
+	 */
+	private boolean dropOldest(Source s) {
+		Iterator<Message> it = s.queue.iterator();
+		while (it.hasNext()) {
+			Message old = it.next();
+			switch (old.getPayloadD()) {
+			case GnutellaConstants.PING:
+			case GnutellaConstants.PONG:
+			case GnutellaConstants.QUERY:
+				it.remove();
+				size--;
+				metrics.dropped(old.getPayloadD());
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int cost(Message m) {
+		return GnutellaConstants.HEADER_LENGTH + Math.max(0, m.getPayloadL());
+	}
+}
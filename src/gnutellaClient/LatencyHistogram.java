@@ -0,0 +1,107 @@
+package gnutellaClient;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies with power of two buckets in microseconds. Recording
+ * a value never locks, every bucket is a striped counter.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class LatencyHistogram {
+	private static final int BUCKETS = 32;
+	private LongAdder[] buckets;
+	private LongAdder count;
+	private LongAdder totalNanos;
+
+	/**
+	 * Creates an empty LatencyHistogram
+	 */
+	public LatencyHistogram() {
+		buckets = new LongAdder[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+		count = new LongAdder();
+		totalNanos = new LongAdder();
+	}
+
+	/**
+	 * Records a latency
+	 *
+	 * @param nanos
+	 *            the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = nanos / 1000;
+		int idx = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+		if (idx >= BUCKETS) {
+			idx = BUCKETS - 1;
+		}
+		buckets[idx].increment();
+		count.increment();
+		totalNanos.add(nanos);
+	}
+
+	/**
+	 * Returns the number of latencies recorded
+	 *
+	 * @return number of latencies
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * Returns the mean of the latencies recorded
+	 *
+	 * @return the mean in microseconds
+	 */
+	public double getMeanMicros() {
+		long n = count.sum();
+		return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket that holds the given percentile
+	 *
+	 * @param percentile
+	 *            a value between 0 and 100
+	 * @return the latency in microseconds
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] snapshot = getBuckets();
+		long total = 0;
+		for (long c : snapshot) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			seen += snapshot[i];
+			if (seen >= target) {
+				return 1L << i;
+			}
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the counts of every bucket. Bucket i holds the latencies lower
+	 * than 2^i microseconds.
+	 *
+	 * @return the counts
+	 */
+	public long[] getBuckets() {
+		long[] snapshot = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets[i].sum();
+		}
+		return snapshot;
+	}
+}
@@ -0,0 +1,272 @@
+package gnutellaClient;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Hash tree of the chunks of a shared file. The leaves are the SHA-1 of each
+ * chunk of GnutellaConstants.MERKLE_CHUNK bytes, the last one may be shorter,
+ * and every inner node is the SHA-1 of its two children; a node without a
+ * brother goes up unchanged. The uploader sends the leaves before the content
+ * of the file and the downloader verifies each chunk as it lands on disk, so
+ * only the chunks that fail are requested again. The chunks requested again
+ * are only accepted if they come with a tree of the same root.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class MerkleTree {
+	private int chunkSize;
+	private long fileLength;
+	private byte[][] leaves;
+	private byte[] root;
+
+	/**
+	 * Creates a MerkleTree from the hashes of the chunks of a file
+	 *
+	 * @param chunkSize
+	 *            size of every chunk but the last one
+	 * @param fileLength
+	 *            length of the file in bytes
+	 * @param leaves
+	 *            SHA-1 of every chunk, in order
+	 */
+	public MerkleTree(int chunkSize, long fileLength, byte[][] leaves) {
+		this.chunkSize = chunkSize;
+		this.fileLength = fileLength;
+		this.leaves = leaves;
+		root = computeRoot(leaves);
+	}
+
+	/**
+	 * Creates the MerkleTree of the content of a file already in memory
+	 *
+	 * @param content
+	 *            the content of the file
+	 * @return the tree
+	 */
+	public static MerkleTree of(byte[] content) {
+		return of(ByteBuffer.wrap(content));
+	}
+
+	/**
+	 * Creates the MerkleTree of the content of a file already in memory
+	 *
+	 * @param content
+	 *            the content of the file, from its position to its limit; the
+	 *            position of the buffer does not change
+	 * @return the tree
+	 */
+	public static MerkleTree of(ByteBuffer content) {
+		int chunkSize = GnutellaConstants.MERKLE_CHUNK;
+		int length = content.remaining();
+		byte[][] leaves = new byte[chunks(length, chunkSize)][];
+		MessageDigest digest = newDigest();
+		ByteBuffer chunk = content.duplicate();
+		for (int i = 0; i < leaves.length; i++) {
+			int start = content.position() + i * chunkSize;
+			chunk.limit(Math.min(start + chunkSize, content.limit()));
+			chunk.position(start);
+			digest.update(chunk);
+			leaves[i] = digest.digest();
+		}
+		return new MerkleTree(chunkSize, length, leaves);
+	}
+
+	/**
+	 * Creates the MerkleTree of a file read from disk one chunk at a time, for
+	 * files too large to be in memory
+	 *
+	 * @param content
+	 *            channel of the file
+	 * @return the tree
+	 * @throws IOException
+	 *             if the file can not be read
+	 */
+	public static MerkleTree of(FileChannel content) throws IOException {
+		int chunkSize = GnutellaConstants.MERKLE_CHUNK;
+		long length = content.size();
+		byte[][] leaves = new byte[chunks(length, chunkSize)][];
+		MessageDigest digest = newDigest();
+		ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+		for (int i = 0; i < leaves.length; i++) {
+			long start = (long) i * chunkSize;
+			chunk.clear();
+			chunk.limit((int) Math.min(chunkSize, length - start));
+			while (chunk.hasRemaining()) {
+				if (content.read(chunk, start + chunk.position()) < 0) {
+					// El archivo se acorto, el arbol no lo verificara
+					break;
+				}
+			}
+			chunk.flip();
+			digest.update(chunk);
+			leaves[i] = digest.digest();
+		}
+		return new MerkleTree(chunkSize, length, leaves);
+	}
+
+	/**
+	 * Returns the number of chunks of a file, an empty file has one empty
+	 * chunk
+	 *
+	 * @param fileLength
+	 *            length of the file in bytes
+	 * @param chunkSize
+	 *            size of the chunks
+	 * @return number of chunks
+	 */
+	public static int chunks(long fileLength, int chunkSize) {
+		return (int) Math.max(1, (fileLength + chunkSize - 1) / chunkSize);
+	}
+
+	/**
+	 * Returns a SHA-1 digest
+	 *
+	 * @return the digest
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Toda maquina virtual de Java trae SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	public int getChunks() {
+		return leaves.length;
+	}
+
+	public byte[] getRoot() {
+		return root.clone();
+	}
+
+	/**
+	 * Returns the position of the first byte of a chunk
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return the position in the file
+	 */
+	public long getChunkStart(int chunk) {
+		return (long) chunk * chunkSize;
+	}
+
+	/**
+	 * Returns the position after the last byte of a chunk
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @return the position in the file
+	 */
+	public long getChunkEnd(int chunk) {
+		return Math.min(fileLength, getChunkStart(chunk) + chunkSize);
+	}
+
+	/**
+	 * Says if a chunk that was received has the hash of the tree
+	 *
+	 * @param chunk
+	 *            index of the chunk
+	 * @param digest
+	 *            SHA-1 of the bytes received
+	 * @return true if the chunk is correct
+	 */
+	public boolean verify(int chunk, byte[] digest) {
+		return MessageDigest.isEqual(leaves[chunk], digest);
+	}
+
+	/**
+	 * Writes the tree: int chunk size, int number of leaves and the leaves
+	 *
+	 * @param out
+	 *            the stream of the upload
+	 * @throws IOException
+	 *             if the tree can not be written
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(chunkSize);
+		out.writeInt(leaves.length);
+		for (byte[] leaf : leaves) {
+			out.write(leaf);
+		}
+	}
+
+	/**
+	 * Reads the tree sent by an uploader
+	 *
+	 * @param in
+	 *            the stream of the download
+	 * @param fileLength
+	 *            length of the file that is downloaded
+	 * @return the tree
+	 * @throws IOException
+	 *             if the tree can not be read or does not match the length of
+	 *             the file
+	 */
+	public static MerkleTree read(DataInputStream in, long fileLength)
+			throws IOException {
+		int chunkSize = in.readInt();
+		int count = in.readInt();
+		// El tamano de los trozos es fijo, asi un uploader no puede pedir
+		// que se reserven mas hojas de las que caben
+		if (chunkSize != GnutellaConstants.MERKLE_CHUNK || fileLength < 0
+				|| fileLength > (long) GnutellaConstants.MERKLE_MAX_CHUNKS
+						* chunkSize || count <= 0
+				|| count > GnutellaConstants.MERKLE_MAX_CHUNKS
+				|| count != chunks(fileLength, chunkSize)) {
+			throw new IOException("Merkle tree does not match the file");
+		}
+		byte[][] leaves = new byte[count][GnutellaConstants.SHA1_L];
+		for (byte[] leaf : leaves) {
+			in.readFully(leaf);
+		}
+		return new MerkleTree(chunkSize, fileLength, leaves);
+	}
+
+	/**
+	 * Says if another tree has the same root, that is the same content
+	 *
+	 * @param other
+	 *            the other tree
+	 * @return true if both roots are equal
+	 */
+	public boolean sameRoot(MerkleTree other) {
+		return Arrays.equals(root, other.root);
+	}
+
+	private static byte[] computeRoot(byte[][] leaves) {
+		MessageDigest digest = newDigest();
+		byte[][] level = leaves;
+		while (level.length > 1) {
+			byte[][] up = new byte[(level.length + 1) / 2][];
+			for (int i = 0; i < up.length; i++) {
+				if (2 * i + 1 == level.length) {
+					up[i] = level[2 * i];
+				} else {
+					digest.update(level[2 * i]);
+					digest.update(level[2 * i + 1]);
+					up[i] = digest.digest();
+				}
+			}
+			level = up;
+		}
+		return level.length == 0 ? digest.digest() : level[0];
+	}
+}
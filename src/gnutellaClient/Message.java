@@ -104,6 +104,22 @@ public class Message {
 		return false;
 	}
 
+	/**
+	 * Lowers the ttl of a descriptor received from a neighbor so that ttl plus
+	 * hops does not exceed the given maximum
+	 * 
+	 * @param maxTtl
+	 *            the maximum of ttl plus hops in the network
+	 * @return true if the ttl was lowered
+	 */
+	public boolean clampTtl(int maxTtl) {
+		if (ttl + hop <= maxTtl) {
+			return false;
+		}
+		ttl = (byte) Math.max(0, maxTtl - hop);
+		return true;
+	}
+
 	/**
 	 * Returns the payloader descriptor of this Message
 	 * 
@@ -149,8 +165,15 @@ public class Message {
 		byte header[] = new byte[GnutellaConstants.HEADER_LENGTH];
 		byte id[] = getIdMessage().toByteArray();
 		int i = 0;
+		// BigInteger quita los bytes de signo sobrantes, se completan a 16
+		int pad = GnutellaConstants.ID_LENGTH - id.length;
+		byte sign = (byte) (getIdMessage().signum() < 0 ? -1 : 0);
 		for (; i < GnutellaConstants.ID_LENGTH; i++) {
-			header[i] = id[i];
+			if (i < pad) {
+				header[i] = sign;
+			} else {
+				header[i] = id[i - pad];
+			}
 		}
 		header[i++] = getPayloadD();
 		header[i++] = getTtl();
@@ -166,6 +189,25 @@ public class Message {
 
 	}
 
+	/**
+	 * Writes in the header of the given descriptor the length of the bytes
+	 * that follow the header, so a receiver can read the whole descriptor
+	 * without polling the stream
+	 * 
+	 * @param descriptor
+	 *            a descriptor in bytes, header included
+	 * @return the same descriptor
+	 */
+	protected static byte[] withPayloadLength(byte[] descriptor) {
+		int payloadL = descriptor.length - GnutellaConstants.HEADER_LENGTH;
+		int i = GnutellaConstants.HEADER_LENGTH - GnutellaConstants.PLL_LENGTH;
+		descriptor[i++] = (byte) (payloadL >>> 24);
+		descriptor[i++] = (byte) (payloadL >>> 16);
+		descriptor[i++] = (byte) (payloadL >>> 8);
+		descriptor[i] = (byte) payloadL;
+		return descriptor;
+	}
+
 	/**
 	 * Returns the id of this Message in textual presentation
 	 * 
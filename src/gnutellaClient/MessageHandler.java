@@ -1,10 +1,12 @@
 package gnutellaClient;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.net.InetSocketAddress;
 
 /*
@@ -21,9 +23,12 @@ public class MessageHandler {
 	 * @version 2.0
 	 */
 	private InetSocketAddress receptorNode;
+	private Metrics metrics;
+	private int idx;
 
-	public MessageHandler(InetSocketAddress receptorNode) {
+	public MessageHandler(InetSocketAddress receptorNode, Metrics metrics) {
 		this.receptorNode = receptorNode;
+		this.metrics = metrics;
 	}
 
 	/**
@@ -35,8 +40,149 @@ public class MessageHandler {
 	 * @return Message of the Gnutella Protocol v0.4
 	 */
 	public Message getMessage(DataInputStream inStream) {
+		DecodeEvent event = new DecodeEvent();
+		event.begin();
+		long start = System.nanoTime();
+		Message m = decode(inStream);
+		metrics.decodeLatency(System.nanoTime() - start);
+		metrics.bytesIn(idx);
+		if (event.shouldCommit()) {
+			event.bytes = idx;
+			event.neighbor = String.valueOf(receptorNode);
+			event.decoded = m != null;
+			if (m != null) {
+				event.guid = m.idMessageToString();
+				event.type = Metrics.typeName(m.getPayloadD());
+				event.hops = m.getHop();
+				event.ttl = m.getTtl();
+			}
+			event.commit();
+		}
+		return m;
+	}
+
+	/**
+	 * Reads a whole descriptor from the given DataInputStream, blocking until
+	 * it arrives, and constructs the Message. The payload length of the header
+	 * says how many bytes follow it, so the stream is never polled.
+	 * 
+	 * @param inStream
+	 *            DataInputStream of a connection
+	 * @return Message of the Gnutella Protocol v0.4, or null if the
+	 *         descriptor is not supported
+	 * @throws IOException
+	 *             if the connection is closed, fails or sends an invalid
+	 *             payload length
+	 */
+	public Message readMessage(DataInputStream inStream) throws IOException {
+		return getMessage(readDescriptor(inStream));
+	}
+
+	/**
+	 * Reads the bytes of a whole descriptor from the given DataInputStream,
+	 * blocking until it arrives, without decoding it
+	 * 
+	 * @param inStream
+	 *            DataInputStream of a connection
+	 * @return the header and the payload of the descriptor
+	 * @throws IOException
+	 *             if the connection is closed, fails or sends an invalid
+	 *             payload length
+	 */
+	public byte[] readDescriptor(DataInputStream inStream) throws IOException {
+		byte[] header = new byte[GnutellaConstants.HEADER_LENGTH];
+		inStream.readFully(header);
+		int payloadL = ByteBuffer.wrap(header,
+				GnutellaConstants.HEADER_LENGTH - GnutellaConstants.PLL_LENGTH,
+				GnutellaConstants.PLL_LENGTH).getInt();
+		if (payloadL < 0 || payloadL > GnutellaConstants.MAX_PAYLOAD) {
+			throw new IOException("INVALID PAYLOAD LENGTH " + payloadL);
+		}
+		byte[] descriptor = Arrays.copyOf(header,
+				GnutellaConstants.HEADER_LENGTH + payloadL);
+		inStream.readFully(descriptor, GnutellaConstants.HEADER_LENGTH,
+				payloadL);
+		return descriptor;
+	}
+
+	/**
+	 * Constructs the Message of a descriptor already read
+	 * 
+	 * @param descriptor
+	 *            the header and the payload of the descriptor
+	 * @return Message of the Gnutella Protocol v0.4, or null if the
+	 *         descriptor is not supported
+	 */
+	public Message getMessage(byte[] descriptor) {
+		return getMessage(new DataInputStream(new ByteArrayInputStream(
+				descriptor)));
+	}
+
+	/**
+	 * Reads the extensions of a result of a query hit up to the END that
+	 * closes it. The size of the GGEP extension "LF" replaces the one of the
+	 * size field; other extensions are skipped.
+	 * 
+	 * @return the index after the END, or -1 if the extensions are malformed
+	 */
+	private static int readExtensions(Byte[] stream, int j, int end,
+			long[] fileSize, int k) {
+		if (j < end && stream[j] == GnutellaConstants.GGEP_MAGIC) {
+			j++;
+			boolean last = false;
+			while (!last) {
+				if (j >= end) {
+					return -1;
+				}
+				int flags = stream[j++] & 0xFF;
+				last = (flags & GnutellaConstants.GGEP_LAST) != 0;
+				int idL = flags & GnutellaConstants.GGEP_ID_MASK;
+				if (idL == 0 || j + idL > end) {
+					return -1;
+				}
+				byte[] id = new byte[idL];
+				for (int i = 0; i < idL; i++) {
+					id[i] = stream[j++];
+				}
+				int dataL = 0;
+				for (int i = 0;; i++) {
+					if (i == 3 || j >= end) {
+						return -1;
+					}
+					int b = stream[j++] & 0xFF;
+					dataL = dataL << 6 | (b & GnutellaConstants.GGEP_LENGTH_MASK);
+					if ((b & GnutellaConstants.GGEP_LAST_LENGTH) != 0) {
+						break;
+					}
+				}
+				if (j + dataL > end) {
+					return -1;
+				}
+				int encoding = flags
+						& (GnutellaConstants.GGEP_ENCODED | GnutellaConstants.GGEP_COMPRESSED);
+				if (GnutellaConstants.GGEP_LARGE_FILE.equals(new String(id))
+						&& encoding == 0 && dataL > 0 && dataL <= 8) {
+					long size = 0;
+					for (int i = dataL - 1; i >= 0; i--) {
+						size = size << 8 | (stream[j + i] & 0xFF);
+					}
+					if (size >= 0) {
+						fileSize[k] = size;
+					}
+				}
+				j += dataL;
+			}
+		}
+		// Lo que no es GGEP se ignora hasta el fin del resultado
+		while (j < end && stream[j] != GnutellaConstants.END) {
+			j++;
+		}
+		return j < end ? j + 1 : -1;
+	}
+
+	private Message decode(DataInputStream inStream) {
 		ArrayList<Byte> message = new ArrayList<Byte>();
-		int idx = 0;
+		idx = 0;
 
 		try {
 			while (inStream.available() > 0
@@ -45,6 +191,10 @@ public class MessageHandler {
 				idx++;
 
 			}
+			if (idx < GnutellaConstants.HEADER_LENGTH) {
+				// Encabezado incompleto
+				return null;
+			}
 			/* Declaracion de lo que almacenara el header del message */
 			byte[] idMessage = new byte[GnutellaConstants.ID_LENGTH];
 			byte payloadD;
@@ -85,6 +235,9 @@ public class MessageHandler {
 					partPong.add(inStream.readByte());
 					idx++;
 				}
+				if (partPong.size() != GnutellaConstants.PONG_PLL) {
+					return null;
+				}
 				stream = new Byte[partPong.size()];
 
 				partPong.toArray(stream);
@@ -124,6 +277,10 @@ public class MessageHandler {
 					idx++;
 				}
 
+				if (partQuery.size() < GnutellaConstants.MINSPEEDL
+						+ GnutellaConstants.EOS_L) {
+					return null;
+				}
 				stream = new Byte[partQuery.size()];
 				partQuery.toArray(stream);
 				// Declaracion de donde almacenaremos los atributos del mensaje
@@ -156,6 +313,10 @@ public class MessageHandler {
 					idx++;
 				}
 
+				if (partQueryH.size() < GnutellaConstants.QUERYHIT_HEAD_L
+						+ GnutellaConstants.SERVER_ID_L) {
+					return null;
+				}
 				stream = new Byte[partQueryH.size()];
 
 				partQueryH.toArray(stream);
@@ -163,17 +324,20 @@ public class MessageHandler {
 				// pong
 				j = 0;
 				byte nHits = stream[j++];
-				
+				if (nHits < 0) {
+					return null;
+				}
+				// Los resultados terminan donde empieza el id del servent
+				int results = stream.length - GnutellaConstants.SERVER_ID_L;
+
 				byte[] portQ = new byte[GnutellaConstants.PORT_LENGTH];
 				byte[] ipQ = new byte[GnutellaConstants.IP_LENGTH];
 				byte[] speedQ = new byte[4];
 				byte[][] fIQ = new byte[nHits][4];
-				byte[][] fSQ = new byte[nHits][4];
+				long[] fSQ = new long[nHits];
 
-				int nameL = partQueryH.size() - nHits
-						* GnutellaConstants.QUERYHIT_PART_L
-						- GnutellaConstants.SERVER_ID_L;
-				byte[][] name = new byte[nHits][nameL];
+				int nameL = Math.max(0, results - GnutellaConstants.QUERYHIT_HEAD_L);
+				byte[][] name = new byte[nHits][];
 				byte[] idServent = new byte[GnutellaConstants.SERVER_ID_L];
 
 				// Llenamos cada campo con lo que habia en el stream
@@ -189,20 +353,39 @@ public class MessageHandler {
 				}
 				for (int k = 0; k < nHits; k++) {
 
+					if (j + 8 > results) {
+						return null;
+					}
 					for (i = 0; i < 4; i++) {
 						fIQ[k][i] = stream[j++];
 					}
+					// Tamano sin signo, el campo lleno puede venir con la
+					// extension "LF"
 					for (i = 0; i < 4; i++) {
-						fSQ[k][i] = stream[j++];
+						fSQ[k] = fSQ[k] << 8 | (stream[j++] & 0xFF);
 					}
 
-					for (i = 0; i < nameL; i++) {
-						if (stream[j] == GnutellaConstants.END) {
-							j++;
+					name[k] = new byte[nameL];
+					for (i = 0;; i++) {
+						if (j >= results) {
+							// Nombre sin terminar
+							return null;
+						}
+						if (stream[j] == GnutellaConstants.END
+								|| stream[j] == GnutellaConstants.EOS) {
 							break;
 						}
 						name[k][i] = stream[j++];
 					}
+					// Sin el relleno, el nombre crecia en cada salto
+					name[k] = Arrays.copyOf(name[k], i);
+					if (stream[j++] == GnutellaConstants.EOS) {
+						// Extensiones entre el fin del nombre y END
+						j = readExtensions(stream, j, results, fSQ, k);
+						if (j < 0) {
+							return null;
+						}
+					}
 
 				}
 				for (i = 0; i < GnutellaConstants.SERVER_ID_L; i++) {
@@ -218,6 +401,19 @@ public class MessageHandler {
 
 				return m;
 
+			case GnutellaConstants.ROUTE_TABLE:
+				byte[] table = new byte[inStream.available()];
+				inStream.readFully(table);
+				idx += table.length;
+				if (!RouteTableMessage.isRouteTable(table)) {
+					// Otro mensaje de fabricante que no conocemos
+					return null;
+				}
+				String[] names = RouteTableMessage.decodeNames(table);
+				return new RouteTableMessage(idMessage, ttl, hop,
+						table.length, receptorNode, names == null,
+						names == null ? new String[0] : names);
+
 			case GnutellaConstants.PUSH:
 
 			default:
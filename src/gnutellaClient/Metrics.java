@@ -0,0 +1,505 @@
+package gnutellaClient;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a Servent. Every counter is striped so
+ * the threads that report into it never lock, the queue depths are only read
+ * when the MBean is queried.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class Metrics implements MetricsMBean {
+	private static final String[] PAYLOAD_TYPES = { "PING", "PONG", "PUSH",
+			"QUERY", "QUERY_HIT", "ROUTE_TABLE", "UNKNOWN" };
+
+	private LongAdder[] received;
+	private LongAdder[] forwarded;
+	private LongAdder[] dropped;
+	private LongAdder[] duplicated;
+	private LongAdder bytesIn;
+	private LongAdder bytesOut;
+	private LongAdder wireBytesOut;
+	private LongAdder connectionsAccepted;
+	private LongAdder downloadsAccepted;
+	private LongAdder connectionsRejected;
+	private LongAdder handshakeTimeouts;
+	private LongAdder queryCacheHits;
+	private LongAdder queryCacheMisses;
+	private LongAdder uploadCacheHits;
+	private LongAdder uploadCacheMisses;
+	private LongAdder uploadsPreempted;
+	private LongAdder udpDropped;
+	private LongAdder[] policed;
+	private LongAdder ttlClamped;
+	private LongAdder floodDisconnects;
+	private LatencyHistogram decodeLatency;
+	private LatencyHistogram routingLatency;
+	private InboundScheduler pendingMessages;
+	private NeighborRegistry neighbors;
+	private QueryTracer tracer;
+	private ObjectName name;
+
+	/**
+	 * Creates a Metrics with every counter in zero
+	 */
+	public Metrics() {
+		received = newCounters();
+		forwarded = newCounters();
+		dropped = newCounters();
+		duplicated = newCounters();
+		bytesIn = new LongAdder();
+		bytesOut = new LongAdder();
+		wireBytesOut = new LongAdder();
+		connectionsAccepted = new LongAdder();
+		downloadsAccepted = new LongAdder();
+		connectionsRejected = new LongAdder();
+		handshakeTimeouts = new LongAdder();
+		queryCacheHits = new LongAdder();
+		queryCacheMisses = new LongAdder();
+		uploadCacheHits = new LongAdder();
+		uploadCacheMisses = new LongAdder();
+		uploadsPreempted = new LongAdder();
+		udpDropped = new LongAdder();
+		policed = newCounters();
+		ttlClamped = new LongAdder();
+		floodDisconnects = new LongAdder();
+		decodeLatency = new LatencyHistogram();
+		routingLatency = new LatencyHistogram();
+	}
+
+	private static LongAdder[] newCounters() {
+		LongAdder[] counters = new LongAdder[PAYLOAD_TYPES.length];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+		return counters;
+	}
+
+	private static long[] sum(LongAdder[] counters) {
+		long[] values = new long[counters.length];
+		for (int i = 0; i < counters.length; i++) {
+			values[i] = counters[i].sum();
+		}
+		return values;
+	}
+
+	/**
+	 * Returns the number of payload types that have counters
+	 *
+	 * @return the length of the arrays of counters
+	 */
+	public static int typeCount() {
+		return PAYLOAD_TYPES.length;
+	}
+
+	/**
+	 * Returns the index of the counters of the given payload descriptor
+	 *
+	 * @param payloadD
+	 *            the payload descriptor
+	 * @return the index
+	 */
+	public static int typeIndex(byte payloadD) {
+		switch (payloadD) {
+		case GnutellaConstants.PING:
+			return 0;
+		case GnutellaConstants.PONG:
+			return 1;
+		case GnutellaConstants.PUSH:
+			return 2;
+		case GnutellaConstants.QUERY:
+			return 3;
+		case GnutellaConstants.QUERY_HIT:
+			return 4;
+		case GnutellaConstants.ROUTE_TABLE:
+			return 5;
+		default:
+			return 6;
+		}
+	}
+
+	/**
+	 * Returns the name of the given payload descriptor
+	 *
+	 * @param payloadD
+	 *            the payload descriptor
+	 * @return the name, as in getPayloadTypes
+	 */
+	public static String typeName(byte payloadD) {
+		return PAYLOAD_TYPES[typeIndex(payloadD)];
+	}
+
+	/**
+	 * Sets the queues whose depth is reported
+	 *
+	 * @param pendingMessages
+	 *            Queues of each neighbor which contain every message that needs
+	 *            to be process by the Servent
+	 * @param neighbors
+	 *            Registry of the connections to its neighbors nodes
+	 */
+	public void watch(InboundScheduler pendingMessages,
+			NeighborRegistry neighbors) {
+		this.pendingMessages = pendingMessages;
+		this.neighbors = neighbors;
+	}
+
+	/**
+	 * Sets the tracer whose queries are summarized
+	 *
+	 * @param tracer
+	 *            QueryTracer of the Servent
+	 */
+	public void watch(QueryTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Registers this Metrics in the platform MBean server
+	 *
+	 * @param port
+	 *            the port of the Servent, used to name the MBean
+	 */
+	public void register(int port) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("gnutellaClient:type=Servent,port=" + port);
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			System.err.println(getClass() + ".register(): " + e.getClass()
+					+ e.getMessage());
+			name = null;
+		}
+	}
+
+	/**
+	 * Removes this Metrics from the platform MBean server
+	 */
+	public void unregister() {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			System.err.println(getClass() + ".unregister(): " + e.getClass()
+					+ e.getMessage());
+		}
+		name = null;
+	}
+
+	public void received(byte payloadD) {
+		received[typeIndex(payloadD)].increment();
+	}
+
+	public void forwarded(byte payloadD) {
+		forwarded[typeIndex(payloadD)].increment();
+	}
+
+	public void dropped(byte payloadD) {
+		dropped[typeIndex(payloadD)].increment();
+	}
+
+	public void undecodable() {
+		dropped[PAYLOAD_TYPES.length - 1].increment();
+	}
+
+	public void duplicated(byte payloadD) {
+		duplicated[typeIndex(payloadD)].increment();
+	}
+
+	public void bytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	public void bytesOut(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	public void wireBytesOut(long bytes) {
+		wireBytesOut.add(bytes);
+	}
+
+	public void connectionAccepted() {
+		connectionsAccepted.increment();
+	}
+
+	public void downloadAccepted() {
+		downloadsAccepted.increment();
+	}
+
+	public void connectionRejected() {
+		connectionsRejected.increment();
+	}
+
+	public void handshakeTimeout() {
+		handshakeTimeouts.increment();
+	}
+
+	public void queryCacheHit() {
+		queryCacheHits.increment();
+	}
+
+	public void queryCacheMiss() {
+		queryCacheMisses.increment();
+	}
+
+	public void uploadCacheHit() {
+		uploadCacheHits.increment();
+	}
+
+	public void uploadCacheMiss() {
+		uploadCacheMisses.increment();
+	}
+
+	public void uploadPreempted() {
+		uploadsPreempted.increment();
+	}
+
+	public void udpDropped() {
+		udpDropped.increment();
+	}
+
+	public void policed(byte payloadD) {
+		policed[typeIndex(payloadD)].increment();
+	}
+
+	public void ttlClamped() {
+		ttlClamped.increment();
+	}
+
+	public void floodDisconnect() {
+		floodDisconnects.increment();
+	}
+
+	public void decodeLatency(long nanos) {
+		decodeLatency.record(nanos);
+	}
+
+	public void routingLatency(long nanos) {
+		routingLatency.record(nanos);
+	}
+
+	public LatencyHistogram getDecodeLatency() {
+		return decodeLatency;
+	}
+
+	public LatencyHistogram getRoutingLatency() {
+		return routingLatency;
+	}
+
+	@Override
+	public String[] getPayloadTypes() {
+		return PAYLOAD_TYPES.clone();
+	}
+
+	@Override
+	public long[] getReceived() {
+		return sum(received);
+	}
+
+	@Override
+	public long[] getForwarded() {
+		return sum(forwarded);
+	}
+
+	@Override
+	public long[] getDropped() {
+		return sum(dropped);
+	}
+
+	@Override
+	public long[] getDuplicated() {
+		return sum(duplicated);
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getWireBytesOut() {
+		return wireBytesOut.sum();
+	}
+
+	@Override
+	public long getConnectionsAccepted() {
+		return connectionsAccepted.sum();
+	}
+
+	@Override
+	public long getDownloadsAccepted() {
+		return downloadsAccepted.sum();
+	}
+
+	@Override
+	public long getConnectionsRejected() {
+		return connectionsRejected.sum();
+	}
+
+	@Override
+	public long getHandshakeTimeouts() {
+		return handshakeTimeouts.sum();
+	}
+
+	@Override
+	public long getQueryCacheHits() {
+		return queryCacheHits.sum();
+	}
+
+	@Override
+	public long getQueryCacheMisses() {
+		return queryCacheMisses.sum();
+	}
+
+	@Override
+	public long getUploadCacheHits() {
+		return uploadCacheHits.sum();
+	}
+
+	@Override
+	public long getUploadCacheMisses() {
+		return uploadCacheMisses.sum();
+	}
+
+	@Override
+	public long getUploadsPreempted() {
+		return uploadsPreempted.sum();
+	}
+
+	@Override
+	public long getUdpDropped() {
+		return udpDropped.sum();
+	}
+
+	@Override
+	public long[] getPoliced() {
+		return sum(policed);
+	}
+
+	@Override
+	public long getTtlClamped() {
+		return ttlClamped.sum();
+	}
+
+	@Override
+	public long getFloodDisconnects() {
+		return floodDisconnects.sum();
+	}
+
+	@Override
+	public int getPendingMessages() {
+		return pendingMessages == null ? 0 : pendingMessages.size();
+	}
+
+	@Override
+	public String[] getPendingByNeighbor() {
+		return pendingMessages == null ? new String[0] : pendingMessages
+				.getDepths();
+	}
+
+	@Override
+	public String[] getMessagesToSend() {
+		ArrayList<String> depths = new ArrayList<String>();
+		if (neighbors != null) {
+			for (ServentThread sT : neighbors.getSnapshot()) {
+				depths.add(sT.getKey() + "=" + sT.getPendingToSend());
+			}
+		}
+		return depths.toArray(new String[depths.size()]);
+	}
+
+	@Override
+	public long getDecodeCount() {
+		return decodeLatency.getCount();
+	}
+
+	@Override
+	public double getDecodeMeanMicros() {
+		return decodeLatency.getMeanMicros();
+	}
+
+	@Override
+	public long getDecodeP50Micros() {
+		return decodeLatency.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getDecodeP99Micros() {
+		return decodeLatency.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getRoutingCount() {
+		return routingLatency.getCount();
+	}
+
+	@Override
+	public double getRoutingMeanMicros() {
+		return routingLatency.getMeanMicros();
+	}
+
+	@Override
+	public long getRoutingP50Micros() {
+		return routingLatency.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getRoutingP99Micros() {
+		return routingLatency.getPercentileMicros(99);
+	}
+
+	@Override
+	public int getTracedQueries() {
+		return tracer == null ? 0 : tracer.getTraces().length;
+	}
+
+	@Override
+	public int getAnsweredQueries() {
+		return tracer == null ? 0 : tracer.getAnswered();
+	}
+
+	@Override
+	public long getFirstHitP50Micros() {
+		return tracer == null ? 0 : tracer.getTimeToFirstHit()
+				.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getFirstHitP99Micros() {
+		return tracer == null ? 0 : tracer.getTimeToFirstHit()
+				.getPercentileMicros(99);
+	}
+
+	@Override
+	public long getLastHitP50Micros() {
+		return tracer == null ? 0 : tracer.getTimeToLastHit()
+				.getPercentileMicros(50);
+	}
+
+	@Override
+	public long getLastHitP99Micros() {
+		return tracer == null ? 0 : tracer.getTimeToLastHit()
+				.getPercentileMicros(99);
+	}
+
+	@Override
+	public long[] getHitsByHop() {
+		return tracer == null ? new long[0] : tracer.getHitsByHop();
+	}
+}
@@ -0,0 +1,137 @@
+package gnutellaClient;
+
+/**
+ * Management interface of the Metrics of a Servent, exported through the
+ * platform MBean server
+ * 
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ * 
+ */
+public interface MetricsMBean {
+
+	/**
+	 * Returns the names of the payload types, in the same order as the
+	 * counters
+	 * 
+	 * @return the names of the payload types
+	 */
+	public String[] getPayloadTypes();
+
+	public long[] getReceived();
+
+	public long[] getForwarded();
+
+	public long[] getDropped();
+
+	public long[] getDuplicated();
+
+	public long getBytesIn();
+
+	public long getBytesOut();
+
+	/**
+	 * Returns the bytes of descriptors written on the sockets of the
+	 * neighbors, after compression on the connections that negotiated it
+	 * 
+	 * @return bytes written
+	 */
+	public long getWireBytesOut();
+
+	public long getConnectionsAccepted();
+
+	public long getDownloadsAccepted();
+
+	public long getConnectionsRejected();
+
+	public long getHandshakeTimeouts();
+
+	public long getQueryCacheHits();
+
+	public long getQueryCacheMisses();
+
+	public long getUploadCacheHits();
+
+	public long getUploadCacheMisses();
+
+	/**
+	 * Returns the uploads closed because they were sending below the minimum
+	 * rate while other requesters waited
+	 * 
+	 * @return number of uploads pre-empted
+	 */
+	public long getUploadsPreempted();
+
+	public long getUdpDropped();
+
+	/**
+	 * Returns the descriptors dropped for going over the rate of their
+	 * neighbor or through too many hops, by payload type
+	 * 
+	 * @return the counters, in the order of getPayloadTypes
+	 */
+	public long[] getPoliced();
+
+	public long getTtlClamped();
+
+	public long getFloodDisconnects();
+
+	public int getPendingMessages();
+
+	/**
+	 * Returns the number of received messages waiting to be routed of every
+	 * neighbor in format "address=depth"
+	 * 
+	 * @return the depths of the queues
+	 */
+	public String[] getPendingByNeighbor();
+
+	/**
+	 * Returns the depth of the queue of messages to send of every neighbor in
+	 * format "address=depth"
+	 * 
+	 * @return the depths of the queues
+	 */
+	public String[] getMessagesToSend();
+
+	public long getDecodeCount();
+
+	public double getDecodeMeanMicros();
+
+	public long getDecodeP50Micros();
+
+	public long getDecodeP99Micros();
+
+	public long getRoutingCount();
+
+	public double getRoutingMeanMicros();
+
+	public long getRoutingP50Micros();
+
+	public long getRoutingP99Micros();
+
+	/**
+	 * Returns the number of our own queries in the ring of the QueryTracer
+	 * 
+	 * @return number of queries traced
+	 */
+	public int getTracedQueries();
+
+	public int getAnsweredQueries();
+
+	public long getFirstHitP50Micros();
+
+	public long getFirstHitP99Micros();
+
+	public long getLastHitP50Micros();
+
+	public long getLastHitP99Micros();
+
+	/**
+	 * Returns the hits of our own queries by the number of hops they
+	 * travelled
+	 * 
+	 * @return the counts, index i holds the hits of i hops
+	 */
+	public long[] getHitsByHop();
+}
@@ -0,0 +1,122 @@
+package gnutellaClient;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The connections of a Servent with its neighbors. Besides the lookup by the
+ * InetSocketAddress bound with each connection, the registry publishes an
+ * array with every neighbor that is replaced each time a neighbor comes or
+ * goes, so the Client walks it to forward a descriptor without locking,
+ * looking up or allocating anything. The registry listens to every
+ * connection it holds and removes it as soon as it is closed.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class NeighborRegistry extends ServentThread.Adapter {
+	private static final ServentThread[] EMPTY = new ServentThread[0];
+
+	private ConcurrentHashMap<InetSocketAddress, ServentThread> neighbors;
+	private volatile ServentThread[] snapshot;
+
+	/**
+	 * Creates an empty NeighborRegistry
+	 */
+	public NeighborRegistry() {
+		neighbors = new ConcurrentHashMap<InetSocketAddress, ServentThread>();
+		snapshot = EMPTY;
+	}
+
+	/**
+	 * Adds a connection, unless there is already one bound with the same
+	 * address
+	 *
+	 * @param key
+	 *            InetSocketAddress bound with the connection, the one its
+	 *            descriptors are received from
+	 * @param neighbor
+	 *            the connection
+	 * @return true if it was added
+	 */
+	public boolean add(InetSocketAddress key, ServentThread neighbor) {
+		synchronized (this) {
+			if (neighbors.putIfAbsent(key, neighbor) != null) {
+				return false;
+			}
+			neighbor.setKey(key);
+			publish();
+		}
+		// Si ya se cerro sale en este momento
+		neighbor.addListener(this);
+		return neighbors.get(key) == neighbor;
+	}
+
+	/**
+	 * Removes a connection if it is still the one bound with its address
+	 *
+	 * @param key
+	 *            InetSocketAddress bound with the connection
+	 * @param neighbor
+	 *            the connection
+	 * @return true if it was removed
+	 */
+	public synchronized boolean remove(InetSocketAddress key,
+			ServentThread neighbor) {
+		if (!neighbors.remove(key, neighbor)) {
+			return false;
+		}
+		publish();
+		return true;
+	}
+
+	/**
+	 * Returns the connection bound with an address
+	 *
+	 * @param key
+	 *            the InetSocketAddress
+	 * @return the connection, or null if there is none
+	 */
+	public ServentThread get(InetSocketAddress key) {
+		return key == null ? null : neighbors.get(key);
+	}
+
+	/**
+	 * Returns every connection at the moment of the last change. The array is
+	 * shared and must not be modified.
+	 *
+	 * @return the connections
+	 */
+	public ServentThread[] getSnapshot() {
+		return snapshot;
+	}
+
+	public int size() {
+		return snapshot.length;
+	}
+
+	/**
+	 * Closes every connection, which leave the registry
+	 */
+	public void closeAll() {
+		for (ServentThread sT : snapshot) {
+			sT.close();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * gnutellaClient.ServentThread.Adapter#closed(gnutellaClient.ServentThread)
+	 */
+	@Override
+	public void closed(ServentThread sT) {
+		remove(sT.getKey(), sT);
+	}
+
+	private void publish() {
+		snapshot = neighbors.values().toArray(EMPTY);
+	}
+}
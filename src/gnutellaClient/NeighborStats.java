@@ -0,0 +1,177 @@
+package gnutellaClient;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures of the quality of a connection with a neighbor: descriptors
+ * received, descriptors that could not be decoded, queries forwarded to it,
+ * query hits that came through it and the round trip time between our own
+ * pings and the pong the neighbor answers to each of them.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class NeighborStats {
+	private static final double RTT_WEIGHT = 0.25;
+
+	/**
+	 * A ping of ours waiting for the pong of the neighbor
+	 */
+	private static class Probe {
+		private String id;
+		private long sentAt;
+
+		private Probe(String id, long sentAt) {
+			this.id = id;
+			this.sentAt = sentAt;
+		}
+	}
+
+	private long connectedAt;
+	private LongAdder descriptors;
+	private LongAdder errors;
+	private LongAdder hits;
+	private LongAdder queries;
+	private AtomicReference<Probe> probe;
+	private volatile double rttMillis;
+
+	/**
+	 * Creates the NeighborStats of a new connection
+	 */
+	public NeighborStats() {
+		connectedAt = System.currentTimeMillis();
+		descriptors = new LongAdder();
+		errors = new LongAdder();
+		hits = new LongAdder();
+		queries = new LongAdder();
+		probe = new AtomicReference<Probe>();
+		rttMillis = -1;
+	}
+
+	public void descriptor() {
+		descriptors.increment();
+	}
+
+	public void error() {
+		errors.increment();
+	}
+
+	public void hit() {
+		hits.increment();
+	}
+
+	public void queryForwarded() {
+		queries.increment();
+	}
+
+	/**
+	 * Marks that one of our own pings was written on the connection. Only the
+	 * last ping is timed, a pong that arrives after the next ping is ignored.
+	 *
+	 * @param id
+	 *            MessageID of the ping
+	 */
+	public void pingSent(String id) {
+		probe.set(new Probe(id, System.nanoTime()));
+	}
+
+	/**
+	 * Marks that the neighbor answered a ping with its own pong. The round
+	 * trip time is measured only if the pong answers the timed ping.
+	 *
+	 * @param id
+	 *            MessageID of the pong
+	 */
+	public void pongReceived(String id) {
+		Probe p = probe.get();
+		if (p == null || !p.id.equals(id) || !probe.compareAndSet(p, null)) {
+			return;
+		}
+		double sample = (System.nanoTime() - p.sentAt) / 1e6;
+		double rtt = rttMillis;
+		// Promedio movil para que un pong lento no hunda al vecino
+		rttMillis = rtt < 0 ? sample : rtt + RTT_WEIGHT * (sample - rtt);
+	}
+
+	/**
+	 * Returns the time when the connection was created
+	 *
+	 * @return time in milliseconds
+	 */
+	public long getConnectedAt() {
+		return connectedAt;
+	}
+
+	public long getDescriptors() {
+		return descriptors.sum();
+	}
+
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getQueriesForwarded() {
+		return queries.sum();
+	}
+
+	/**
+	 * Returns the query hits received per query forwarded to the neighbor. A
+	 * neighbor that has not received queries yet has a yield of 1/2.
+	 *
+	 * @return the yield
+	 */
+	public double getYield() {
+		return (getHits() + 1) / (double) (getQueriesForwarded() + 2);
+	}
+
+	/**
+	 * Returns the order in which queries are forwarded to the neighbor, the
+	 * higher the sooner. Grows with the yield and falls with the round trip
+	 * time.
+	 *
+	 * @return the priority
+	 */
+	public double getQueryPriority() {
+		double rtt = rttMillis < 0 ? GnutellaConstants.DEFAULT_RTT
+				: rttMillis;
+		return getYield() / (1 + rtt / 100);
+	}
+
+	/**
+	 * Returns the round trip time of the pings sent on the connection
+	 *
+	 * @return milliseconds, or -1 if no pong has been received yet
+	 */
+	public double getRttMillis() {
+		return rttMillis;
+	}
+
+	/**
+	 * Returns how useful the neighbor is, the higher the better. Grows with
+	 * the query hits and the descriptors per second it sends and falls with
+	 * its round trip time and its rate of descriptors that could not be
+	 * decoded. A neighbor without a measured round trip time is given
+	 * GnutellaConstants.DEFAULT_RTT.
+	 *
+	 * @param now
+	 *            current time in milliseconds
+	 * @return the score
+	 */
+	public double getScore(long now) {
+		double seconds = Math.max(1, (now - connectedAt) / 1000.0);
+		long received = getDescriptors();
+		long failed = getErrors();
+		double throughput = received / seconds;
+		double errorRate = failed / (double) (received + failed + 1);
+		double rtt = rttMillis < 0 ? GnutellaConstants.DEFAULT_RTT
+				: rttMillis;
+		return (1 + getHits()) * Math.log1p(1 + throughput)
+				* (1 - errorRate) / (1 + rtt / 100);
+	}
+}
@@ -0,0 +1,189 @@
+package gnutellaClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of the query hits a Client answers with, so a search string that
+ * arrives again is answered without listing the shared directory or encoding
+ * the payload of the hit again. Holds the last
+ * GnutellaConstants.QUERY_CACHE_SIZE search strings used, also the ones
+ * without hits, and forgets all of them when a file of the shared directory
+ * is created, modified or deleted. The directory is watched through the file
+ * system and polled every GnutellaConstants.LIBRARY_POLL_INTERVAL
+ * milliseconds on the timer, so a change takes at most that long to be seen.
+ * If the directory can not be watched the cache keeps nothing.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class QueryHitCache {
+	private LinkedHashMap<String, QueryHitMessage> hits;
+	private WatchService watcher;
+	private HashedWheelTimer timer;
+	private long generation;
+	private volatile boolean working;
+
+	/**
+	 * Creates a QueryHitCache and starts watching the directory
+	 *
+	 * @param directory
+	 *            the shared directory
+	 * @param timer
+	 *            Timer of the Servent, polls the changes of the directory. If
+	 *            null the cache keeps nothing.
+	 */
+	public QueryHitCache(File directory, HashedWheelTimer timer) {
+		hits = new LinkedHashMap<String, QueryHitMessage>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, QueryHitMessage> eldest) {
+				return size() > GnutellaConstants.QUERY_CACHE_SIZE;
+			}
+		};
+		this.timer = timer;
+		if (timer == null || directory == null) {
+			return;
+		}
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			directory.toPath().register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		} catch (IOException e) {
+			System.err.println(getClass() + ".QueryHitCache(): "
+					+ e.getClass() + e.getMessage());
+			close();
+			return;
+		}
+		working = true;
+		schedulePoll();
+	}
+
+	/**
+	 * Returns the search string in the form used as key of the cache and to
+	 * compare it with the names of the files. Names that look the same are
+	 * written with the same characters no matter the system that wrote them.
+	 *
+	 * @param searchCriteria
+	 *            the search string of a query, or a file name
+	 * @return the string in Unicode normalization form C
+	 */
+	public static String normalize(String searchCriteria) {
+		return Normalizer.normalize(searchCriteria, Normalizer.Form.NFC);
+	}
+
+	/**
+	 * Returns the hit that answers the given search string
+	 *
+	 * @param key
+	 *            the normalized search string
+	 * @return the hit, with no files if the directory has none that matches,
+	 *         or null if it is not in the cache
+	 */
+	public synchronized QueryHitMessage get(String key) {
+		return hits.get(key);
+	}
+
+	/**
+	 * Returns the version of the directory, it changes every time the cache
+	 * is emptied. Must be read before listing the directory and given back to
+	 * put, so a hit built while the directory changed is not kept.
+	 *
+	 * @return the version of the directory
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Returns true while the directory is watched. Only then the generation
+	 * changes every time the directory does.
+	 *
+	 * @return true if the directory is watched
+	 */
+	public boolean getWatching() {
+		return working;
+	}
+
+	/**
+	 * Keeps the hit that answers the given search string
+	 *
+	 * @param key
+	 *            the normalized search string
+	 * @param hit
+	 *            the hit, with no files if the directory has none that matches
+	 * @param generation
+	 *            version of the directory when it was listed to build the hit
+	 */
+	public synchronized void put(String key, QueryHitMessage hit,
+			long generation) {
+		if (working && generation == this.generation) {
+			hits.put(key, hit);
+		}
+	}
+
+	/**
+	 * Forgets every hit
+	 */
+	public synchronized void clear() {
+		generation++;
+		hits.clear();
+	}
+
+	/**
+	 * Stops watching the directory and forgets every hit
+	 */
+	public void close() {
+		working = false;
+		clear();
+		if (watcher != null) {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private void schedulePoll() {
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (working) {
+					poll();
+					schedulePoll();
+				}
+			}
+		}, GnutellaConstants.LIBRARY_POLL_INTERVAL);
+	}
+
+	private void poll() {
+		WatchKey key;
+		try {
+			key = watcher.poll();
+		} catch (RuntimeException e) {
+			// El watcher se cerro
+			return;
+		}
+		if (key == null) {
+			return;
+		}
+		key.pollEvents();
+		clear();
+		if (!key.reset()) {
+			// El directorio ya no existe, no se puede seguir cacheando
+			close();
+		}
+	}
+}
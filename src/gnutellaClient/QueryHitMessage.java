@@ -3,6 +3,7 @@ import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Class that defines a QueryHitMessage defined in Gnutella Protocol v0.4. The
@@ -20,9 +21,10 @@ public class QueryHitMessage extends Message {
 	private InetAddress myIpAddress;
 	private BigInteger speed;
 	private BigInteger fileIndex[];
-	private BigInteger fileSize[];
+	private long fileSize[];
 	private String fileName[];
 	private byte[] idServent;
+	private volatile byte[] payload;
 
 	/**
 	 * Creates a QueryHitMessage with the specified idMessage, ttl, hop, payload
@@ -73,7 +75,7 @@ public class QueryHitMessage extends Message {
 	public QueryHitMessage(byte[] idMessage, byte ttl, byte hop, int paytloadL,
 			InetSocketAddress receptorNode, byte numberOfHits, short port,
 			InetAddress myIpAddress, int speed, int fileIndex[],
-			int fileSize[], String fileName[], byte[] idServent) {
+			long fileSize[], String fileName[], byte[] idServent) {
 		super(idMessage, GnutellaConstants.QUERY_HIT, ttl, hop, paytloadL,
 				receptorNode);
 
@@ -86,13 +88,7 @@ public class QueryHitMessage extends Message {
 		for (int a : fileIndex) {
 			this.fileIndex[i++] = new BigInteger(a + "");
 		}
-		this.fileSize = new BigInteger[numberOfHits];
-		i = 0;
-		
-
-		for (int a : fileSize) {
-			this.fileSize[i++] = new BigInteger(a + "");
-		}
+		this.fileSize = Arrays.copyOf(fileSize, numberOfHits);
 
 		this.fileName = fileName;
 		this.idServent = idServent;
@@ -147,7 +143,7 @@ public class QueryHitMessage extends Message {
 	public QueryHitMessage(byte[] idMessage, byte ttl, byte hop, int paytloadL,
 			InetSocketAddress receptorNode, byte numberOfHits, byte[] port,
 			InetAddress myIpAddress, byte[] speed, byte[][] fileIndex,
-			byte[][] fileSize, byte[][] fileName, byte[] idServent) {
+			long[] fileSize, byte[][] fileName, byte[] idServent) {
 		super(idMessage, GnutellaConstants.QUERY_HIT, ttl, hop, paytloadL,
 				receptorNode);
 
@@ -156,15 +152,13 @@ public class QueryHitMessage extends Message {
 		this.myIpAddress = myIpAddress;
 		this.speed = new BigInteger(speed);
 		this.fileIndex = new BigInteger[numberOfHits];
-		this.fileSize = new BigInteger[numberOfHits];
+		this.fileSize = Arrays.copyOf(fileSize, numberOfHits);
 		this.fileName = new String[numberOfHits];
 
 		for (int k = 0; k < numberOfHits; k++) {
 
 			this.fileIndex[k] = new BigInteger(fileIndex[k]);
 
-			this.fileSize[k] = new BigInteger(fileSize[k]);
-
 			this.fileName[k] = new String(fileName[k]);
 
 		}
@@ -173,12 +167,54 @@ public class QueryHitMessage extends Message {
 
 	}
 
+	/**
+	 * Creates a QueryHitMessage with the same results as another one that
+	 * answers a different query. The payload encoded by the other one is
+	 * reused, only the header is encoded again.
+	 * 
+	 * @param idMessage
+	 *            The MessageID of the query this hit answers
+	 * @param hit
+	 *            A QueryHitMessage created by this servent
+	 */
+	public QueryHitMessage(byte[] idMessage, QueryHitMessage hit) {
+		super(idMessage, GnutellaConstants.QUERY_HIT,
+				GnutellaConstants.DEFAULT_TTL, (byte) 0, hit.getPayloadL(),
+				hit.getReceptorNode());
+		this.numberOfHits = hit.numberOfHits;
+		this.port = hit.port;
+		this.myIpAddress = hit.myIpAddress;
+		this.speed = hit.speed;
+		this.fileIndex = hit.fileIndex;
+		this.fileSize = hit.fileSize;
+		this.fileName = hit.fileName;
+		this.idServent = hit.idServent;
+		hit.toByteArray();
+		this.payload = hit.payload;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
 	 * @see Message#toByteArray()
 	 */
 	public byte[] toByteArray() {
+		byte[] header = super.toByteArray();
+		byte[] encoded = payload;
+		if (encoded != null) {
+			// Solo cambia el encabezado, el payload ya esta codificado
+			byte queryHit[] = Arrays.copyOf(header, header.length
+					+ encoded.length);
+			System.arraycopy(encoded, 0, queryHit, header.length,
+					encoded.length);
+			return withPayloadLength(queryHit);
+		}
+		byte queryHit[] = encode(header);
+		payload = Arrays.copyOfRange(queryHit, header.length, queryHit.length);
+		return queryHit;
+	}
+
+	private byte[] encode(byte[] superTmp) {
 		int totalLen = 0;
 		totalLen += GnutellaConstants.HEADER_LENGTH;
 		totalLen += numberOfHits * GnutellaConstants.QUERYHIT_PART_L;
@@ -188,9 +224,15 @@ public class QueryHitMessage extends Message {
 		for (String tmp : fileName) {
 			totalLen += tmp.length();
 		}
+		byte[][] extensions = new byte[numberOfHits][];
+		for (int k = 0; k < numberOfHits; k++) {
+			if (fileSize[k] >= GnutellaConstants.MAX_HIT_SIZE) {
+				extensions[k] = largeFile(fileSize[k]);
+				totalLen += extensions[k].length;
+			}
+		}
 		int i = 0;
 		byte queryHit[] = new byte[totalLen];
-		byte superTmp[] = super.toByteArray();
 		for (byte a : superTmp) {
 			queryHit[i++] = a;
 		}
@@ -211,7 +253,6 @@ public class QueryHitMessage extends Message {
 		int speedL = speed.toByteArray().length;
 		int tmpL = 4 - speedL;
 		int j = 0;
-		byte popo[] = new byte[4];
 		while (j < tmpL) {
 			queryHit[i] = 0;
 			
@@ -241,24 +282,19 @@ public class QueryHitMessage extends Message {
 			}
 		
 
-			int fileSizeL = fileSize[k].toByteArray().length;
-			tmpL = 4 - fileSizeL;
-			j = 0;
-
-			while (j < tmpL) {
-				queryHit[i++] = 0;
-				
-				j++;
-			}
-
-			for (byte a : fileSize[k].toByteArray()) {
-				queryHit[i++] = a;
-				popo[j++] = a;
-			}
+			// El campo es de 4 bytes sin signo, un archivo mas grande lleva
+			// el campo lleno y su tamano en la extension "LF" del nombre
+			i = putBytes(queryHit, i,
+					Math.min(fileSize[k], GnutellaConstants.MAX_HIT_SIZE), 4);
 			
 			for (char c : fileName[k].toCharArray()) {
 				queryHit[i++] = (byte) c;
 			}
+			if (extensions[k] != null) {
+				System.arraycopy(extensions[k], 0, queryHit, i,
+						extensions[k].length);
+				i += extensions[k].length;
+			}
 			queryHit[i++] = GnutellaConstants.END;
 		}
 
@@ -266,8 +302,44 @@ public class QueryHitMessage extends Message {
 			queryHit[i++] = a;
 		}
 
-		return queryHit;
+		return withPayloadLength(queryHit);
+
+	}
 
+	/**
+	 * Returns the extensions of a file too large for the size field: the nul
+	 * that ends the name and a GGEP block with the extension "LF", whose data
+	 * is the size in little endian order without the high zero bytes. The END
+	 * that follows closes the result, as it does without extensions.
+	 */
+	private static byte[] largeFile(long size) {
+		int dataL = (64 - Long.numberOfLeadingZeros(size) + 7) / 8;
+		byte[] id = GnutellaConstants.GGEP_LARGE_FILE.getBytes();
+		byte[] b = new byte[4 + id.length + dataL];
+		int i = 0;
+		b[i++] = GnutellaConstants.EOS;
+		b[i++] = GnutellaConstants.GGEP_MAGIC;
+		b[i++] = (byte) (GnutellaConstants.GGEP_LAST | id.length);
+		for (byte c : id) {
+			b[i++] = c;
+		}
+		b[i++] = (byte) (GnutellaConstants.GGEP_LAST_LENGTH | dataL);
+		for (int k = 0; k < dataL; k++) {
+			b[i++] = (byte) (size >>> 8 * k);
+		}
+		return b;
+	}
+
+	/**
+	 * Writes the lowest bytes of a value in big endian order
+	 * 
+	 * @return the index after the last byte written
+	 */
+	private static int putBytes(byte[] b, int i, long value, int length) {
+		for (int shift = 8 * (length - 1); shift >= 0; shift -= 8) {
+			b[i++] = (byte) (value >>> shift);
+		}
+		return i;
 	}
 
 	/**
@@ -325,13 +397,8 @@ public class QueryHitMessage extends Message {
 	 * 
 	 * @return the file size
 	 */
-	public int[] getFileSize() {
-		int fileSize[] = new int[numberOfHits];
-		int i = 0;
-		for (BigInteger a : this.fileSize) {
-			fileSize[i++] = a.intValue();
-		}
-		return fileSize;
+	public long[] getFileSize() {
+		return fileSize.clone();
 
 	}
 
@@ -378,18 +445,7 @@ public class QueryHitMessage extends Message {
 				query += a;
 			}
 			query += "|";
-			int fileSizeL = fileSize[k].toByteArray().length;
-			tmpL = 4 - fileSizeL;
-			j = 0;
-
-			while (j < tmpL) {
-				query += 0;
-				j++;
-			}
-
-			for (byte a : fileSize[k].toByteArray()) {
-				query += a;
-			}
+			query += fileSize[k];
 			query += "|";
 			for (char c : fileName[k].toCharArray()) {
 				query += c;
@@ -163,6 +163,6 @@ public class QueryMessage extends Message {
 			query[i++] = (byte) c;
 		}
 		query[i++] = GnutellaConstants.EOS;
-		return query;
+		return withPayloadLength(query);
 	}
 }
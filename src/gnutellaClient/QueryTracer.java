@@ -0,0 +1,295 @@
+package gnutellaClient;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Traces the queries issued by a Servent: when each one was sent, when its
+ * first and its last hit arrived, how many hops every hit travelled and which
+ * neighbors or hosts returned hits. The last GnutellaConstants.QUERY_TRACE_RING
+ * queries are kept in a ring, a new query overwrites the oldest one and the
+ * hits of a query that left the ring are not traced anymore.
+ *
+ * The summaries are computed from the queries in the ring when they are
+ * asked for, so they describe the recent traffic and not the whole life of
+ * the Servent.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class QueryTracer {
+
+	/**
+	 * Trace of one query issued by this Servent
+	 */
+	public static class Trace {
+		private String id;
+		private String searchCriteria;
+		private long issuedAt;
+		private long issuedNanos;
+		private long firstHitNanos;
+		private long lastHitNanos;
+		private int hits;
+		private int files;
+		private int[] hitsByHop;
+		private LinkedHashSet<InetSocketAddress> sources;
+
+		private Trace(String id, String searchCriteria) {
+			this.id = id;
+			this.searchCriteria = searchCriteria;
+			issuedAt = System.currentTimeMillis();
+			issuedNanos = System.nanoTime();
+			hitsByHop = new int[GnutellaConstants.MAX_TTL + 1];
+			sources = new LinkedHashSet<InetSocketAddress>();
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getSearchCriteria() {
+			return searchCriteria;
+		}
+
+		/**
+		 * Returns the time in milliseconds when the query was sent
+		 *
+		 * @return the time the query was sent
+		 */
+		public long getIssuedAt() {
+			return issuedAt;
+		}
+
+		/**
+		 * Returns the time from the query to its first hit
+		 *
+		 * @return the time in nanoseconds, -1 if no hit arrived
+		 */
+		public synchronized long getTimeToFirstHit() {
+			return hits == 0 ? -1 : firstHitNanos - issuedNanos;
+		}
+
+		/**
+		 * Returns the time from the query to its last hit so far
+		 *
+		 * @return the time in nanoseconds, -1 if no hit arrived
+		 */
+		public synchronized long getTimeToLastHit() {
+			return hits == 0 ? -1 : lastHitNanos - issuedNanos;
+		}
+
+		public synchronized int getHits() {
+			return hits;
+		}
+
+		/**
+		 * Returns the number of files of all the hits
+		 *
+		 * @return number of files
+		 */
+		public synchronized int getFiles() {
+			return files;
+		}
+
+		/**
+		 * Returns the number of hits that travelled each number of hops
+		 *
+		 * @return the counts, index i holds the hits of i hops
+		 */
+		public synchronized int[] getHitsByHop() {
+			return hitsByHop.clone();
+		}
+
+		/**
+		 * Returns the neighbors, or hosts for the queries sent in datagrams,
+		 * from which hits arrived
+		 *
+		 * @return the addresses in the order their first hit arrived
+		 */
+		public synchronized InetSocketAddress[] getSources() {
+			return sources.toArray(new InetSocketAddress[sources.size()]);
+		}
+
+		private synchronized void hit(QueryHitMessage hit,
+				InetSocketAddress from) {
+			long now = System.nanoTime();
+			if (hits == 0) {
+				firstHitNanos = now;
+			}
+			lastHitNanos = now;
+			hits++;
+			files += hit.getNumberOfHits();
+			int hop = Math.max(0,
+					Math.min(hit.getHop(), GnutellaConstants.MAX_TTL));
+			hitsByHop[hop]++;
+			if (from != null) {
+				sources.add(from);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 *
+		 * @see java.lang.Object#toString()
+		 */
+		public synchronized String toString() {
+			String trace = id + "|" + searchCriteria + "|" + hits + " HITS|"
+					+ files + " FILES";
+			if (hits > 0) {
+				trace += "|FIRST " + getTimeToFirstHit() / 1000000 + " ms|LAST "
+						+ getTimeToLastHit() / 1000000 + " ms|"
+						+ sources.size() + " SOURCES";
+			}
+			return trace;
+		}
+	}
+
+	private Trace[] ring;
+	private int next;
+	private HashMap<String, Trace> traces;
+
+	/**
+	 * Creates an empty QueryTracer
+	 */
+	public QueryTracer() {
+		ring = new Trace[GnutellaConstants.QUERY_TRACE_RING];
+		traces = new HashMap<String, Trace>();
+	}
+
+	/**
+	 * Starts the trace of a query sent by this Servent, forgetting the oldest
+	 * one if the ring is full
+	 *
+	 * @param id
+	 *            MessageID of the query
+	 * @param searchCriteria
+	 *            the search string
+	 */
+	public synchronized void issued(String id, String searchCriteria) {
+		Trace old = ring[next];
+		if (old != null) {
+			traces.remove(old.id);
+		}
+		Trace t = new Trace(id, searchCriteria);
+		ring[next] = t;
+		traces.put(id, t);
+		next = (next + 1) % ring.length;
+	}
+
+	/**
+	 * Adds a hit to the trace of the query it answers
+	 *
+	 * @param hit
+	 *            the query hit, its hops are the ones it travelled
+	 * @param from
+	 *            neighbor or host from which the hit arrived
+	 * @return true if the query is being traced
+	 */
+	public boolean hit(QueryHitMessage hit, InetSocketAddress from) {
+		Trace t;
+		synchronized (this) {
+			t = traces.get(hit.idMessageToString());
+		}
+		if (t == null) {
+			return false;
+		}
+		t.hit(hit, from);
+		return true;
+	}
+
+	/**
+	 * Returns the trace of a query
+	 *
+	 * @param id
+	 *            MessageID of the query
+	 * @return the trace, or null if the query is not in the ring
+	 */
+	public synchronized Trace getTrace(String id) {
+		return traces.get(id);
+	}
+
+	/**
+	 * Returns the queries in the ring
+	 *
+	 * @return the traces, the oldest first
+	 */
+	public synchronized Trace[] getTraces() {
+		Trace[] all = new Trace[traces.size()];
+		int j = 0;
+		for (int i = 0; i < ring.length; i++) {
+			Trace t = ring[(next + i) % ring.length];
+			if (t != null) {
+				all[j++] = t;
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * Returns the number of queries in the ring that got at least one hit
+	 *
+	 * @return number of queries answered
+	 */
+	public int getAnswered() {
+		int answered = 0;
+		for (Trace t : getTraces()) {
+			if (t.getHits() > 0) {
+				answered++;
+			}
+		}
+		return answered;
+	}
+
+	/**
+	 * Returns the histogram of the time to the first hit of the queries in
+	 * the ring that got one
+	 *
+	 * @return the histogram
+	 */
+	public LatencyHistogram getTimeToFirstHit() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (Trace t : getTraces()) {
+			long nanos = t.getTimeToFirstHit();
+			if (nanos >= 0) {
+				h.record(nanos);
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Returns the histogram of the time to the last hit of the queries in the
+	 * ring that got one
+	 *
+	 * @return the histogram
+	 */
+	public LatencyHistogram getTimeToLastHit() {
+		LatencyHistogram h = new LatencyHistogram();
+		for (Trace t : getTraces()) {
+			long nanos = t.getTimeToLastHit();
+			if (nanos >= 0) {
+				h.record(nanos);
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * Returns the number of hits that travelled each number of hops, adding
+	 * the hits of every query in the ring
+	 *
+	 * @return the counts, index i holds the hits of i hops
+	 */
+	public long[] getHitsByHop() {
+		long[] total = new long[GnutellaConstants.MAX_TTL + 1];
+		for (Trace t : getTraces()) {
+			int[] hops = t.getHitsByHop();
+			for (int i = 0; i < hops.length; i++) {
+				total[i] += hops[i];
+			}
+		}
+		return total;
+	}
+}
@@ -0,0 +1,188 @@
+package gnutellaClient;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+/**
+ * Class that defines the table a leaf sends to its ultrapeers with the names
+ * of the files it shares, so the ultrapeers only forward it the queries it can
+ * answer. If the names do not fit in one descriptor the table says that every
+ * query must be forwarded to the leaf.
+ *
+ * The table travels as a vendor message, so a servent that does not know it
+ * skips it by its vendor code and selector:
+ *
+ * <pre>
+ * vendor code (4) | selector (2, little endian) | version (2, little endian)
+ *     | flag (1) | (name EOS)*
+ * </pre>
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class RouteTableMessage extends Message {
+	private boolean all;
+	private String[] names;
+
+	/**
+	 * Creates a RouteTableMessage read from the network
+	 *
+	 * @param idMessage
+	 *            A 16-byte string uniquely identifying the descriptor on the
+	 *            network
+	 * @param ttl
+	 *            Time to live, always 1 because the table is never forwarded
+	 * @param hop
+	 *            The number of times the descriptor has been forwarded
+	 * @param payloadL
+	 *            The length of the descriptor immediately following this
+	 *            header.
+	 * @param receptorNode
+	 *            Id of the thread that received the message
+	 * @param all
+	 *            true if every query must be forwarded to the leaf
+	 * @param names
+	 *            Names of the files shared by the leaf
+	 */
+	public RouteTableMessage(byte[] idMessage, byte ttl, byte hop,
+			int payloadL, InetSocketAddress receptorNode, boolean all,
+			String[] names) {
+		super(idMessage, GnutellaConstants.ROUTE_TABLE, ttl, hop, payloadL,
+				receptorNode);
+		this.all = all;
+		this.names = names;
+	}
+
+	/**
+	 * Creates the RouteTableMessage of the given files. The idMessage is
+	 * generated random.
+	 *
+	 * @param receptorNode
+	 *            Id of the thread that sends the message
+	 * @param names
+	 *            Names of the files shared by the leaf
+	 */
+	public RouteTableMessage(InetSocketAddress receptorNode, String[] names) {
+		super(GnutellaConstants.ROUTE_TABLE, (byte) 1, (byte) 0, 0,
+				receptorNode);
+		int length = GnutellaConstants.VENDOR_HEAD_L + 1;
+		for (String name : names) {
+			length += name.getBytes().length + GnutellaConstants.EOS_L;
+		}
+		// Si no cabe, que el ultrapeer le mande todo
+		this.all = length > GnutellaConstants.MAX_PAYLOAD;
+		this.names = all ? new String[0] : names;
+	}
+
+	/**
+	 * Returns true if every query must be forwarded to the leaf
+	 *
+	 * @return true if the table is not complete
+	 */
+	public boolean getAll() {
+		return all;
+	}
+
+	public String[] getNames() {
+		return names;
+	}
+
+	/**
+	 * Says if the leaf can answer a query, using the same matching as
+	 * Client.searchFile
+	 *
+	 * @param searchCriteria
+	 *            the search string of the query
+	 * @return true if the query must be forwarded to the leaf
+	 */
+	public boolean matches(String searchCriteria) {
+		// Los nombres no dicen que hashes tiene la hoja
+		if (all || HashingService.toUrn(searchCriteria) != null) {
+			return true;
+		}
+		searchCriteria = QueryHitCache.normalize(searchCriteria);
+		for (String name : names) {
+			if (name.contains(searchCriteria)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Says if a vendor message is a RouteTableMessage of this servent
+	 *
+	 * @param payload
+	 *            the payload, without the header
+	 * @return true if the vendor code, selector and version are the ones of
+	 *         the table
+	 */
+	public static boolean isRouteTable(byte[] payload) {
+		byte[] vendor = GnutellaConstants.VENDOR_CODE.getBytes();
+		if (payload.length <= GnutellaConstants.VENDOR_HEAD_L) {
+			return false;
+		}
+		for (int i = 0; i < vendor.length; i++) {
+			if (payload[i] != vendor[i]) {
+				return false;
+			}
+		}
+		return littleShort(payload, vendor.length) == GnutellaConstants.ROUTE_TABLE_SELECTOR
+				&& littleShort(payload, vendor.length + 2) == GnutellaConstants.ROUTE_TABLE_VERSION;
+	}
+
+	private static int littleShort(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * Decodes the payload of a RouteTableMessage: the vendor header, a flag
+	 * byte and the nul terminated names
+	 *
+	 * @param payload
+	 *            the payload, without the header, that isRouteTable accepted
+	 * @return the names, or null if the flag says every query is forwarded
+	 */
+	public static String[] decodeNames(byte[] payload) {
+		int flag = GnutellaConstants.VENDOR_HEAD_L;
+		if (payload[flag] != 0) {
+			return null;
+		}
+		ArrayList<String> names = new ArrayList<String>();
+		int start = flag + 1;
+		for (int i = start; i < payload.length; i++) {
+			if (payload[i] == GnutellaConstants.EOS) {
+				names.add(QueryHitCache.normalize(new String(payload, start,
+						i - start)));
+				start = i + 1;
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see Message#toByteArray()
+	 */
+	public byte[] toByteArray() {
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		byte[] header = super.toByteArray();
+		table.write(header, 0, header.length);
+		byte[] vendor = GnutellaConstants.VENDOR_CODE.getBytes();
+		table.write(vendor, 0, vendor.length);
+		table.write(GnutellaConstants.ROUTE_TABLE_SELECTOR);
+		table.write(GnutellaConstants.ROUTE_TABLE_SELECTOR >>> 8);
+		table.write(GnutellaConstants.ROUTE_TABLE_VERSION);
+		table.write(GnutellaConstants.ROUTE_TABLE_VERSION >>> 8);
+		table.write(all ? 1 : 0);
+		for (String name : names) {
+			byte[] b = name.getBytes();
+			table.write(b, 0, b.length);
+			table.write(GnutellaConstants.EOS);
+		}
+		return withPayloadLength(table.toByteArray());
+	}
+}
@@ -0,0 +1,56 @@
+package gnutellaClient;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of the routing of a descriptor by the Client. Its
+ * duration is the time the Client spent deciding, and it says to how many
+ * neighbors the descriptor was forwarded, if this Servent answered it and
+ * how many copies were dropped.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+@Name("gnutella.Routing")
+@Label("Descriptor Routing")
+@Category({ "Gnutella", "Routing" })
+@Description("A descriptor routed by the Client")
+@StackTrace(false)
+public class RoutingEvent extends jdk.jfr.Event {
+	@Label("GUID")
+	String guid;
+
+	@Label("Type")
+	String type;
+
+	@Label("Hops")
+	int hops;
+
+	@Label("TTL")
+	int ttl;
+
+	@Label("Bytes")
+	@Description("Bytes of the descriptor, header included")
+	int bytes;
+
+	@Label("Neighbor")
+	@Description("Address the descriptor was received from")
+	String neighbor;
+
+	@Label("Forwarded")
+	@Description("Neighbors the descriptor was sent to")
+	int forwarded;
+
+	@Label("Answered")
+	@Description("True if this Servent answered with a pong or a query hit")
+	boolean answered;
+
+	@Label("Dropped")
+	@Description("Copies of the descriptor that were not sent")
+	int dropped;
+}
@@ -6,11 +6,9 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
 import java.util.ArrayList;
-import java.util.Enumeration;
 import java.util.Random;
 
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 /**
@@ -32,15 +30,24 @@ public class Servent {
 	private InetAddress ipAddress;
 	private short myPort;
 	private Server myServer;
+	private ConnectionManager connectionManager;
+	private HashedWheelTimer timer;
+	private HashingService hashes;
+	private UdpEndpoint udp;
+	private QueryTracer tracer;
 	private Client myClient;
-	private ConcurrentHashMap<InetSocketAddress, ServentThread> neighbors;
+	private NeighborRegistry neighbors;
 	private ConcurrentHashMap<InetSocketAddress, ServentThread> downloads;
 	private ConcurrentHashMap<String, InetSocketAddress> historyPing;
 	private ConcurrentHashMap<String, InetSocketAddress> historyQuery;
 	private ArrayList<QueryHitMessage> queryHitMessage;
 	private IdGenerator myIdGenerator;
-	private ConcurrentLinkedQueue<Message> pendingMessages;
+	private InboundScheduler pendingMessages;
 	private File myDirectory;
+	private Metrics metrics;
+	private InboundDispatcher dispatcher;
+	private TrafficCapture capture;
+	private ConnectionExecutor executor;
 
 	public ArrayList<QueryHitMessage> getQueryHitMessage() {
 		return queryHitMessage;
@@ -57,32 +64,154 @@ public class Servent {
 	 *             listens for upcoming connections
 	 */
 	public Servent(String pathName) throws IOException {
+		this(pathName, (short) 0, InetAddress.getLocalHost());
+	}
+
+	/**
+	 * Constructs a Servent that listens for upcoming connections in the
+	 * specified port and announces the specified address, and shares files of
+	 * the especified directoryPath
+	 * 
+	 * @param pathName
+	 *            Directory Path for sharinf files
+	 * @param port
+	 *            Port in which the Servent listens, 0 for a random one
+	 * @param ipAddress
+	 *            Address announced in pongs and query hits
+	 * @throws IOException
+	 *             IO error when opening the socket in which this Servent
+	 *             listens for upcoming connections
+	 */
+	public Servent(String pathName, short port, InetAddress ipAddress)
+			throws IOException {
+		this(pathName, port, ipAddress, ConnectionExecutor.defaultMode());
+	}
+
+	/**
+	 * Constructs a Servent that runs its connections in the specified
+	 * execution mode
+	 * 
+	 * @param pathName
+	 *            Directory Path for sharinf files
+	 * @param port
+	 *            Port in which the Servent listens, 0 for a random one
+	 * @param ipAddress
+	 *            Address announced in pongs and query hits
+	 * @param executionMode
+	 *            GnutellaConstants.PLATFORM_THREADS or
+	 *            GnutellaConstants.VIRTUAL_THREADS
+	 * @throws IOException
+	 *             IO error when opening the socket in which this Servent
+	 *             listens for upcoming connections
+	 */
+	public Servent(String pathName, short port, InetAddress ipAddress,
+			int executionMode) throws IOException {
+		this(pathName, port, ipAddress, executionMode, defaultUltrapeer());
+	}
+
+	/**
+	 * Constructs a Servent that runs as an ultrapeer or as a leaf
+	 * 
+	 * @param pathName
+	 *            Directory Path for sharinf files
+	 * @param port
+	 *            Port in which the Servent listens, 0 for a random one
+	 * @param ipAddress
+	 *            Address announced in pongs and query hits
+	 * @param executionMode
+	 *            GnutellaConstants.PLATFORM_THREADS or
+	 *            GnutellaConstants.VIRTUAL_THREADS
+	 * @param ultrapeer
+	 *            true to route the traffic of the network and hold leaves,
+	 *            false to be a leaf that only connects to a few ultrapeers
+	 * @throws IOException
+	 *             IO error when opening the socket in which this Servent
+	 *             listens for upcoming connections
+	 */
+	public Servent(String pathName, short port, InetAddress ipAddress,
+			int executionMode, boolean ultrapeer) throws IOException {
 
-		this.myPort = generateRandomPort();
+		this.myPort = port != 0 ? port : generateRandomPort();
 
-		neighbors = new ConcurrentHashMap<InetSocketAddress, ServentThread>();
+		neighbors = new NeighborRegistry();
 		downloads = new ConcurrentHashMap<InetSocketAddress, ServentThread>();
 		historyPing = new ConcurrentHashMap<String, InetSocketAddress>();
 		historyQuery = new ConcurrentHashMap<String, InetSocketAddress>();
 		queryHitMessage = new ArrayList<QueryHitMessage>();
 
-		pendingMessages = new ConcurrentLinkedQueue<Message>();
-		ipAddress = InetAddress.getLocalHost();
+		this.ipAddress = ipAddress;
 
 		myIdGenerator = new IdGenerator();
 
 		myDirectory = new File(pathName);
 
+		metrics = new Metrics();
+		pendingMessages = new InboundScheduler(metrics);
+		metrics.watch(pendingMessages, neighbors);
+		tracer = new QueryTracer();
+		metrics.watch(tracer);
+		metrics.register(myPort);
+		timer = new HashedWheelTimer("Timer-" + myPort);
+		dispatcher = new InboundDispatcher(historyPing, historyQuery,
+				pendingMessages, metrics, timer);
+		executor = new ConnectionExecutor(executionMode, myPort);
+		hashes = new HashingService(myDirectory,
+				HashingService.defaultStore(myDirectory), timer, myPort);
+
+		ConcurrentHashMap<InetSocketAddress, Long> hostCache = new ConcurrentHashMap<InetSocketAddress, Long>();
 		this.myClient = new Client(myPort, neighbors, historyPing,
 				historyQuery, pendingMessages, ipAddress, myIdGenerator,
 				myDirectory, IdGenerator.getIdServent(), downloads,
-				queryHitMessage);
-		this.myServer = new Server(myPort, neighbors, historyPing,
-				historyQuery, pendingMessages, myIdGenerator, downloads,
-				myDirectory);
-		new Thread(myClient).start();
-		new Thread(myServer).start();
+				queryHitMessage, metrics, dispatcher, executor, hostCache,
+				timer, hashes, ultrapeer);
+		myClient.setQueryTracer(tracer);
+		connectionManager = new ConnectionManager(neighbors, hostCache,
+				myClient, new InetSocketAddress(ipAddress, myPort));
+		this.myServer = new Server(myPort, neighbors, dispatcher,
+				myIdGenerator, downloads, myDirectory, metrics, executor,
+				connectionManager, timer, hashes);
+		try {
+			udp = new UdpEndpoint(myPort & 0xFFFF, myClient, metrics);
+			myClient.setUdpEndpoint(udp);
+			new Thread(udp, "Udp-" + myPort).start();
+		} catch (IOException e) {
+			// Sin UDP el Servent solo usa sus conexiones
+			System.err.println(getClass() + ".Servent(): " + e.getClass()
+					+ e.getMessage());
+		}
+		new Thread(myClient, "Client-" + myPort).start();
+		new Thread(myServer, "Server-" + myPort).start();
+		new Thread(connectionManager, "ConnectionManager-" + myPort).start();
+
+	}
 
+	/**
+	 * Returns the mode in which the connections of this Servent run
+	 * 
+	 * @return GnutellaConstants.PLATFORM_THREADS or
+	 *         GnutellaConstants.VIRTUAL_THREADS
+	 */
+	public int getExecutionMode() {
+		return executor.getMode();
+	}
+
+	/**
+	 * Reads the role of the Servent of the system property gnutella.leaf,
+	 * "true" makes it a leaf
+	 * 
+	 * @return true for an ultrapeer, the default
+	 */
+	public static boolean defaultUltrapeer() {
+		return !"true".equalsIgnoreCase(System.getProperty("gnutella.leaf"));
+	}
+
+	/**
+	 * Returns true if this Servent is an ultrapeer, false if it is a leaf
+	 * 
+	 * @return true if this Servent is an ultrapeer
+	 */
+	public boolean getUltrapeer() {
+		return myClient.getUltrapeer();
 	}
 
 	public String getMyDirectoryName() {
@@ -99,12 +228,7 @@ public class Servent {
 	 * @return true if the connection is made succesfully, false otherwise
 	 */
 	public boolean connect(String ip, short port) {
-		if (neighbors.size() > myClient.getMaxNodes()) {
-			myClient.setMaxNodes();
-		}
-		boolean connection = myClient.connect(ip, port);
-		myServer.setMaxNodes();
-		return connection;
+		return myClient.connect(ip, port);
 	}
 
 	/**
@@ -124,6 +248,33 @@ public class Servent {
 		myClient.addAQuery(GnutellaConstants.DFLTMIN_SPEED, searchCriteria);
 	}
 
+	/**
+	 * Sends a ping in a datagram to a host, which enters the host cache when
+	 * it answers
+	 * 
+	 * @param ip
+	 *            The ip in string format of the host
+	 * @param port
+	 *            The port in which the host listens
+	 * @return true if the ping was sent
+	 */
+	public boolean probe(String ip, short port) {
+		return myClient.udpPing(new InetSocketAddress(ip, port & 0xFFFF));
+	}
+
+	/**
+	 * Searches the hosts of the host cache through datagrams, without
+	 * flooding the network
+	 * 
+	 * @param searchCriteria
+	 *            the name of file for the search
+	 * @return number of hosts the query was sent to
+	 */
+	public int makeUdpQuery(String searchCriteria) {
+		return myClient.addAUdpQuery(GnutellaConstants.DFLTMIN_SPEED,
+				searchCriteria);
+	}
+
 	/**
 	 * Establishes a connection to download the specified file from a specified
 	 * Server
@@ -137,7 +288,7 @@ public class Servent {
 	 * @param size
 	 *            Size of the file for the search
 	 */
-	public void makeDownload(String ip, short port, String file, int size) {
+	public void makeDownload(String ip, short port, String file, long size) {
 		myClient.download(ip, port, file, size, 0);
 	}
 
@@ -147,11 +298,10 @@ public class Servent {
 	 * List the current neighbors
 	 */
 	public void myNeighbors() {
-		Enumeration<InetSocketAddress> e = neighbors.keys();
 		System.out.println("\n NEIGHBORS AT THE MOMENT:  \n");
 		System.out.print("( ");
-		while (e.hasMoreElements()) {
-			InetSocketAddress idNodeNext = e.nextElement();
+		for (ServentThread sT : neighbors.getSnapshot()) {
+			InetSocketAddress idNodeNext = sT.getKey();
 			System.out.print(idNodeNext.getAddress() + "-"
 					+ idNodeNext.getPort() + ", ");
 		}
@@ -160,23 +310,96 @@ public class Servent {
 	}
 
 	/**
-	 * Close all connections
+	 * Returns the service that hashes the shared files of this Servent
+	 * 
+	 * @return the hashing service
 	 */
-	public void close() {
+	public HashingService getHashingService() {
+		return hashes;
+	}
+
+	/**
+	 * Returns the Metrics of this Servent
+	 * 
+	 * @return the metrics
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the traces of the last queries of this Servent, with the time
+	 * to their hits and the hops and neighbors the hits came from
+	 * 
+	 * @return the tracer
+	 */
+	public QueryTracer getQueryTracer() {
+		return tracer;
+	}
 
-		Enumeration<InetSocketAddress> n = neighbors.keys();
-		while (n.hasMoreElements()) {
-			InetSocketAddress idN = n.nextElement();
-			neighbors.get(idN).close();
-			neighbors.remove(idN);
+	/**
+	 * Starts recording every descriptor received from the neighbors in the
+	 * specified file
+	 * 
+	 * @param file
+	 *            the capture file, if it exists the records are appended
+	 * @throws IOException
+	 *             if the file can not be opened
+	 */
+	public synchronized void startCapture(File file) throws IOException {
+		stopCapture();
+		capture = new TrafficCapture(file);
+		dispatcher.setCapture(capture);
+	}
+
+	/**
+	 * Stops recording the descriptors received
+	 */
+	public synchronized void stopCapture() {
+		if (capture == null) {
+			return;
 		}
-		Enumeration<InetSocketAddress> d = downloads.keys();
-		while (d.hasMoreElements()) {
-			InetSocketAddress idN = d.nextElement();
-			downloads.get(idN).close();
-			downloads.remove(idN);
+		dispatcher.setCapture(null);
+		try {
+			capture.close();
+		} catch (IOException e) {
+			System.err.println(getClass() + ".stopCapture(): " + e.getClass()
+					+ e.getMessage());
 		}
+		capture = null;
+	}
+
+	/**
+	 * Close all connections and exits
+	 */
+	public void close() {
+		shutdown();
 		System.exit(0);
+	}
+
+	/**
+	 * Close all connections and stops this Servent without exiting the
+	 * virtual machine
+	 */
+	public void shutdown() {
+		connectionManager.close();
+		myClient.close();
+		myServer.close();
+		if (udp != null) {
+			udp.close();
+		}
+		stopCapture();
+
+		neighbors.closeAll();
+		for (ServentThread download : new ArrayList<ServentThread>(
+				downloads.values())) {
+			download.close();
+		}
+		downloads.clear();
+		executor.shutdown();
+		hashes.close();
+		timer.close();
+		metrics.unregister();
 
 	}
 
@@ -3,22 +3,102 @@ package gnutellaClient;
 import java.io.*;
 
 import java.net.*;
-import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Class for managing the connections created by a Servent
  * 
+ * A connection goes from GnutellaConstants.CONNECTION_NEW to
+ * CONNECTION_OPEN when it starts running, and ends once in CONNECTION_CLOSED
+ * or CONNECTION_FAILED. Its socket is released as soon as it ends and its
+ * listeners are told at that moment, so nobody has to look for the
+ * connections that ended.
+ * 
  * @author Ismael Fernandez
  * @author Miguel Vilchis
  * 
  */
 
 public class ServentThread implements Runnable {
+
+	/**
+	 * Receives the events of the life of a connection. The events are told in
+	 * the thread that caused them and must not block.
+	 */
+	public interface Listener {
+		/**
+		 * The connection started running
+		 * 
+		 * @param sT
+		 *            the connection
+		 */
+		public void opened(ServentThread sT);
+
+		/**
+		 * The file of a download or an upload was transferred completely,
+		 * closed follows
+		 * 
+		 * @param sT
+		 *            the connection
+		 */
+		public void transferComplete(ServentThread sT);
+
+		/**
+		 * The connection ended because of an error, closed follows
+		 * 
+		 * @param sT
+		 *            the connection
+		 * @param cause
+		 *            the error
+		 */
+		public void failed(ServentThread sT, Exception cause);
+
+		/**
+		 * The connection ended and its socket was released. Told once, also
+		 * to a listener added after the connection ended.
+		 * 
+		 * @param sT
+		 *            the connection
+		 */
+		public void closed(ServentThread sT);
+	}
+
+	/**
+	 * Listener that ignores every event, to extend it with the ones needed
+	 */
+	public static class Adapter implements Listener {
+		@Override
+		public void opened(ServentThread sT) {
+		}
+
+		@Override
+		public void transferComplete(ServentThread sT) {
+		}
+
+		@Override
+		public void failed(ServentThread sT, Exception cause) {
+		}
+
+		@Override
+		public void closed(ServentThread sT) {
+		}
+	}
+
+	private static final boolean OFFER_DEFLATE = !"false"
+			.equalsIgnoreCase(System.getProperty("gnutella.deflate"));
+
 	/* Atributos siempre usados */
 	private InputStream in;
 	private DataInputStream inStream;
@@ -29,26 +109,52 @@ public class ServentThread implements Runnable {
 	private boolean downloadThread;
 
 	/* Atributos del nodo cuando es un servent */
-	private ConcurrentHashMap<String, InetSocketAddress> historyPing;
-	private ConcurrentHashMap<String, InetSocketAddress> historyQuery;
-	private ConcurrentHashMap<InetSocketAddress, Boolean> firstPongsFromNeighbors;
-	private ConcurrentLinkedQueue<Message> pendingMessages;
-	private ConcurrentLinkedQueue<Message> messagesToSend;
+	private InboundDispatcher dispatcher;
+	private LinkedBlockingQueue<Message> messagesToSend;
+	private ConnectionExecutor executor;
+	private HashedWheelTimer timer;
+	private volatile HashedWheelTimer.Timeout pingTimeout;
+	private volatile Thread sender;
 	private MessageHandler messageHandler;
+	private Metrics metrics;
+	private NeighborStats stats;
+	private FloodPolicer policer;
+	private volatile InetSocketAddress key;
+	private ArrayList<Listener> listeners;
+	private int state;
 	private InetSocketAddress inSktA;
-	private boolean working;
-	private boolean stillConnected;
-	private boolean flag;
+	private InetSocketAddress mine;
+	private volatile boolean working;
+	private volatile boolean stillConnected;
+	private volatile boolean flag;
+	private boolean deflateOffered;
+	private boolean extended;
+	private boolean leaf;
+	private boolean ultrapeer;
+	private volatile InetSocketAddress listenAddress;
+	private volatile RouteTableMessage routeTable;
+	private Deflater deflater;
+	private Inflater inflater;
+	private boolean busy;
 
 	/* Atributos del nodo cuando es para descarga */
 
-	private BigInteger fileLength;
+	private long fileLength;
 	private String fileName;
 	private String typeConnection;
-	private BigInteger rangeByte;
-	private boolean downloadFinished;
+	private long rangeByte;
 	private boolean server;
+	private boolean queued;
+	private long uploadStart;
+	private long bytesSent;
+	private Object replies;
+	private boolean accepted;
 	private File myDir;
+	private HashingService hashes;
+	private UploadCache uploadCache;
+	private boolean merkle;
+	private boolean answered;
+	private long rangeEnd;
 
 	/**
 	 * Creates a ServentThread to manage the connection bound in the specified
@@ -56,40 +162,48 @@ public class ServentThread implements Runnable {
 	 * 
 	 * @param mySocket
 	 *            Socket bound to the connection that this object represents
-	 * @param historyPing
-	 *            HashMap that contains de history of every PingMessage received
-	 *            from a neighbor Servent and every PingMessage generated by the
-	 *            Servent that owns this Server
-	 * @param historyQuery
-	 *            HashMap that contains de history of every QueryMessage
-	 *            received from a neighbor Servent and every QueryMessage
-	 *            generated by the Servent that owns this Server
-	 * @param pendingMessages
+	 * @param dispatcher
+	 *            Receive path of the Servent that owns this connection, null
+	 *            for download connections
 	 * @param inSkA
 	 *            InetSocketAddress bound to this connection
 	 * @param pathName
 	 *            Name directoryPath or file which, the Servent that owns this
 	 *            Server, shares with the network
+	 * @param metrics
+	 *            Metrics of the Servent that owns this connection
+	 * @param executor
+	 *            Executor that runs the connections of the Servent, the
+	 *            sending side of this connection is submitted to it
+	 * @param timer
+	 *            Timer of the Servent, closes the connection if a ping is not
+	 *            answered in time
 	 */
-	public ServentThread(Socket mySocket,
-			ConcurrentHashMap<String, InetSocketAddress> historyPing,
-			ConcurrentHashMap<String, InetSocketAddress> historyQuery,
-			ConcurrentLinkedQueue<Message> pendingMessages,
-			InetSocketAddress inSkA, File pathName) {
+	public ServentThread(Socket mySocket, InboundDispatcher dispatcher,
+			InetSocketAddress inSkA, File pathName, Metrics metrics,
+			ConnectionExecutor executor, HashedWheelTimer timer) {
 
 		this.mySkt = mySocket;
-		this.historyPing = historyPing;
-		this.historyQuery = historyQuery;
-		this.pendingMessages = pendingMessages;
+		this.dispatcher = dispatcher;
 		this.inSktA = inSkA;
-		messagesToSend = new ConcurrentLinkedQueue<Message>();
-		InetSocketAddress mine = new InetSocketAddress(
-				mySocket.getInetAddress(), getPort());
-		messageHandler = new MessageHandler(mine);
+		this.executor = executor;
+		this.timer = timer;
+		messagesToSend = new LinkedBlockingQueue<Message>();
+		// Sin socket conectado, como al repetir una captura, se usa la
+		// direccion dada
+		mine = mySocket.isConnected() ? new InetSocketAddress(
+				mySocket.getInetAddress(), getPort()) : inSkA;
+		this.metrics = metrics;
+		messageHandler = new MessageHandler(mine, metrics);
+		stats = new NeighborStats();
+		policer = new FloodPolicer(metrics);
 
 		working = true;
 		downloadThread = false;
-		downloadFinished = false;
+		listeners = new ArrayList<Listener>();
+		replies = new Object();
+		state = GnutellaConstants.CONNECTION_NEW;
+		rangeEnd = -1;
 		this.myDir = pathName;
 		stillConnected = true;
 
@@ -98,13 +212,54 @@ public class ServentThread implements Runnable {
 	// //////////////////////////////////////////////////////////////////////////////////////////////////
 	/* METHODS USED IF DOWNLOADTHREAD */
 
+	/**
+	 * Sets the service that holds the hash trees of the shared files, an
+	 * upload that has no tree computes it from the content of the file
+	 * 
+	 * @param hashes
+	 *            the hashing service of the Servent
+	 */
+	public void setHashingService(HashingService hashes) {
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Sets the cache that keeps in memory the files uploaded most often
+	 * 
+	 * @param uploadCache
+	 *            the upload cache of the Server
+	 */
+	public void setUploadCache(UploadCache uploadCache) {
+		this.uploadCache = uploadCache;
+	}
+
+	/**
+	 * Returns true if the server answered the download request, false if it
+	 * closed the connection without answering
+	 * 
+	 * @return true if there was an answer
+	 */
+	public boolean getAnswered() {
+		return answered;
+	}
+
+	/**
+	 * Returns true if the chunks of the download are verified with the hash
+	 * tree of the uploader
+	 * 
+	 * @return true if both sides negotiated the tree
+	 */
+	public boolean getMerkle() {
+		return merkle;
+	}
+
 	/**
 	 * Returns the name of the file this connection is managing
 	 * 
 	 * @return
 	 */
-	public int getFileLength() {
-		return fileLength.intValue();
+	public long getFileLength() {
+		return fileLength;
 	}
 
 	/**
@@ -114,7 +269,102 @@ public class ServentThread implements Runnable {
 	 * 
 	 */
 	public boolean getDownloadFinished() {
-		return downloadFinished;
+		int s = getState();
+		return s == GnutellaConstants.CONNECTION_CLOSED
+				|| s == GnutellaConstants.CONNECTION_FAILED;
+	}
+
+	/**
+	 * Returns the state of the connection
+	 * 
+	 * @return GnutellaConstants.CONNECTION_NEW, CONNECTION_OPEN,
+	 *         CONNECTION_CLOSED or CONNECTION_FAILED
+	 */
+	public int getState() {
+		synchronized (listeners) {
+			return state;
+		}
+	}
+
+	/**
+	 * Returns the time in milliseconds when this upload got its slot
+	 * 
+	 * @return the start time of the upload
+	 */
+	public synchronized long getUploadStart() {
+		return uploadStart;
+	}
+
+	/**
+	 * Returns the number of bytes that this upload has sent
+	 * 
+	 * @return the number of bytes sent
+	 */
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	/**
+	 * Answers the download request accepting it, the upload starts when this
+	 * connection is run
+	 * 
+	 * @return true if the answer was sent, false otherwise
+	 */
+	public boolean acceptUpload() {
+		try {
+			synchronized (replies) {
+				outStream.writeUTF(GnutellaConstants.HTTP_OK + getFileLength()
+						+ (merkle ? "\r\n" + GnutellaConstants.HTTP_MERKLE : "")
+						+ "\r\n\r\n");
+				accepted = true;
+			}
+			synchronized (this) {
+				uploadStart = System.currentTimeMillis();
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.println(getClass() + ".acceptUpload(): "
+					+ e.getClass() + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Tells the requester of the download its position in the upload queue. A
+	 * position that arrives after the request was accepted is not sent.
+	 * 
+	 * @param position
+	 *            position in the queue, starting at 1
+	 * @return true if the position was sent or is no longer needed, false
+	 *         otherwise
+	 */
+	public boolean queueUpload(int position) {
+		try {
+			synchronized (replies) {
+				if (!accepted) {
+					outStream.writeUTF(GnutellaConstants.HTTP_QUEUED + position
+							+ "\r\n\r\n");
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Rejects the download request because there are no free slots and closes
+	 * the connection
+	 */
+	public void denyUpload() {
+		try {
+			synchronized (replies) {
+				outStream.writeUTF(GnutellaConstants.HTTP_BUSY);
+			}
+			mySkt.close();
+		} catch (IOException e) {
+		}
+		close();
 	}
 
 	/**
@@ -123,9 +373,9 @@ public class ServentThread implements Runnable {
 	 * 
 	 * @return the number of bytes
 	 */
-	public int getRangeByte() {
+	public long getRangeByte() {
 
-		return rangeByte.intValue();
+		return rangeByte;
 	}
 
 	/**
@@ -162,41 +412,366 @@ public class ServentThread implements Runnable {
 
 	}
 
-	public synchronized boolean getStillConnected() {
+	/**
+	 * Returns the number of messages waiting to be sent on this connection
+	 * 
+	 * @return the number of messages
+	 */
+	public int getPendingToSend() {
+		return messagesToSend.size();
+	}
+
+	/**
+	 * Removes and returns the next message waiting to be sent on this
+	 * connection
+	 * 
+	 * @return the message, or null if there is none
+	 */
+	public Message nextMessageToSend() {
+		return messagesToSend.poll();
+	}
+
+	/**
+	 * Returns the measures of the quality of this connection
+	 * 
+	 * @return the NeighborStats of the connection
+	 */
+	public NeighborStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Returns the address of the other end of the connection. For the
+	 * connections created by this Servent it is the address in which the
+	 * neighbor listens.
+	 * 
+	 * @return the remote address
+	 */
+	public InetSocketAddress getRemoteAddress() {
+		return (InetSocketAddress) mySkt.getRemoteSocketAddress();
+	}
+
+	/**
+	 * Returns the address in which the neighbor listens for connections. It
+	 * is the remote address for the connections created by this Servent and
+	 * the address announced in its own pong for the others.
+	 * 
+	 * @return the address, or null if it is not known yet
+	 */
+	public InetSocketAddress getListenAddress() {
+		return listenAddress;
+	}
+
+	/**
+	 * Sets the address in which the neighbor listens for connections
+	 * 
+	 * @param listenAddress
+	 *            the address
+	 */
+	public void setListenAddress(InetSocketAddress listenAddress) {
+		this.listenAddress = listenAddress;
+	}
+
+	/**
+	 * Returns true if the other end of the connection announced that it is a
+	 * leaf. Servents that do not announce it are full peers.
+	 * 
+	 * @return true if the neighbor is a leaf
+	 */
+	public boolean getLeaf() {
+		return leaf;
+	}
+
+	/**
+	 * Returns true if the other end of the connection announced that it is an
+	 * ultrapeer. Servents that connected without headers never do.
+	 * 
+	 * @return true if the neighbor sent X-Ultrapeer: True
+	 */
+	public boolean getUltrapeer() {
+		return ultrapeer;
+	}
+
+	/**
+	 * Sets the table of the files shared by the leaf at the other end
+	 * 
+	 * @param routeTable
+	 *            the last table sent by the leaf
+	 */
+	public void setRouteTable(RouteTableMessage routeTable) {
+		this.routeTable = routeTable;
+	}
+
+	/**
+	 * Says if a query must be forwarded to the leaf at the other end. Until
+	 * the leaf sends its table every query is forwarded.
+	 * 
+	 * @param searchCriteria
+	 *            the search string of the query
+	 * @return true if the leaf may answer the query
+	 */
+	public boolean routeTableMatches(String searchCriteria) {
+		RouteTableMessage table = routeTable;
+		return table == null || table.matches(searchCriteria);
+	}
+
+	public boolean getStillConnected() {
 		return stillConnected;
 	}
 
+	/**
+	 * Sets the InetSocketAddress bound with the connection in the registry of
+	 * neighbors or in the downloads of the Servent
+	 * 
+	 * @param key
+	 *            the address
+	 */
+	public void setKey(InetSocketAddress key) {
+		this.key = key;
+	}
+
+	/**
+	 * Adds a listener of the events of the connection. If the connection
+	 * already ended the listener is told at once that it was closed.
+	 * 
+	 * @param listener
+	 *            the listener
+	 */
+	public void addListener(Listener listener) {
+		boolean ended;
+		synchronized (listeners) {
+			ended = state == GnutellaConstants.CONNECTION_CLOSED
+					|| state == GnutellaConstants.CONNECTION_FAILED;
+			if (!ended) {
+				listeners.add(listener);
+			}
+		}
+		if (ended) {
+			listener.closed(this);
+		}
+	}
+
+	/**
+	 * Returns the InetSocketAddress bound with the connection in the registry
+	 * of neighbors or in the downloads of the Servent
+	 * 
+	 * @return the address, or null if it is not registered
+	 */
+	public InetSocketAddress getKey() {
+		return key;
+	}
+
 	// /////////////////////////////////////////////////////////////////////////////////////////////////
 	/* METHODS USED ALWAYS */
 
 	/**
-	 * Close this connection
+	 * Close this connection. The socket is closed too, so the threads blocked
+	 * on it wake up.
 	 */
 	public void close() {
+		end(GnutellaConstants.CONNECTION_CLOSED, null);
+	}
+
+	/**
+	 * Ends the connection because of an error
+	 */
+	private void fail(Exception cause) {
+		end(GnutellaConstants.CONNECTION_FAILED, cause);
+	}
+
+	/**
+	 * Releases the connection and, the first time, tells the listeners
+	 */
+	private void end(int outcome, Exception cause) {
 		stillConnected = false;
 		working = false;
-		downloadFinished = true;
+		HashedWheelTimer.Timeout t = pingTimeout;
+		if (t != null) {
+			t.cancel();
+		}
+		try {
+			mySkt.close();
+		} catch (IOException e) {
+		}
+		Thread s = sender;
+		if (s != null) {
+			s.interrupt();
+		}
+		Listener[] told;
+		synchronized (listeners) {
+			if (state == GnutellaConstants.CONNECTION_CLOSED
+					|| state == GnutellaConstants.CONNECTION_FAILED) {
+				return;
+			}
+			state = outcome;
+			told = listeners.toArray(new Listener[listeners.size()]);
+			listeners.clear();
+		}
+		for (Listener l : told) {
+			if (cause != null) {
+				l.failed(this, cause);
+			}
+			l.closed(this);
+		}
+	}
+
+	private void opened() {
+		Listener[] told;
+		synchronized (listeners) {
+			if (state != GnutellaConstants.CONNECTION_NEW) {
+				return;
+			}
+			state = GnutellaConstants.CONNECTION_OPEN;
+			told = listeners.toArray(new Listener[listeners.size()]);
+		}
+		for (Listener l : told) {
+			l.opened(this);
+		}
+	}
+
+	private void transferComplete() {
+		Listener[] told;
+		synchronized (listeners) {
+			told = listeners.toArray(new Listener[listeners.size()]);
+		}
+		for (Listener l : told) {
+			l.transferComplete(this);
+		}
+	}
+
+	/**
+	 * Returns true if the servent answered the connection request saying it
+	 * has no free slots
+	 * 
+	 * @return true if the connection was rejected because the servent is busy
+	 */
+	public boolean getBusy() {
+		return busy;
+	}
+
+	/**
+	 * Returns true if the descriptors of this connection are compressed
+	 * 
+	 * @return true if both sides negotiated deflate
+	 */
+	public boolean getDeflate() {
+		return deflater != null;
+	}
+
+	/**
+	 * Writes a handshake line followed by the given headers, one "Name: value"
+	 * per line, and the empty line that ends them
+	 */
+	private static String writeHeaders(String line,
+			HashMap<String, String> headers) {
+		StringBuilder sb = new StringBuilder(line);
+		for (String name : headers.keySet()) {
+			sb.append(name).append(GnutellaConstants.HEADER_SEPARATOR)
+					.append(headers.get(name)).append('\n');
+		}
+		return sb.append('\n').toString();
+	}
+
+	/**
+	 * Reads the headers of a handshake message that starts with the given
+	 * line
+	 * 
+	 * @return the headers by name, or null if the message does not start
+	 *         with the line or is not well formed
+	 */
+	private static HashMap<String, String> readHeaders(String line,
+			String message) {
+		if (!message.startsWith(line) || !message.endsWith("\n\n")) {
+			return null;
+		}
+		HashMap<String, String> headers = new HashMap<String, String>();
+		String[] lines = message.substring(line.length(),
+				message.length() - 1).split("\n");
+		for (String header : lines) {
+			int i = header.indexOf(GnutellaConstants.HEADER_SEPARATOR);
+			if (i <= 0) {
+				return null;
+			}
+			headers.put(header.substring(0, i), header.substring(i
+					+ GnutellaConstants.HEADER_SEPARATOR.length()));
+		}
+		return headers;
+	}
+
+	/**
+	 * Compresses both directions of the connection from this point on. Must
+	 * be called right after the handshake, before any descriptor is sent or
+	 * read.
+	 */
+	private void startDeflate() {
+		deflater = new Deflater(GnutellaConstants.DEFLATE_LEVEL);
+		// Sync flush para que cada lote llegue completo al vecino
+		outStream = new DataOutputStream(new DeflaterOutputStream(out,
+				deflater, GnutellaConstants.DEFLATE_BUFFER, true));
+		inflater = new Inflater();
+		inStream = new DataInputStream(new InflaterInputStream(in, inflater,
+				GnutellaConstants.DEFLATE_BUFFER));
 	}
 
 	/**
 	 * Send a Gnutella connection request string to the servent with which is
 	 * connected
 	 * 
+	 * @param extended
+	 *            true to send the capability headers: the offer to compress
+	 *            the connection and whether this Servent is an ultrapeer. A
+	 *            servent that does not support them closes the connection
+	 *            without answering, then the request has to be repeated
+	 *            without them in a new connection.
+	 * @param ultrapeer
+	 *            true if this Servent is an ultrapeer, false if it is a leaf
 	 * @return true if the servent responds accepting the connection request.
 	 *         False other any other answer
 	 * 
 	 */
-	public boolean connexionRequest() {
+	public boolean connexionRequest(boolean extended, boolean ultrapeer) {
 		try {
 			out = mySkt.getOutputStream();
 			outStream = new DataOutputStream(out);
 			in = mySkt.getInputStream();
 			inStream = new DataInputStream(in);
-			outStream.writeUTF(GnutellaConstants.CONNECTION_REQUEST);
-			if (inStream.readUTF()
-					.equals(GnutellaConstants.CONNECTION_ACCEPTED)) {
+			if (extended) {
+				HashMap<String, String> headers = new HashMap<String, String>();
+				if (OFFER_DEFLATE) {
+					headers.put(GnutellaConstants.HEADER_ACCEPT_ENCODING,
+							GnutellaConstants.DEFLATE);
+				}
+				headers.put(GnutellaConstants.HEADER_ULTRAPEER,
+						ultrapeer ? GnutellaConstants.HEADER_TRUE
+								: GnutellaConstants.HEADER_FALSE);
+				outStream.writeUTF(writeHeaders(
+						GnutellaConstants.CONNECTION_REQUEST_HEADERS, headers));
+			} else {
+				outStream.writeUTF(GnutellaConstants.CONNECTION_REQUEST);
+			}
+			// Un servidor que no contesta no bloquea al Client
+			mySkt.setSoTimeout(GnutellaConstants.HANDSHAKE_TIMEOUT);
+			String answer = inStream.readUTF();
+			if (answer.equals(GnutellaConstants.CONNECTION_ACCEPTED)) {
+				mySkt.setSoTimeout(0);
+				return true;
+			}
+			HashMap<String, String> headers = extended ? readHeaders(
+					GnutellaConstants.CONNECTION_ACCEPTED, answer) : null;
+			if (headers != null) {
+				mySkt.setSoTimeout(0);
+				leaf = GnutellaConstants.HEADER_FALSE.equals(headers
+						.get(GnutellaConstants.HEADER_ULTRAPEER));
+				this.ultrapeer = GnutellaConstants.HEADER_TRUE.equals(headers
+						.get(GnutellaConstants.HEADER_ULTRAPEER));
+				if (OFFER_DEFLATE
+						&& GnutellaConstants.DEFLATE.equals(headers
+								.get(GnutellaConstants.HEADER_CONTENT_ENCODING))) {
+					startDeflate();
+				}
 				return true;
 			}
+			busy = answer.equals(GnutellaConstants.CONNECTION_REJECTED);
 			inStream.close();
 			in.close();
 			outStream.close();
@@ -205,10 +780,21 @@ public class ServentThread implements Runnable {
 
 			return false;
 
+		} catch (EOFException e) {
+			// El servent cerro sin contestar
+			try {
+				mySkt.close();
+			} catch (IOException ex) {
+			}
+			return false;
 		} catch (IOException e) {
 			System.err.println(getClass() + ".establishConnexion():"
 					+ e.getClass() + e.getMessage());
 			e.printStackTrace();
+			try {
+				mySkt.close();
+			} catch (IOException ex) {
+			}
 			return false;
 
 		}
@@ -225,23 +811,37 @@ public class ServentThread implements Runnable {
 	 *            Size of the file of the request
 	 * @param range
 	 *            Number of bytes that have been download from this file
+	 * @param merkle
+	 *            true to ask for the hash tree of the file, so every chunk is
+	 *            verified as it arrives
 	 * @return true if the request is accepted, otherwise false
 	 */
-	public boolean downloadRequest(String file, int size, int range) {
+	public boolean downloadRequest(String file, long size, long range,
+			boolean merkle) {
 		try {
-			this.rangeByte = new BigInteger(range + "");
-			this.fileLength = new BigInteger(size + "");
+			this.rangeByte = range;
+			this.fileLength = size;
 			this.fileName = file;
 			out = mySkt.getOutputStream();
 			outStream = new DataOutputStream(out);
 			in = mySkt.getInputStream();
 			inStream = new DataInputStream(in);
-			String request = GnutellaConstants.HTTP_GETPART + size + "/" + file
-					+ GnutellaConstants.HTTP_REST + range + "\r\n\r\n";
-			outStream.writeUTF(request);
+			// Un servidor que deja de enviar no detiene la descarga
+			mySkt.setSoTimeout(GnutellaConstants.TRANSFER_TIMEOUT);
+			outStream.writeUTF(rangeRequest(range, -1, merkle));
 			String answer = inStream.readUTF();
-			if (answer.equals(GnutellaConstants.HTTP_OK + size + "\r\n\r\n")) {
+			answered = true;
+			if (answer.startsWith(GnutellaConstants.HTTP_OK + size + "\r\n")) {
+				this.merkle = answer.contains(GnutellaConstants.HTTP_MERKLE);
+				downloadThread = true;
+				return true;
+			}
+			if (answer.startsWith(GnutellaConstants.HTTP_QUEUED)) {
+				// El servidor no tiene slots libres, esperamos nuestro turno
+				System.out.println("DOWNLOAD QUEUED: "
+						+ answer.substring(GnutellaConstants.HTTP_QUEUED.length()).trim());
 				downloadThread = true;
+				queued = true;
 				return true;
 			}
 			inStream.close();
@@ -250,6 +850,13 @@ public class ServentThread implements Runnable {
 			out.close();
 			mySkt.close();
 			return false;
+		} catch (EOFException e) {
+			// Un servidor viejo cierra sin contestar si no entiende la peticion
+			try {
+				mySkt.close();
+			} catch (IOException e1) {
+			}
+			return false;
 		} catch (IOException e) {
 			System.err.println(getClass() + ".downloadConnexion():"
 					+ e.getClass() + e.getMessage());
@@ -258,29 +865,109 @@ public class ServentThread implements Runnable {
 		}
 	}
 
+	/**
+	 * Returns the request of the bytes of the file from start to end
+	 * 
+	 * @param end
+	 *            last byte requested, -1 for the end of the file
+	 */
+	private String rangeRequest(long start, long end, boolean merkle) {
+		return GnutellaConstants.HTTP_GETPART + getFileLength() + "/"
+				+ getFileName() + GnutellaConstants.HTTP_REST + start + "-"
+				+ (end < 0 ? "" : end + "")
+				+ (merkle ? "\r\n" + GnutellaConstants.HTTP_MERKLE : "")
+				+ "\r\n\r\n";
+	}
+
+	/**
+	 * Answers the connection request accepting it, the connection starts
+	 * when it is run. A request with capability headers is answered with
+	 * the headers of this Servent.
+	 * 
+	 * @param ultrapeer
+	 *            true if this Servent is an ultrapeer, false if it is a leaf
+	 * @return true if the answer was sent, false otherwise
+	 */
+	public boolean acceptConnection(boolean ultrapeer) {
+		try {
+			if (extended) {
+				HashMap<String, String> headers = new HashMap<String, String>();
+				boolean deflate = deflateOffered && OFFER_DEFLATE;
+				if (deflate) {
+					headers.put(GnutellaConstants.HEADER_CONTENT_ENCODING,
+							GnutellaConstants.DEFLATE);
+				}
+				headers.put(GnutellaConstants.HEADER_ULTRAPEER,
+						ultrapeer ? GnutellaConstants.HEADER_TRUE
+								: GnutellaConstants.HEADER_FALSE);
+				outStream.writeUTF(writeHeaders(
+						GnutellaConstants.CONNECTION_ACCEPTED, headers));
+				if (deflate) {
+					startDeflate();
+				}
+			} else {
+				outStream.writeUTF(GnutellaConstants.CONNECTION_ACCEPTED);
+			}
+			System.out.println("A Servent has successfully connected");
+			return true;
+		} catch (IOException e) {
+			System.err.println(getClass() + ".acceptConnection(): "
+					+ e.getClass() + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Rejects the connection request because there are no free slots and
+	 * closes the connection
+	 */
+	public void rejectConnection() {
+		try {
+			outStream.writeUTF(GnutellaConstants.CONNECTION_REJECTED);
+		} catch (IOException e) {
+		}
+		close();
+	}
+
 	/**
 	 * Verifies the if the servent received a connection request or download
-	 * request.
+	 * request. The connection request is not answered, the caller decides if
+	 * it is accepted.
 	 * 
+	 * @param request
+	 *            the request read by the HandshakeStage
 	 * @return An integer: 1 Connection Request, 2 Download Request, 3
 	 *         Everything else
 	 */
-	public int establishConnection() {
+	public int establishConnection(String request) {
 		try {
 			in = mySkt.getInputStream();
 			inStream = new DataInputStream(in);
+			out = mySkt.getOutputStream();
+			outStream = new DataOutputStream(out);
 			// A servent
 			// may reject an incoming connection request for a variety of
 			// reasons - a servent’s pool of incoming
 			// connection slots may be exhausted
-			String request = inStream.readUTF();
-			if (request.equals(GnutellaConstants.CONNECTION_REQUEST)) {
-				out = mySkt.getOutputStream();
-				outStream = new DataOutputStream(out);
-				outStream.writeUTF(GnutellaConstants.CONNECTION_ACCEPTED);
-
-				System.out.println("A Servent has successfully connected");
-				return GnutellaConstants.SERVENT_NODE;
+			if (request.startsWith(GnutellaConstants.PROTOCOL_GNUTELLA)) {
+				if (request.equals(GnutellaConstants.CONNECTION_REQUEST)) {
+					return GnutellaConstants.SERVENT_NODE;
+				}
+				HashMap<String, String> headers = readHeaders(
+						GnutellaConstants.CONNECTION_REQUEST_HEADERS, request);
+				if (headers != null) {
+					extended = true;
+					deflateOffered = GnutellaConstants.DEFLATE.equals(headers
+							.get(GnutellaConstants.HEADER_ACCEPT_ENCODING));
+					leaf = GnutellaConstants.HEADER_FALSE.equals(headers
+							.get(GnutellaConstants.HEADER_ULTRAPEER));
+					this.ultrapeer = GnutellaConstants.HEADER_TRUE.equals(headers
+							.get(GnutellaConstants.HEADER_ULTRAPEER));
+					return GnutellaConstants.SERVENT_NODE;
+				}
+				return GnutellaConstants.FAILURE_NODE;
+			} else if (!request.startsWith(GnutellaConstants.HTTP_GET)) {
+				return GnutellaConstants.FAILURE_NODE;
 			} else {
 
 				try {
@@ -292,7 +979,11 @@ public class ServentThread implements Runnable {
 					String range[] = requestDes[2].split(" ");
 					String bytes[] = range[1].split("=");
 
-					if (requestDes.length != 3
+					// La cuarta linea pide el arbol de hashes
+					merkle = requestDes.length == 4
+							&& requestDes[3]
+									.equals(GnutellaConstants.HTTP_MERKLE);
+					if ((requestDes.length != 3 && !merkle)
 							|| !get[0].equals(GnutellaConstants.HTTP_GET)
 							|| !get[1].equals(GnutellaConstants.HTTP_GETLC)
 
@@ -307,34 +998,28 @@ public class ServentThread implements Runnable {
 
 					}
 
-					this.fileLength = new BigInteger(get[2]);
+					this.fileLength = Long.parseLong(get[2]);
 					this.fileName = get[3];
 					this.typeConnection = connection[1];
 					;
-					this.rangeByte = new BigInteger(bytes[1].substring(0,
-							bytes.length - 1));
-					if (getRangeByte() > getFileLength()) {
+					String[] limits = bytes[1].split("-", -1);
+					this.rangeByte = Long.parseLong(limits[0]);
+					if (limits.length > 1 && limits[1].length() > 0) {
+						rangeEnd = Long.parseLong(limits[1]);
+					}
+					if (getRangeByte() < 0 || getRangeByte() > getFileLength()) {
 						return GnutellaConstants.FAILURE_NODE;
 					}
 
-					out = mySkt.getOutputStream();
-					outStream = new DataOutputStream(out);
-
-					File fileN[] = myDir.listFiles();
-					boolean b = false;
-					for (File a : fileN) {
-						if ((a.getName().trim()).equals(fileName.trim())
-								&& a.length() != 0) {
-
-							outStream.writeUTF(GnutellaConstants.HTTP_OK
-									+ getFileLength() + "\r\n\r\n");
-
-							downloadThread = true;
-							server = true;
-							return GnutellaConstants.DOWNLOAD_NODE;
-
-						}
-
+					// El nombre no tiene '/', no puede salir del directorio
+					this.fileName = fileName.trim();
+					File requested = new File(myDir, fileName);
+					if (HashingService.isShared(requested)
+							&& requested.length() != 0) {
+						// La respuesta la da el UploadScheduler
+						downloadThread = true;
+						server = true;
+						return GnutellaConstants.DOWNLOAD_NODE;
 					}
 					outStream.writeUTF(GnutellaConstants.HTTP_DENY);
 					return GnutellaConstants.FAILURE_NODE;
@@ -354,153 +1039,640 @@ public class ServentThread implements Runnable {
 
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Reads the descriptors of the neighbor until the connection is closed.
+	 * The read blocks, so an idle connection does not use the CPU.
+	 */
+	private void receive() {
+		try {
+			while (working) {
+				receive(messageHandler.readDescriptor(inStream));
+			}
+		} catch (EOFException e) {
+			// El vecino cerro la conexion
+		} catch (IOException e) {
+			if (working) {
+				System.err.println(getClass() + ".receive(): "
+						+ e.getClass() + e.getMessage());
+				fail(e);
+			}
+		} catch (RuntimeException e) {
+			// Un descriptor que no se pudo procesar termina la conexion
+			System.err.println(getClass() + ".receive(): " + e.getClass()
+					+ e.getMessage());
+			fail(e);
+		}
+	}
+
+	/**
+	 * Processes a descriptor received from the neighbor: it is recorded in
+	 * the capture of the Servent, decoded, policed and dispatched. A replay of
+	 * a capture feeds the descriptors here, so they take the same path as the
+	 * ones read from the socket.
 	 * 
-	 * @see java.lang.Runnable#run()
+	 * @param descriptor
+	 *            the header and the payload of the descriptor
+	 * @return false if the neighbor was disconnected for flooding
 	 */
-	public void run() {
+	public boolean receive(byte[] descriptor) {
+		dispatcher.capture(mine, descriptor);
+		Message m = messageHandler.getMessage(descriptor);
+		if (m == null) {
+			metrics.undecodable();
+			stats.error();
+			return true;
+		}
 		flag = true;
-		if (!downloadThread) {
+		stats.descriptor();
+		if (m.getPayloadD() == GnutellaConstants.PONG && m.getHop() == 0) {
+			// Pong creado por el vecino, no reenviado
+			stats.pongReceived(m.idMessageToString());
+		}
+		if (policer.admit(m)) {
+			dispatcher.dispatch(m, mine);
+		} else if (policer.getAbusive()) {
+			// El vecino sigue inundando, se le desconecta
+			System.out.println("NEIGHBOR " + mine
+					+ " DISCONNECTED FOR FLOODING");
+			metrics.floodDisconnect();
+			close();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Sends the queued descriptors to the neighbor until the connection is
+	 * closed, waiting on the queue while it is empty
+	 */
+	private void send() {
+		sender = Thread.currentThread();
+		long written = 0;
+		int batch = 0;
+		WriteEvent event = null;
+		try {
 			while (working) {
-				if (!messagesToSend.isEmpty()) {
-					try {
-
-						if (messagesToSend.peek().getPayloadD() == GnutellaConstants.PING) {
-							flag = false;
-							new java.util.Timer().schedule(
-									new java.util.TimerTask() {
-										@Override
-										public void run() {
-											if (flag == false) {
-												close();
-											}
-										}
-									}, 10000);
-						}
+				Message m = messagesToSend.take();
+				if (event == null) {
+					event = new WriteEvent();
+					event.begin();
+				}
+				if (m.getPayloadD() == GnutellaConstants.PING) {
+					if (m.getHop() == 0) {
+						// Ping nuestro, se mide cuando sale
+						stats.pingSent(m.idMessageToString());
+					}
+					flag = false;
+					HashedWheelTimer.Timeout t = pingTimeout;
+					// Si ya hay un ping esperando respuesta basta con el suyo
+					if (t == null || t.isExpired()) {
+						pingTimeout = timer.schedule(new Runnable() {
+							@Override
+							public void run() {
+								if (flag == false) {
+									fail(new SocketTimeoutException(
+											"PING NOT ANSWERED"));
+								}
+							}
+						}, GnutellaConstants.PING_TIMEOUT);
+					}
+				}
+				byte[] bytes = m.toByteArray();
+				outStream.write(bytes);
+				metrics.bytesOut(bytes.length);
+				event.descriptors++;
+				event.bytes += bytes.length;
+				if (deflater == null) {
+					metrics.wireBytesOut(bytes.length);
+					event.wireBytes = bytes.length;
+					commit(event, m);
+					event = null;
+				} else if (++batch == GnutellaConstants.DEFLATE_BATCH
+						|| messagesToSend.isEmpty()) {
+					// Fin del lote, el vecino recibe todo lo comprimido
+					outStream.flush();
+					batch = 0;
+					long total = deflater.getBytesWritten();
+					metrics.wireBytesOut(total - written);
+					event.wireBytes = total - written;
+					written = total;
+					commit(event, m);
+					event = null;
+				}
+			}
+		} catch (InterruptedException e) {
+		} catch (IOException e) {
+			if (working) {
+				System.err.println(getClass() + ".send(): " + e.getClass()
+						+ e.getMessage());
+				fail(e);
+			}
+		}
+		sender = null;
+		if (deflater != null) {
+			// Solo este hilo lo usa, se libera la memoria nativa
+			deflater.end();
+		}
+		close();
+	}
+
+	/**
+	 * Commits the event of a batch of descriptors written, if it is recorded
+	 * 
+	 * @param m
+	 *            last descriptor of the batch
+	 */
+	private void commit(WriteEvent event, Message m) {
+		if (event.shouldCommit()) {
+			event.neighbor = String.valueOf(mySkt.getRemoteSocketAddress());
+			event.guid = m.idMessageToString();
+			event.type = Metrics.typeName(m.getPayloadD());
+			event.hops = m.getHop();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Commits the event of a range of the file sent or received, if it is
+	 * recorded
+	 */
+	private void commit(TransferEvent event, boolean upload, long start,
+			long end, long bytes, int failedChunks) {
+		if (event.shouldCommit()) {
+			event.file = getFileName();
+			event.neighbor = String.valueOf(mySkt.getRemoteSocketAddress());
+			event.upload = upload;
+			event.start = start;
+			event.end = end;
+			event.bytes = bytes;
+			event.failedChunks = failedChunks;
+			event.commit();
+		}
+	}
 
-						outStream.write(messagesToSend.poll().toByteArray());
+	/**
+	 * Sends the hash tree of the file before its content, the one of the
+	 * hashing service if it is up to date, the one of the upload cache or
+	 * else the one of the content read
+	 */
+	private void uploadTree(File file, ByteBuffer content,
+			UploadCache.Content cached) throws IOException {
+		MerkleTree tree = hashes == null ? null : hashes.getTree(file);
+		if (tree == null || tree.getFileLength() != content.limit()) {
+			tree = cached != null ? cached.getTree() : MerkleTree.of(content);
+		}
+		tree.write(outStream);
+	}
 
-					} catch (IOException e) {
+	/**
+	 * Sends the hash tree of a file too large for the upload cache, the one of
+	 * the hashing service if it is up to date or else the one of the file read
+	 * from disk
+	 */
+	private void uploadTree(File file, FileChannel content) throws IOException {
+		MerkleTree tree = hashes == null ? null : hashes.getTree(file);
+		if (tree == null || tree.getFileLength() != content.size()) {
+			tree = MerkleTree.of(content);
+		}
+		tree.write(outStream);
+	}
 
-					}
-				}
-				try {
+	/**
+	 * Sends the bytes of a file from offset to end without loading it in
+	 * memory. When the connection has a channel the bytes go from the file to
+	 * the socket without being copied to the heap.
+	 */
+	private void upload(FileChannel file, long offset, long end)
+			throws IOException {
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		long start = offset;
+		try {
+			sendRange(file, offset, end);
+		} finally {
+			commit(event, true, start, end, getBytesSent(), 0);
+		}
+	}
 
-					while (inStream.available() > 0) {
-						// En este momento leeré algo que esta en el flujo
-						Message m = messageHandler.getMessage(inStream);
-						String message = m.idMessageToString();
-						InetSocketAddress inetSckAd = new InetSocketAddress(
-								mySkt.getInetAddress(), getPort());
-						flag = true;
-						switch (m.getPayloadD()) {
-						case GnutellaConstants.PING:
-							if (!historyPing.keySet().contains(message)) {
-								historyPing.putIfAbsent(message, inetSckAd);
-								pendingMessages.add(m);
-							}
+	private void sendRange(FileChannel file, long offset, long end)
+			throws IOException {
+		SocketChannel channel = mySkt.getChannel();
+		ByteBuffer b = channel != null ? null : ByteBuffer
+				.allocate(GnutellaConstants.UPLOAD_CHUNK);
+		while (working && offset < end) {
+			int len = (int) Math.min(GnutellaConstants.UPLOAD_CHUNK, end
+					- offset);
+			if (channel != null) {
+				len = (int) file.transferTo(offset, len, channel);
+			} else {
+				b.clear();
+				b.limit(len);
+				len = file.read(b, offset);
+				if (len > 0) {
+					outStream.write(b.array(), 0, len);
+				}
+			}
+			if (len <= 0) {
+				// El archivo se acorto mientras se enviaba
+				break;
+			}
+			metrics.bytesOut(len);
+			offset += len;
+			synchronized (this) {
+				bytesSent += len;
+			}
+		}
+	}
 
-							break;
-						case GnutellaConstants.PONG:
-							
-							pendingMessages.add(m);
-							break;
+	/**
+	 * Sends the bytes of the content from offset to end. A buffer outside the
+	 * heap is written straight to the channel of the connection.
+	 */
+	private void upload(ByteBuffer content, int offset, int end)
+			throws IOException {
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		try {
+			sendRange(content, offset, end);
+		} finally {
+			commit(event, true, offset, end, getBytesSent(), 0);
+		}
+	}
 
-						case GnutellaConstants.PUSH:
-							break;
-						case GnutellaConstants.QUERY:
+	private void sendRange(ByteBuffer content, int offset, int end)
+			throws IOException {
+		SocketChannel channel = mySkt.getChannel();
+		byte[] b = content.hasArray() || channel != null ? null
+				: new byte[GnutellaConstants.UPLOAD_CHUNK];
+		while (working && offset < end) {
+			int len = Math.min(GnutellaConstants.UPLOAD_CHUNK, end - offset);
+			if (content.hasArray()) {
+				outStream.write(content.array(), content.arrayOffset()
+						+ offset, len);
+			} else {
+				ByteBuffer part = content.duplicate();
+				part.limit(offset + len);
+				part.position(offset);
+				if (channel != null) {
+					while (part.hasRemaining()) {
+						channel.write(part);
+					}
+				} else {
+					part.get(b, 0, len);
+					outStream.write(b, 0, len);
+				}
+			}
+			metrics.bytesOut(len);
+			offset += len;
+			synchronized (this) {
+				bytesSent += len;
+			}
+		}
+	}
 
-							if (!historyQuery.keySet().contains(message)) {
-								historyQuery.putIfAbsent(message, inetSckAd);
-								pendingMessages.add(m);
-							}
-							break;
-						case GnutellaConstants.QUERY_HIT:
-							pendingMessages.add(m);
-							break;
+	/**
+	 * Waits while the download is queued in the server
+	 * 
+	 * @return true if the server started the upload, false if it denied it
+	 */
+	private boolean awaitTurn(DataInputStream in) throws IOException {
+		long deadline = System.currentTimeMillis()
+				+ GnutellaConstants.QUEUE_TIMEOUT;
+		while (true) {
+			String answer;
+			try {
+				answer = in.readUTF();
+			} catch (SocketTimeoutException e) {
+				// En la cola el servidor solo escribe si cambia la posicion
+				if (System.currentTimeMillis() < deadline) {
+					continue;
+				}
+				throw e;
+			}
+			if (answer.startsWith(GnutellaConstants.HTTP_OK)) {
+				merkle = answer.contains(GnutellaConstants.HTTP_MERKLE);
+				return true;
+			} else if (answer.startsWith(GnutellaConstants.HTTP_QUEUED)) {
+				deadline = System.currentTimeMillis()
+						+ GnutellaConstants.QUEUE_TIMEOUT;
+				System.out.println("DOWNLOAD OF "
+						+ getFileName()
+						+ " QUEUED: "
+						+ answer.substring(
+								GnutellaConstants.HTTP_QUEUED.length()).trim());
+			} else {
+				System.out.println("DENIED DOWNLOAD OF " + getFileName());
+				return false;
+			}
+		}
+	}
 
-						}
+	/**
+	 * Writes in the file the bytes from start to end sent by the server. With
+	 * a tree every chunk is verified as it lands on disk, the bytes of the
+	 * first chunk that were already on disk are read to verify it.
+	 * 
+	 * @return the chunks that were corrupt or did not arrive, empty without a
+	 *         tree
+	 * @throws EOFException
+	 *             if the connection was cut before the end without a tree
+	 */
+	private ArrayList<Integer> receiveContent(DataInputStream in, RandomAccessFile f,
+			MerkleTree tree, long start, long end) throws IOException {
+		TransferEvent event = new TransferEvent();
+		event.begin();
+		ArrayList<Integer> failed = new ArrayList<Integer>();
+		long received = 0;
+		try {
+			received = receiveRange(in, f, tree, start, end, failed);
+		} finally {
+			commit(event, false, start, end, received, failed.size());
+		}
+		if (tree == null && received < end - start) {
+			// Sin arbol no hay trozos que pedir de nuevo
+			throw new EOFException("DOWNLOAD CUT AFTER " + received + " OF "
+					+ (end - start) + " BYTES");
+		}
+		return failed;
+	}
 
+	/**
+	 * Writes the bytes of the range in the file, adding the chunks that fail
+	 * 
+	 * @return the number of bytes received
+	 */
+	private long receiveRange(DataInputStream in, RandomAccessFile f,
+			MerkleTree tree, long start, long end, ArrayList<Integer> failed)
+			throws IOException {
+		byte[] b = new byte[GnutellaConstants.UPLOAD_CHUNK];
+		MessageDigest digest = null;
+		int chunk = 0;
+		long chunkEnd = end;
+		if (tree != null) {
+			digest = MerkleTree.newDigest();
+			chunk = (int) (start / tree.getChunkSize());
+			chunkEnd = tree.getChunkEnd(chunk);
+			long position = tree.getChunkStart(chunk);
+			f.seek(position);
+			while (position < start) {
+				int n = f.read(b, 0, (int) Math.min(b.length, start - position));
+				if (n < 0) {
+					break;
+				}
+				digest.update(b, 0, n);
+				position += n;
+			}
+		}
+		f.seek(start);
+		long position = start;
+		int n;
+		while (position < end
+				&& (n = in.read(b, 0, (int) Math.min(b.length, end - position))) != -1) {
+			f.write(b, 0, n);
+			int done = 0;
+			while (digest != null && done < n) {
+				int part = (int) Math.min(n - done, chunkEnd - position);
+				digest.update(b, done, part);
+				done += part;
+				position += part;
+				if (position == chunkEnd) {
+					if (!tree.verify(chunk, digest.digest())) {
+						failed.add(chunk);
 					}
+					chunk++;
+					chunkEnd = tree.getChunkEnd(Math.min(chunk,
+							tree.getChunks() - 1));
+				}
+			}
+			if (digest == null) {
+				position += n;
+			}
+		}
+		if (tree != null && position < end) {
+			// Se corto la conexion, faltan los trozos que no terminaron
+			int last = (int) ((end - 1) / tree.getChunkSize());
+			for (int i = chunk; i <= last; i++) {
+				failed.add(i);
+			}
+		}
+		return position - start;
+	}
+
+	/**
+	 * Requests again the chunks that failed, each run of consecutive chunks in
+	 * a new connection to the server, until every chunk is correct or
+	 * GnutellaConstants.MERKLE_RETRIES attempts were made
+	 */
+	private boolean repair(RandomAccessFile f, MerkleTree tree,
+			ArrayList<Integer> failed) {
+		for (int attempt = 0; attempt < GnutellaConstants.MERKLE_RETRIES
+				&& !failed.isEmpty() && working; attempt++) {
+			System.out.println("DOWNLOAD OF " + getFileName() + ": "
+					+ failed.size() + " CHUNKS FAILED, REQUESTING THEM AGAIN");
+			ArrayList<Integer> next = new ArrayList<Integer>();
+			int i = 0;
+			while (i < failed.size()) {
+				int first = failed.get(i);
+				int last = first;
+				while (i + 1 < failed.size() && failed.get(i + 1) == last + 1) {
+					last = failed.get(++i);
+				}
+				i++;
+				next.addAll(fetchChunks(f, tree, first, last));
+			}
+			failed = next;
+		}
+		if (!failed.isEmpty()) {
+			System.out.println("DOWNLOAD OF " + getFileName() + ": "
+					+ failed.size() + " CHUNKS COULD NOT BE REPAIRED");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Requests the chunks from first to last to the server
+	 * 
+	 * @return the chunks that failed again
+	 */
+	private ArrayList<Integer> fetchChunks(RandomAccessFile f,
+			MerkleTree tree, int first, int last) {
+		ArrayList<Integer> all = new ArrayList<Integer>();
+		for (int i = first; i <= last; i++) {
+			all.add(i);
+		}
+		long start = tree.getChunkStart(first);
+		long end = tree.getChunkEnd(last);
+		Socket skt = null;
+		try {
+			skt = new Socket();
+			skt.connect(new InetSocketAddress(mySkt.getInetAddress(), mySkt
+					.getPort()), GnutellaConstants.TRANSFER_TIMEOUT);
+			skt.setSoTimeout(GnutellaConstants.TRANSFER_TIMEOUT);
+			DataOutputStream o = new DataOutputStream(skt.getOutputStream());
+			DataInputStream i = new DataInputStream(skt.getInputStream());
+			o.writeUTF(rangeRequest(start, end - 1, true));
+			if (!awaitTurn(i) || !merkle) {
+				return all;
+			}
+			MerkleTree again = MerkleTree.read(i, getFileLength());
+			if (!tree.sameRoot(again)) {
+				// El archivo cambio en el servidor, sus trozos ya no sirven
+				return all;
+			}
+			return receiveContent(i, f, tree, start, end);
+		} catch (IOException e) {
+			return all;
+		} finally {
+			if (skt != null) {
+				try {
+					skt.close();
 				} catch (IOException e) {
-					System.err.println(getClass() + "run(): " + e.getClass()
-							+ e.getMessage());
 				}
 			}
+		}
+	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	public void run() {
+		flag = true;
+		opened();
+		if (!downloadThread) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					send();
+				}
+			});
+			try {
+				receive();
+			} finally {
+				close();
+			}
 			try {
-				inStream.close();
+				if (deflater == null) {
+					// Cerrar el compresor escribiria en el socket ya cerrado
+					inStream.close();
+					outStream.close();
+				}
 				in.close();
-				outStream.close();
 				out.close();
-				mySkt.close();
 			} catch (IOException e) {
 				System.err.println(getClass() + "run(): " + e.getClass()
 						+ e.getMessage());
 			}
+			if (inflater != null) {
+				// receive() ya termino, nadie mas lo usa
+				inflater.end();
+			}
 		} else {
 
 			if (server) {
-
+				File file = new File(myDir, getFileName());
+				UploadCache.Content cached = uploadCache == null ? null
+						: uploadCache.get(file);
+				FileChannel channel = null;
 				try {
+					if (cached != null
+							|| file.length() <= GnutellaConstants.UPLOAD_CACHE_MAX_FILE) {
+						ByteBuffer content;
+						if (cached != null) {
+							// Archivo popular, se sirve de memoria
+							content = cached.getBuffer();
+						} else {
+							RandomAccessFile f = new RandomAccessFile(file, "r");
+							byte[] b = new byte[(int) f.length()];
+							f.readFully(b);
+							f.close();
+							if (uploadCache != null) {
+								uploadCache.offer(file, b);
+							}
+							content = ByteBuffer.wrap(b);
+						}
 
-					RandomAccessFile f = new RandomAccessFile(myDir.getPath()
-							+ "/" + getFileName(), "r");
-
-					byte[] b = new byte[(int) f.length()];
-
-					f.read(b);
-
-					byte aux[] = new byte[b.length - getRangeByte()];
-					for (int i = 0; i < aux.length; i++) {
-						aux[i] = b[i + getRangeByte()];
-
+						int end = rangeEnd < 0 ? content.limit() : (int) Math
+								.min(content.limit(), rangeEnd + 1);
+						int offset = (int) Math.min(getRangeByte(), end);
+						if (merkle) {
+							// El arbol va antes del contenido
+							uploadTree(file, content, cached);
+						}
+						upload(content, offset, end);
+					} else {
+						// Archivo grande, se envia del disco sin cargarlo
+						channel = new RandomAccessFile(file, "r").getChannel();
+						long length = channel.size();
+						long end = rangeEnd < 0 ? length : Math.min(length,
+								rangeEnd + 1);
+						if (merkle) {
+							uploadTree(file, channel);
+						}
+						upload(channel, getRangeByte(), end);
 					}
-					outStream.write(aux);
-
-					downloadFinished = true;
+					mySkt.close();
+					transferComplete();
 				} catch (FileNotFoundException e) {
 					System.err.println("Your file wasn't found");
-
+					fail(e);
 				} catch (IOException e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
+					fail(e);
+				} finally {
+					if (cached != null) {
+						uploadCache.release(cached);
+					}
+					if (channel != null) {
+						try {
+							channel.close();
+						} catch (IOException e) {
+						}
+					}
+					close();
 				}
 			} else {
+				RandomAccessFile f = null;
 				try {
+					if (queued && !awaitTurn(inStream)) {
+						return;
+					}
 
-					while (!downloadFinished) {
-						ArrayList<Byte> file = new ArrayList<Byte>();
-						int currentSize = 0 + getRangeByte();
-
-						while (inStream.available() > 0
-								&& currentSize <= getFileLength()) {
-
-							file.add(inStream.readByte());
-							currentSize++;
-
-						}
-
-						byte[] fb = new byte[currentSize];
-
-						for (int j = 0; j < fb.length; j++) {
-							fb[j] = file.get(j);
-
+					// El servidor cierra la conexion al terminar de enviar
+					f = new RandomAccessFile(myDir.getPath() + "/"
+							+ getFileName(), "rw");
+					if (merkle) {
+						MerkleTree tree = MerkleTree.read(inStream,
+								getFileLength());
+						ArrayList<Integer> failed = receiveContent(inStream,
+								f, tree, getRangeByte(), getFileLength());
+						mySkt.close();
+						if (!repair(f, tree, failed)) {
+							fail(new IOException("CHUNKS COULD NOT BE REPAIRED"));
+							return;
 						}
-						
-						FileOutputStream fos = new FileOutputStream(new File(
-								myDir.getPath() + "/" + getFileName()));
-
-						fos.write(fb);
-						fos.close();
-						downloadFinished = true;
+					} else {
+						receiveContent(inStream, f, null, getRangeByte(),
+								getFileLength());
+						mySkt.close();
 					}
+					transferComplete();
 				} catch (IOException e) {
 					// TODO Auto-generated catch block
 					e.printStackTrace();
+					fail(e);
+				} finally {
+					if (f != null) {
+						try {
+							f.close();
+						} catch (IOException e) {
+						}
+					}
+					close();
 				}
-				downloadFinished = true;
 			}
 
 		}
@@ -4,11 +4,14 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Enumeration;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import javax.xml.soap.Node;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class that represents the Server part of Gnutella Servent
@@ -17,19 +20,25 @@ import javax.xml.soap.Node;
  * @author Miguel Alonso Vilchis
  * 
  */
-public class Server implements Runnable {
+public class Server implements Runnable, HandshakeStage.Handler {
+	private ServerSocketChannel myChannel;
 	private ServerSocket mySkt;
 	private int myPort;
-	private ConcurrentHashMap<InetSocketAddress, ServentThread> neighbors;
+	private NeighborRegistry neighbors;
 	private ConcurrentHashMap<InetSocketAddress, ServentThread> downloads;
-	private ConcurrentHashMap<String, InetSocketAddress> historyPing;
-	private ConcurrentHashMap<String, ConcurrentHashMap<InetSocketAddress, Boolean>> firstPongsFromNeighbors;
-	private ConcurrentHashMap<String, InetSocketAddress> historyQuery;
-	private ConcurrentLinkedQueue<Message> pendingMessages;
-	private boolean listening;
+	private InboundDispatcher dispatcher;
+	private volatile boolean listening;
 	private IdGenerator myIdGenerator;
 	private File myDirectory;
-	private int maxNodes;
+	private ConnectionManager connectionManager;
+	private HashedWheelTimer timer;
+	private HashingService hashes;
+	private UploadCache uploadCache;
+	private UploadScheduler uploadScheduler;
+	private Metrics metrics;
+	private ConnectionExecutor executor;
+	private HandshakeStage handshakeStage;
+	private ThreadPoolExecutor handshakes;
 
 	/**
 	 * Creates a Server that listen for upcoming connections on the specified
@@ -38,20 +47,12 @@ public class Server implements Runnable {
 	 * @param myPort
 	 *            Port in which the server will wait for upcoming connections
 	 * @param neighbors
-	 *            HashMap that contains the connections to its neighbors nodes.
-	 *            Keys are in format InetSocketAddress, those InetSocketAddress
-	 *            are bound with each connection(ServentThread).
-	 * @param historyPing
-	 *            HashMap that contains de history of every PingMessage received
-	 *            from a neighbor Servent and every PingMessage generated by the
-	 *            Servent that owns this Server
-	 * @param historyQuery
-	 *            HashMap that contains de history of every QueryMessage
-	 *            received from a neighbor Servent and every QueryMessage
-	 *            generated by the Servent that owns this Server
-	 * @param pendingMessages
-	 *            Queue which contains every message that needs to be process by
-	 *            the Servent that owns this Server
+	 *            Registry of the connections to its neighbors nodes. Keys are
+	 *            in format InetSocketAddress, those InetSocketAddress are bound
+	 *            with each connection(ServentThread).
+	 * @param dispatcher
+	 *            Receive path of the Servent that owns this Server, shared by
+	 *            every connection
 	 * @param myIdGenerator
 	 *            Object to generate id
 	 * @param downloads
@@ -63,96 +64,177 @@ public class Server implements Runnable {
 	 * @param myDirectory
 	 *            DirectoryPath or file which, the Servent that owns this
 	 *            Server, shares with the network
+	 * @param metrics
+	 *            Metrics of the Servent that owns this Server
+	 * @param executor
+	 *            Executor that runs the connections of the Servent
+	 * @param connectionManager
+	 *            Decides if the Servent can accept another neighbor
+	 * @param timer
+	 *            Timer of the Servent
+	 * @param hashes
+	 *            Hashes of the shared files, gives the hash tree sent with
+	 *            every upload
 	 * @throws IOException
 	 *             IO error when opening the socket in which this Server listens
 	 *             for upcoming connections
 	 */
 	public Server(int myPort,
-			ConcurrentHashMap<InetSocketAddress, ServentThread> neighbors,
-			ConcurrentHashMap<String, InetSocketAddress> historyPing,
-			ConcurrentHashMap<String, InetSocketAddress> historyQuery,
-			ConcurrentLinkedQueue<Message> pendingMessages,
-			IdGenerator myIdGenerator,
+			NeighborRegistry neighbors,
+			InboundDispatcher dispatcher, IdGenerator myIdGenerator,
 			ConcurrentHashMap<InetSocketAddress, ServentThread> downloads,
-			File myDirectory) throws IOException {
-		mySkt = new ServerSocket(myPort);
+			File myDirectory, Metrics metrics, ConnectionExecutor executor,
+			ConnectionManager connectionManager, HashedWheelTimer timer,
+			HashingService hashes) throws IOException {
+		myChannel = ServerSocketChannel.open();
+		mySkt = myChannel.socket();
+		mySkt.bind(new InetSocketAddress(myPort),
+				GnutellaConstants.ACCEPT_BACKLOG);
 		this.myPort = myPort;
 		this.neighbors = neighbors;
 		this.downloads = downloads;
-		this.historyPing = historyPing;
-		this.historyQuery = historyQuery;
-		this.pendingMessages = pendingMessages;
+		this.dispatcher = dispatcher;
 		listening = true;
 		this.myIdGenerator = myIdGenerator;
 		this.myDirectory = myDirectory;
-		maxNodes = 5;
+		this.metrics = metrics;
+		this.executor = executor;
+		this.connectionManager = connectionManager;
+		this.timer = timer;
+		this.hashes = hashes;
+		uploadCache = new UploadCache(UploadCache.defaultBudget(), metrics);
+		uploadScheduler = new UploadScheduler(downloads, executor, metrics);
+		new Thread(uploadScheduler, "UploadScheduler-" + myPort).start();
+		final int port = myPort;
+		handshakes = new ThreadPoolExecutor(
+				GnutellaConstants.HANDSHAKE_THREADS,
+				GnutellaConstants.HANDSHAKE_THREADS, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(
+						GnutellaConstants.HANDSHAKE_QUEUE),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "Handshake-" + port);
+					}
+				});
+		handshakeStage = new HandshakeStage(this, metrics, timer);
+		new Thread(handshakeStage, "HandshakeStage-" + myPort).start();
 
 	}
 
+	/**
+	 * Accepts the upcoming connections and hands them to the HandshakeStage,
+	 * so a client that connects and sends nothing never stops the Server.
+	 */
 	@Override
 	public void run() {
 		while (listening) {
 			try {
-				Socket skt = mySkt.accept();
-				InetSocketAddress key = new InetSocketAddress(
-						skt.getInetAddress(), skt.getPort());
-
-				// Crea un nuevo thread para cada nueva conexion
-				ServentThread thread = new ServentThread(skt, historyPing,
-						historyQuery, pendingMessages, key, myDirectory);
-
-				// Decide que tipo de conexion es la entrante
-				switch (thread.establishConnection()) {
-
-				case GnutellaConstants.DOWNLOAD_NODE:
-					if (downloads.size() <= GnutellaConstants.MAX_DOWNLOADS) {
-
-						downloads.putIfAbsent(key, thread);
-						new Thread(thread).start();
-					} else {
-						thread.close();
-					}
-					break;
-				case GnutellaConstants.SERVENT_NODE:
-					if (neighbors.size() <= 10) {
-						neighbors.putIfAbsent(key, thread);
-						new Thread(thread).start();
-					} else {
-						thread.close();
-					}
+				SocketChannel skt = myChannel.accept();
+				if (!handshakeStage.offer(skt)) {
+					metrics.connectionRejected();
+				}
 
-					break;
-				default:
-					thread.close();
-					break;
+			} catch (IOException e) {
+				if (listening) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
 
+	/**
+	 * Receives from the HandshakeStage a connection whose request was read
+	 * and decides what to do with it in the bounded handshake executor. The
+	 * connection is rejected at once if the executor is full.
+	 * 
+	 * @param skt
+	 *            the connection
+	 * @param request
+	 *            the request sent by the client
+	 */
+	@Override
+	public void handshake(final Socket skt, final String request) {
+		try {
+			handshakes.execute(new Runnable() {
+				@Override
+				public void run() {
+					establish(skt, request);
 				}
+			});
+		} catch (RejectedExecutionException e) {
+			metrics.connectionRejected();
+			try {
+				skt.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
 
-				removeCompleteDownload();
+	private void establish(Socket skt, String request) {
+		InetSocketAddress key = new InetSocketAddress(skt.getInetAddress(),
+				skt.getPort());
+		// Crea un nuevo thread para cada nueva conexion
+		ServentThread thread = new ServentThread(skt, dispatcher, key,
+				myDirectory, metrics, executor, timer);
+
+		// Decide que tipo de conexion es la entrante
+		switch (thread.establishConnection(request)) {
+
+		case GnutellaConstants.DOWNLOAD_NODE:
+			// El scheduler decide si se sirve ahora o se encola
+			metrics.downloadAccepted();
+			thread.setHashingService(hashes);
+			thread.setUploadCache(uploadCache);
+			uploadScheduler.offer(key, thread);
+			break;
+		case GnutellaConstants.SERVENT_NODE:
+			if (connectionManager.acceptsConnection(thread.getLeaf())
+					&& thread.acceptConnection(connectionManager
+							.getUltrapeer())) {
+				metrics.connectionAccepted();
+				neighbors.add(key, thread);
+				executor.execute(thread);
+			} else {
+				metrics.connectionRejected();
+				thread.rejectConnection();
+			}
 
+			break;
+		default:
+			metrics.connectionRejected();
+			thread.close();
+			try {
+				skt.close();
 			} catch (IOException e) {
-
-				e.printStackTrace();
 			}
+			break;
+
 		}
 	}
 
-	public void setMaxNodes() {
-		maxNodes++;
+	/**
+	 * Returns the number of connections whose request is being read
+	 * 
+	 * @return number of pending handshakes
+	 */
+	public int getPendingHandshakes() {
+		return handshakeStage.getPendingHandshakes();
 	}
 
 	/**
-	 * Delete connections with completed downloads.
+	 * Stops listening for upcoming connections and closes the upload queue
 	 */
-	public void removeCompleteDownload() {
-		Enumeration<InetSocketAddress> e = downloads.keys();
-		while (e.hasMoreElements()) {
-			InetSocketAddress iSA = e.nextElement();
-			ServentThread sT = downloads.get(iSA);
-			if (sT.getDownloadFinished()) {
-				downloads.remove(iSA);
-			}
+	public void close() {
+		listening = false;
+		handshakeStage.close();
+		handshakes.shutdownNow();
+		uploadScheduler.close();
+		try {
+			mySkt.close();
+		} catch (IOException e) {
+			System.err.println(getClass() + ".close(): " + e.getClass()
+					+ e.getMessage());
 		}
-
 	}
 }
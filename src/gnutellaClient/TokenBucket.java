@@ -0,0 +1,62 @@
+package gnutellaClient;
+
+/**
+ * Limits the rate of an event: the bucket refills rate tokens per second up to
+ * its burst, and every event takes one token. An event that finds the bucket
+ * empty is over the rate.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class TokenBucket {
+	private double tokens;
+	private long last;
+	private int rate;
+	private int burst;
+
+	/**
+	 * Creates a full TokenBucket
+	 *
+	 * @param rate
+	 *            tokens per second
+	 * @param burst
+	 *            tokens the bucket holds
+	 */
+	public TokenBucket(int rate, int burst) {
+		this.rate = rate;
+		this.burst = burst;
+		tokens = burst;
+		last = System.nanoTime();
+	}
+
+	/**
+	 * Takes a token
+	 *
+	 * @return true if there was one, false if the event is over the rate
+	 */
+	public synchronized boolean take() {
+		refill();
+		if (tokens < 1) {
+			return false;
+		}
+		tokens--;
+		return true;
+	}
+
+	/**
+	 * Says if the bucket is full, that is no event took a token for a while
+	 *
+	 * @return true if the bucket is full
+	 */
+	public synchronized boolean getFull() {
+		refill();
+		return tokens >= burst;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+		last = now;
+	}
+}
@@ -0,0 +1,190 @@
+package gnutellaClient;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Append-only file with the descriptors received by a Servent. Every record
+ * holds the time in nanoseconds since the capture was opened, the address of
+ * the neighbor that sent the descriptor and the descriptor in bytes as it was
+ * read, before it is decoded and policed:
+ *
+ * <pre>
+ * long time | byte address length | address | short port | int length | descriptor
+ * </pre>
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class TrafficCapture {
+	private static final int MAGIC = 0x474E4350; // "GNCP"
+	private static final int VERSION = 1;
+
+	private DataOutputStream out;
+	private long start;
+	private long records;
+
+	/**
+	 * Opens a capture. If the file already exists the records are appended to
+	 * it.
+	 *
+	 * @param file
+	 *            the capture file
+	 * @throws IOException
+	 *             if the file can not be opened
+	 */
+	public TrafficCapture(File file) throws IOException {
+		boolean exists = file.length() > 0;
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file, true)));
+		if (!exists) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+		start = System.nanoTime();
+	}
+
+	/**
+	 * Appends a descriptor to the capture
+	 *
+	 * @param from
+	 *            the neighbor that sent the descriptor
+	 * @param descriptor
+	 *            the descriptor in bytes
+	 * @throws IOException
+	 *             if the record can not be written
+	 */
+	public synchronized void record(InetSocketAddress from, byte[] descriptor)
+			throws IOException {
+		byte[] address = from.getAddress().getAddress();
+		out.writeLong(System.nanoTime() - start);
+		out.writeByte(address.length);
+		out.write(address);
+		out.writeShort(from.getPort());
+		out.writeInt(descriptor.length);
+		out.write(descriptor);
+		records++;
+	}
+
+	/**
+	 * Returns the number of records written by this capture
+	 *
+	 * @return the number of records
+	 */
+	public synchronized long getRecords() {
+		return records;
+	}
+
+	/**
+	 * Writes the pending records and closes the capture
+	 *
+	 * @throws IOException
+	 *             if the file can not be closed
+	 */
+	public synchronized void close() throws IOException {
+		out.close();
+	}
+
+	/**
+	 * A descriptor read from a capture
+	 */
+	public static class Record {
+		private long time;
+		private InetSocketAddress from;
+		private byte[] descriptor;
+
+		public Record(long time, InetSocketAddress from, byte[] descriptor) {
+			this.time = time;
+			this.from = from;
+			this.descriptor = descriptor;
+		}
+
+		/**
+		 * Returns the time when the descriptor was received
+		 *
+		 * @return nanoseconds since the capture was opened
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * Returns the neighbor that sent the descriptor
+		 *
+		 * @return the InetSocketAddress of the neighbor
+		 */
+		public InetSocketAddress getFrom() {
+			return from;
+		}
+
+		/**
+		 * Returns the descriptor in bytes
+		 *
+		 * @return the descriptor
+		 */
+		public byte[] getDescriptor() {
+			return descriptor;
+		}
+	}
+
+	/**
+	 * Reads the records of a capture in the order they were written
+	 */
+	public static class Reader {
+		private DataInputStream in;
+
+		/**
+		 * Opens a capture for reading
+		 *
+		 * @param file
+		 *            the capture file
+		 * @throws IOException
+		 *             if the file can not be opened or is not a capture
+		 */
+		public Reader(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				in.close();
+				throw new IOException(file + " IS NOT A TRAFFIC CAPTURE");
+			}
+		}
+
+		/**
+		 * Returns the next record
+		 *
+		 * @return the record, or null at the end of the capture
+		 * @throws IOException
+		 *             if the capture is truncated or can not be read
+		 */
+		public Record next() throws IOException {
+			long time;
+			try {
+				time = in.readLong();
+			} catch (EOFException e) {
+				return null;
+			}
+			byte[] address = new byte[in.readUnsignedByte()];
+			in.readFully(address);
+			int port = in.readUnsignedShort();
+			byte[] descriptor = new byte[in.readInt()];
+			in.readFully(descriptor);
+			return new Record(time, new InetSocketAddress(
+					InetAddress.getByAddress(address), port), descriptor);
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package gnutellaClient;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a range of a file sent or received. A download is
+ * one segment plus one for every run of chunks requested again after failing
+ * the verification of the hash tree.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+@Name("gnutella.Transfer")
+@Label("Transfer Segment")
+@Category({ "Gnutella", "Transfers" })
+@Description("A range of a file uploaded or downloaded")
+@StackTrace(false)
+public class TransferEvent extends jdk.jfr.Event {
+	@Label("File")
+	String file;
+
+	@Label("Neighbor")
+	@Description("Address of the other side of the transfer")
+	String neighbor;
+
+	@Label("Upload")
+	@Description("True if this Servent sent the range")
+	boolean upload;
+
+	@Label("Start")
+	@Description("Offset of the first byte of the range")
+	long start;
+
+	@Label("End")
+	@Description("Offset after the last byte of the range")
+	long end;
+
+	@Label("Bytes")
+	@Description("Bytes transferred, less than the range if it was cut")
+	@DataAmount
+	long bytes;
+
+	@Label("Failed Chunks")
+	@Description("Chunks of a download that failed their verification")
+	int failedChunks;
+}
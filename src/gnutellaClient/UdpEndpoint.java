@@ -0,0 +1,194 @@
+package gnutellaClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Datagram endpoint of a Servent, bound to the same port number as its
+ * Server. Pings and queries are sent straight to known hosts and answered by
+ * them with a pong or a query hit in a datagram, so hosts can be probed and
+ * searched without a connection and without flooding the network. A
+ * descriptor received through UDP is never forwarded. Every datagram carries
+ * one descriptor encoded as on the connections.
+ *
+ * Each remote host may send GnutellaConstants.UDP_HOST_RATE datagrams per
+ * second, and the endpoint sends at most GnutellaConstants.UDP_SEND_RATE per
+ * second; the datagrams over those rates are dropped and counted.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class UdpEndpoint implements Runnable {
+
+	/**
+	 * Receives the descriptors that arrive in datagrams
+	 */
+	public interface Handler {
+		/**
+		 * Handles a descriptor received from a host
+		 *
+		 * @param m
+		 *            the descriptor
+		 * @param from
+		 *            address from which the datagram was sent
+		 * @return the answer to send back to the host, or null
+		 */
+		public Message datagram(Message m, InetSocketAddress from);
+	}
+
+	private DatagramChannel channel;
+	private Handler handler;
+	private Metrics metrics;
+	private TokenBucket sendBucket;
+	private HashMap<InetAddress, TokenBucket> hostBuckets;
+	private volatile boolean working;
+
+	/**
+	 * Creates an UdpEndpoint bound to the given port
+	 *
+	 * @param port
+	 *            port of the Servent
+	 * @param handler
+	 *            receives the descriptors that arrive
+	 * @param metrics
+	 *            Metrics of the Servent
+	 * @throws IOException
+	 *             if the port can not be bound
+	 */
+	public UdpEndpoint(int port, Handler handler, Metrics metrics)
+			throws IOException {
+		this.handler = handler;
+		this.metrics = metrics;
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(port));
+		sendBucket = new TokenBucket(GnutellaConstants.UDP_SEND_RATE,
+				2 * GnutellaConstants.UDP_SEND_RATE);
+		hostBuckets = new HashMap<InetAddress, TokenBucket>();
+		working = true;
+	}
+
+	/**
+	 * Sends a descriptor to a host
+	 *
+	 * @param m
+	 *            the descriptor
+	 * @param to
+	 *            address of the host, the port is the one of its Server
+	 * @return true if the datagram was sent, false if it was dropped
+	 */
+	public boolean send(Message m, InetSocketAddress to) {
+		byte[] descriptor = m.toByteArray();
+		if (descriptor.length > GnutellaConstants.UDP_MAX_DATAGRAM
+				|| !sendBucket.take()) {
+			metrics.udpDropped();
+			return false;
+		}
+		try {
+			channel.send(ByteBuffer.wrap(descriptor), to);
+			metrics.bytesOut(descriptor.length);
+			return true;
+		} catch (IOException e) {
+			metrics.udpDropped();
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the endpoint and releases its port
+	 */
+	public void close() {
+		working = false;
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		ByteBuffer buffer = ByteBuffer
+				.allocate(GnutellaConstants.UDP_MAX_DATAGRAM);
+		while (working) {
+			InetSocketAddress from;
+			try {
+				buffer.clear();
+				SocketAddress address = channel.receive(buffer);
+				from = (InetSocketAddress) address;
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				System.err.println(getClass() + ".run(): " + e.getClass()
+						+ e.getMessage());
+				continue;
+			}
+			if (!admit(from.getAddress())) {
+				metrics.udpDropped();
+				continue;
+			}
+			buffer.flip();
+			Message m;
+			try {
+				m = new MessageHandler(from, metrics)
+						.readMessage(new DataInputStream(
+								new ByteArrayInputStream(buffer.array(), 0,
+										buffer.limit())));
+			} catch (IOException e) {
+				m = null;
+			} catch (RuntimeException e) {
+				// Un datagrama mal formado no detiene el endpoint
+				m = null;
+			}
+			if (m == null) {
+				metrics.undecodable();
+				continue;
+			}
+			metrics.received(m.getPayloadD());
+			Message answer = handler.datagram(m, from);
+			if (answer != null) {
+				send(answer, from);
+			}
+		}
+	}
+
+	/**
+	 * Takes a token of the bucket of the host, forgetting the buckets of the
+	 * hosts that have been quiet when there are too many
+	 */
+	private boolean admit(InetAddress host) {
+		TokenBucket b = hostBuckets.get(host);
+		if (b == null) {
+			if (hostBuckets.size() >= GnutellaConstants.UDP_MAX_HOSTS) {
+				Iterator<Map.Entry<InetAddress, TokenBucket>> it = hostBuckets
+						.entrySet().iterator();
+				while (it.hasNext()) {
+					if (it.next().getValue().getFull()) {
+						it.remove();
+					}
+				}
+				if (hostBuckets.size() >= GnutellaConstants.UDP_MAX_HOSTS) {
+					return false;
+				}
+			}
+			b = new TokenBucket(GnutellaConstants.UDP_HOST_RATE,
+					2 * GnutellaConstants.UDP_HOST_RATE);
+			hostBuckets.put(host, b);
+		}
+		return b.take();
+	}
+}
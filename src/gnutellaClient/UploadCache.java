@@ -0,0 +1,342 @@
+package gnutellaClient;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Keeps in memory the content of the small files that are uploaded most
+ * often, so they are served without reading the disk. The content is kept in
+ * direct buffers taken from a pool by powers of two, and the buffers of the
+ * files that leave the cache are used again. The buffers, used or free, never
+ * take more than the budget of the cache.
+ *
+ * Every request of a file counts for its frequency, and the frequencies are
+ * halved from time to time so the files that stopped being requested are
+ * forgotten. A file that was read from disk only enters the cache if it was
+ * requested more often than every file that must leave to make room for it.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class UploadCache {
+
+	/**
+	 * The content of a file in the cache. Must be released when the upload
+	 * ends, its buffer is not used again while an upload holds it.
+	 */
+	public static class Content {
+		private String path;
+		private long length;
+		private long modified;
+		private ByteBuffer buffer;
+		private MerkleTree tree;
+		private int users;
+		private boolean evicted;
+
+		private Content(File file, ByteBuffer buffer) {
+			this.path = file.getAbsolutePath();
+			this.length = file.length();
+			this.modified = file.lastModified();
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Returns the content of the file, read only and with its own position
+		 *
+		 * @return the content from position 0 to the length of the file
+		 */
+		public ByteBuffer getBuffer() {
+			ByteBuffer b = buffer.asReadOnlyBuffer();
+			b.clear();
+			b.limit((int) length);
+			return b;
+		}
+
+		/**
+		 * Returns the hash tree of the chunks of the file, computed the first
+		 * time it is asked for
+		 *
+		 * @return the tree
+		 */
+		public synchronized MerkleTree getTree() {
+			if (tree == null) {
+				tree = MerkleTree.of(getBuffer());
+			}
+			return tree;
+		}
+
+		private boolean current(File f) {
+			return f.length() == length && f.lastModified() == modified;
+		}
+	}
+
+	private long budget;
+	private long allocated;
+	private long pinned;
+	private HashMap<String, Content> contents;
+	private HashMap<String, Integer> frequencies;
+	private HashMap<Integer, LinkedList<ByteBuffer>> free;
+	private int requests;
+	private Metrics metrics;
+
+	/**
+	 * Creates an empty UploadCache
+	 *
+	 * @param budget
+	 *            bytes of memory the buffers can take, 0 to disable the cache
+	 * @param metrics
+	 *            Metrics of the Servent, counts the hits and misses
+	 */
+	public UploadCache(long budget, Metrics metrics) {
+		this.budget = budget;
+		this.metrics = metrics;
+		contents = new HashMap<String, Content>();
+		frequencies = new HashMap<String, Integer>();
+		free = new HashMap<Integer, LinkedList<ByteBuffer>>();
+	}
+
+	/**
+	 * Reads the budget of the system property gnutella.uploadcache, in bytes
+	 *
+	 * @return the budget, GnutellaConstants.UPLOAD_CACHE_BUDGET by default
+	 */
+	public static long defaultBudget() {
+		try {
+			return Long.parseLong(System.getProperty("gnutella.uploadcache",
+					GnutellaConstants.UPLOAD_CACHE_BUDGET + ""));
+		} catch (NumberFormatException e) {
+			return GnutellaConstants.UPLOAD_CACHE_BUDGET;
+		}
+	}
+
+	/**
+	 * Counts a request of the file and returns its content if it is in the
+	 * cache and the file did not change
+	 *
+	 * @param file
+	 *            the requested file
+	 * @return the content, that must be released, or null if the file must
+	 *         be read from disk
+	 */
+	public synchronized Content get(File file) {
+		if (budget <= 0) {
+			return null;
+		}
+		String path = file.getAbsolutePath();
+		touch(path);
+		Content c = contents.get(path);
+		if (c != null && !c.current(file)) {
+			evict(c);
+			c = null;
+		}
+		if (c == null) {
+			metrics.uploadCacheMiss();
+			return null;
+		}
+		metrics.uploadCacheHit();
+		c.users++;
+		return c;
+	}
+
+	/**
+	 * Offers the content of a file that was read from disk. It enters the
+	 * cache if it is small enough and requested more often than the files
+	 * that must leave to make room for it.
+	 *
+	 * @param file
+	 *            the file
+	 * @param content
+	 *            the content read
+	 */
+	public synchronized void offer(File file, byte[] content) {
+		if (content.length > GnutellaConstants.UPLOAD_CACHE_MAX_FILE
+				|| content.length != file.length()) {
+			return;
+		}
+		String path = file.getAbsolutePath();
+		Integer frequency = frequencies.get(path);
+		if (frequency == null || frequency < 2 || contents.containsKey(path)) {
+			// Un archivo pedido una sola vez no desplaza a nadie
+			return;
+		}
+		int size = sizeClass(content.length);
+		if (size > budget) {
+			return;
+		}
+		ArrayList<Content> victims = victims(size, frequency);
+		if (victims == null) {
+			return;
+		}
+		for (Content v : victims) {
+			evict(v);
+		}
+		ByteBuffer buffer = allocate(size);
+		if (buffer == null) {
+			return;
+		}
+		buffer.clear();
+		buffer.put(content);
+		contents.put(path, new Content(file, buffer));
+	}
+
+	/**
+	 * Ends an upload that was served from the cache
+	 *
+	 * @param c
+	 *            the content returned by get
+	 */
+	public synchronized void release(Content c) {
+		c.users--;
+		if (c.evicted && c.users == 0) {
+			pinned -= c.buffer.capacity();
+			recycle(c.buffer);
+		}
+	}
+
+	/**
+	 * Returns the bytes taken by the buffers of the cache, used or free
+	 *
+	 * @return bytes allocated
+	 */
+	public synchronized long getAllocated() {
+		return allocated;
+	}
+
+	/**
+	 * Returns the number of files in the cache
+	 *
+	 * @return number of files
+	 */
+	public synchronized int getFiles() {
+		return contents.size();
+	}
+
+	private void touch(String path) {
+		Integer f = frequencies.get(path);
+		frequencies.put(path, f == null ? 1 : f + 1);
+		if (++requests >= GnutellaConstants.UPLOAD_CACHE_AGING) {
+			// Se reducen a la mitad para olvidar lo que ya no se pide
+			requests = 0;
+			Iterator<Map.Entry<String, Integer>> it = frequencies.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Integer> e = it.next();
+				if (e.getValue() <= 1) {
+					it.remove();
+				} else {
+					e.setValue(e.getValue() / 2);
+				}
+			}
+		}
+	}
+
+	private int frequency(Content c) {
+		Integer f = frequencies.get(c.path);
+		return f == null ? 0 : f;
+	}
+
+	/**
+	 * Chooses the files that leave the cache to make room for a buffer of the
+	 * given size, the least requested first. The buffers of the files that left
+	 * the cache and are still being uploaded take room, and a file that is
+	 * being uploaded does not leave since it would not free its buffer.
+	 *
+	 * @return the files, or null if one of them is requested as often as the
+	 *         new one or there is not enough room
+	 */
+	private ArrayList<Content> victims(int size, int frequency) {
+		ArrayList<Content> victims = new ArrayList<Content>();
+		long room = budget - inUse() - pinned;
+		if (room >= size) {
+			return victims;
+		}
+		ArrayList<Content> all = new ArrayList<Content>(contents.values());
+		Collections.sort(all, new Comparator<Content>() {
+			@Override
+			public int compare(Content o1, Content o2) {
+				return frequency(o1) - frequency(o2);
+			}
+		});
+		for (Content c : all) {
+			if (room >= size) {
+				break;
+			}
+			if (frequency(c) >= frequency) {
+				return null;
+			}
+			if (c.users > 0) {
+				continue;
+			}
+			victims.add(c);
+			room += c.buffer.capacity();
+		}
+		return room >= size ? victims : null;
+	}
+
+	private long inUse() {
+		long used = 0;
+		for (Content c : contents.values()) {
+			used += c.buffer.capacity();
+		}
+		return used;
+	}
+
+	private void evict(Content c) {
+		contents.remove(c.path);
+		c.evicted = true;
+		if (c.users == 0) {
+			recycle(c.buffer);
+		} else {
+			// Sigue ocupando el presupuesto hasta que termine la subida
+			pinned += c.buffer.capacity();
+		}
+	}
+
+	/**
+	 * Takes a buffer of the given size from the pool, or allocates it
+	 * dropping free buffers of other sizes if the budget does not allow it
+	 */
+	private ByteBuffer allocate(int size) {
+		LinkedList<ByteBuffer> list = free.get(size);
+		if (list != null && !list.isEmpty()) {
+			return list.removeFirst();
+		}
+		Iterator<LinkedList<ByteBuffer>> it = free.values().iterator();
+		while (allocated + size > budget && it.hasNext()) {
+			LinkedList<ByteBuffer> other = it.next();
+			while (allocated + size > budget && !other.isEmpty()) {
+				allocated -= other.removeFirst().capacity();
+			}
+		}
+		if (allocated + size > budget) {
+			return null;
+		}
+		allocated += size;
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	private void recycle(ByteBuffer buffer) {
+		LinkedList<ByteBuffer> list = free.get(buffer.capacity());
+		if (list == null) {
+			list = new LinkedList<ByteBuffer>();
+			free.put(buffer.capacity(), list);
+		}
+		list.add(buffer);
+	}
+
+	private static int sizeClass(int length) {
+		int size = GnutellaConstants.UPLOAD_CACHE_MIN_BUFFER;
+		while (size < length) {
+			size <<= 1;
+		}
+		return size;
+	}
+}
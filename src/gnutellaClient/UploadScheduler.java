@@ -0,0 +1,402 @@
+package gnutellaClient;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class that hands out the upload slots of a Servent. Requests that can not be
+ * served at once wait in a bounded queue and are told their position, slots
+ * are given round-robin between the hosts that are waiting and a slow upload
+ * is pre-empted when other requesters are waiting for its slot. A slot is
+ * given to the next requester as soon as its upload is closed. The position
+ * is sent again every GnutellaConstants.QUEUE_REFRESH_INTERVAL, so the
+ * requester does not give up while it waits and a requester that left is
+ * removed from the queue.
+ *
+ * The slots and the queue are decided holding the monitor of the scheduler,
+ * the answers to the requesters are written after releasing it, so a slow
+ * requester does not stop the other uploads from being scheduled.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class UploadScheduler extends ServentThread.Adapter implements
+		Runnable {
+	private static final int ACCEPT = 0;
+	private static final int QUEUE = 1;
+	private static final int DENY = 2;
+	private static final int PREEMPT = 3;
+
+	/**
+	 * Answer to a requester decided by the scheduler
+	 */
+	private static class Action {
+		private int kind;
+		private InetSocketAddress key;
+		private ServentThread thread;
+		private int position;
+
+		private Action(int kind, InetSocketAddress key, ServentThread thread,
+				int position) {
+			this.kind = kind;
+			this.key = key;
+			this.thread = thread;
+			this.position = position;
+		}
+	}
+
+	private ConcurrentHashMap<InetSocketAddress, ServentThread> downloads;
+	private HashMap<InetSocketAddress, ServentThread> active;
+	private HashMap<InetAddress, Integer> activePerHost;
+	private LinkedHashMap<InetAddress, LinkedList<InetSocketAddress>> waitingHosts;
+	private HashMap<InetSocketAddress, ServentThread> waiting;
+	private HashMap<InetSocketAddress, Integer> lastPosition;
+	private ConnectionExecutor executor;
+	private Metrics metrics;
+	private boolean working;
+	private long lastRefresh;
+
+	/**
+	 * Creates an UploadScheduler
+	 *
+	 * @param downloads
+	 *            HashMap that contains the connections to nodes which the
+	 *            Servent owner of this scheduler has request for downloads and
+	 *            connections to nodes that request for a download. Every upload
+	 *            that gets a slot is added to it.
+	 * @param executor
+	 *            Executor that runs the connections of the Servent, every
+	 *            upload that gets a slot is submitted to it
+	 * @param metrics
+	 *            Metrics of the Servent, counts the pre-empted uploads
+	 */
+	public UploadScheduler(
+			ConcurrentHashMap<InetSocketAddress, ServentThread> downloads,
+			ConnectionExecutor executor, Metrics metrics) {
+		this.downloads = downloads;
+		this.executor = executor;
+		this.metrics = metrics;
+		active = new HashMap<InetSocketAddress, ServentThread>();
+		activePerHost = new HashMap<InetAddress, Integer>();
+		waitingHosts = new LinkedHashMap<InetAddress, LinkedList<InetSocketAddress>>();
+		waiting = new HashMap<InetSocketAddress, ServentThread>();
+		lastPosition = new HashMap<InetSocketAddress, Integer>();
+		working = true;
+	}
+
+	/**
+	 * Receives an accepted download request. The upload starts at once if there
+	 * is a free slot, otherwise the requester is queued and told its position,
+	 * or rejected if the queue is full.
+	 *
+	 * @param key
+	 *            InetSocketAddress bound to the connection
+	 * @param thread
+	 *            the connection that requested the download
+	 */
+	public void offer(InetSocketAddress key, ServentThread thread) {
+		ArrayList<Action> actions = new ArrayList<Action>();
+		admit(key, thread, actions);
+		perform(actions);
+	}
+
+	private synchronized void admit(InetSocketAddress key,
+			ServentThread thread, ArrayList<Action> actions) {
+		InetAddress host = key.getAddress();
+		if (waiting.isEmpty() && hasFreeSlot(host)) {
+			start(key, thread, actions);
+			return;
+		}
+		LinkedList<InetSocketAddress> hostQueue = waitingHosts.get(host);
+		int queuedByHost = hostQueue == null ? 0 : hostQueue.size();
+		if (waiting.size() >= GnutellaConstants.MAX_UPLOAD_QUEUE
+				|| queuedByHost >= GnutellaConstants.MAX_QUEUED_PER_HOST) {
+			actions.add(new Action(DENY, key, thread, 0));
+			return;
+		}
+		if (hostQueue == null) {
+			hostQueue = new LinkedList<InetSocketAddress>();
+			waitingHosts.put(host, hostQueue);
+		}
+		hostQueue.add(key);
+		waiting.put(key, thread);
+		promote(actions);
+		notifyPositions(actions, false);
+	}
+
+	/**
+	 * Returns the number of uploads that hold a slot
+	 *
+	 * @return number of active uploads
+	 */
+	public synchronized int getActiveUploads() {
+		return active.size();
+	}
+
+	/**
+	 * Returns the number of requesters waiting for a slot
+	 *
+	 * @return number of queued requesters
+	 */
+	public synchronized int getQueuedUploads() {
+		return waiting.size();
+	}
+
+	/**
+	 * Stops the scheduler and closes every queued request
+	 */
+	public void close() {
+		ArrayList<ServentThread> denied;
+		synchronized (this) {
+			working = false;
+			denied = new ArrayList<ServentThread>(waiting.values());
+			waiting.clear();
+			waitingHosts.clear();
+			lastPosition.clear();
+		}
+		for (ServentThread sT : denied) {
+			sT.denyUpload();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		while (isWorking()) {
+			try {
+				Thread.sleep(GnutellaConstants.UPLOAD_CHECK_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+			ArrayList<Action> actions = new ArrayList<Action>();
+			synchronized (this) {
+				if (!waiting.isEmpty()) {
+					preemptSlowUploads(actions);
+				}
+				promote(actions);
+				long now = System.currentTimeMillis();
+				boolean refresh = now - lastRefresh >= GnutellaConstants.QUEUE_REFRESH_INTERVAL;
+				if (refresh) {
+					lastRefresh = now;
+				}
+				notifyPositions(actions, refresh);
+			}
+			perform(actions);
+		}
+	}
+
+	private synchronized boolean isWorking() {
+		return working;
+	}
+
+	private boolean hasFreeSlot(InetAddress host) {
+		return active.size() < GnutellaConstants.MAX_UPLOADS
+				&& activeOf(host) < GnutellaConstants.MAX_UPLOADS_PER_HOST;
+	}
+
+	private int activeOf(InetAddress host) {
+		Integer n = activePerHost.get(host);
+		return n == null ? 0 : n;
+	}
+
+	/**
+	 * Gives a slot to a requester, the slot is released by closed() if the
+	 * answer can not be sent
+	 */
+	private void start(InetSocketAddress key, ServentThread thread,
+			ArrayList<Action> actions) {
+		InetAddress host = key.getAddress();
+		active.put(key, thread);
+		activePerHost.put(host, activeOf(host) + 1);
+		downloads.putIfAbsent(key, thread);
+		thread.setKey(key);
+		thread.addListener(this);
+		actions.add(new Action(ACCEPT, key, thread, 0));
+	}
+
+	/**
+	 * Sends the answers decided while holding the monitor, it must be called
+	 * without holding it
+	 */
+	private void perform(ArrayList<Action> actions) {
+		for (Action a : actions) {
+			switch (a.kind) {
+			case ACCEPT:
+				if (a.thread.acceptUpload()) {
+					executor.execute(a.thread);
+				} else {
+					// Al cerrarse libera su lugar
+					a.thread.close();
+				}
+				break;
+			case QUEUE:
+				if (!a.thread.queueUpload(a.position)) {
+					drop(a.key, a.thread);
+					a.thread.close();
+				}
+				break;
+			case DENY:
+				a.thread.denyUpload();
+				break;
+			case PREEMPT:
+				metrics.uploadPreempted();
+				// Al cerrarse libera su lugar
+				a.thread.close();
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Removes from the queue a requester that can not be told its position
+	 */
+	private synchronized void drop(InetSocketAddress key, ServentThread thread) {
+		if (waiting.get(key) != thread) {
+			return;
+		}
+		waiting.remove(key);
+		lastPosition.remove(key);
+		LinkedList<InetSocketAddress> q = waitingHosts.get(key.getAddress());
+		q.remove(key);
+		if (q.isEmpty()) {
+			waitingHosts.remove(key.getAddress());
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 *
+	 * @see
+	 * gnutellaClient.ServentThread.Adapter#closed(gnutellaClient.ServentThread)
+	 */
+	@Override
+	public void closed(ServentThread sT) {
+		ArrayList<Action> actions = new ArrayList<Action>();
+		synchronized (this) {
+			if (active.get(sT.getKey()) != sT) {
+				return;
+			}
+			release(sT.getKey());
+			if (working) {
+				// El lugar libre pasa al siguiente sin esperar la revision
+				promote(actions);
+				notifyPositions(actions, false);
+			}
+		}
+		perform(actions);
+	}
+
+	private void release(InetSocketAddress key) {
+		if (active.remove(key) == null) {
+			return;
+		}
+		downloads.remove(key);
+		InetAddress host = key.getAddress();
+		int n = activeOf(host) - 1;
+		if (n > 0) {
+			activePerHost.put(host, n);
+		} else {
+			activePerHost.remove(host);
+		}
+	}
+
+	/**
+	 * Closes the uploads that after the grace time are still sending below
+	 * the minimum rate, so their slots go to the requesters that wait.
+	 */
+	private void preemptSlowUploads(ArrayList<Action> actions) {
+		long now = System.currentTimeMillis();
+		ArrayList<InetSocketAddress> slow = new ArrayList<InetSocketAddress>();
+		for (Map.Entry<InetSocketAddress, ServentThread> e : active.entrySet()) {
+			ServentThread sT = e.getValue();
+			if (sT.getUploadStart() == 0) {
+				// Todavia no se le ha contestado
+				continue;
+			}
+			long elapsed = now - sT.getUploadStart();
+			if (elapsed > GnutellaConstants.UPLOAD_GRACE_TIME
+					&& sT.getBytesSent() * 1000 / elapsed < GnutellaConstants.MIN_UPLOAD_RATE) {
+				slow.add(e.getKey());
+			}
+		}
+		int toFree = waiting.size();
+		for (InetSocketAddress key : slow) {
+			if (toFree-- == 0) {
+				break;
+			}
+			actions.add(new Action(PREEMPT, key, active.get(key), 0));
+		}
+	}
+
+	/**
+	 * Gives the free slots to the queued requesters, visiting the hosts in
+	 * round-robin order.
+	 */
+	private void promote(ArrayList<Action> actions) {
+		boolean progress = true;
+		while (progress && active.size() < GnutellaConstants.MAX_UPLOADS
+				&& !waiting.isEmpty()) {
+			progress = false;
+			Iterator<Map.Entry<InetAddress, LinkedList<InetSocketAddress>>> it = waitingHosts
+					.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<InetAddress, LinkedList<InetSocketAddress>> e = it
+						.next();
+				if (activeOf(e.getKey()) >= GnutellaConstants.MAX_UPLOADS_PER_HOST) {
+					continue;
+				}
+				InetSocketAddress key = e.getValue().poll();
+				it.remove();
+				if (!e.getValue().isEmpty()) {
+					// El host pasa al final de la ronda
+					waitingHosts.put(e.getKey(), e.getValue());
+				}
+				lastPosition.remove(key);
+				start(key, waiting.remove(key), actions);
+				progress = true;
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Tells every queued requester whose position changed its new position.
+	 * Positions follow the round-robin order in which slots are given.
+	 * 
+	 * @param refresh
+	 *            true to tell every requester its position even if it did not
+	 *            change, a requester that can not be written is dropped
+	 */
+	private void notifyPositions(ArrayList<Action> actions, boolean refresh) {
+		ArrayList<LinkedList<InetSocketAddress>> queues = new ArrayList<LinkedList<InetSocketAddress>>(
+				waitingHosts.values());
+		int position = 1;
+		for (int round = 0; position <= waiting.size(); round++) {
+			for (LinkedList<InetSocketAddress> q : queues) {
+				if (round >= q.size()) {
+					continue;
+				}
+				InetSocketAddress key = q.get(round);
+				Integer last = lastPosition.get(key);
+				if (refresh || last == null || last != position) {
+					lastPosition.put(key, position);
+					actions.add(new Action(QUEUE, key, waiting.get(key),
+							position));
+				}
+				position++;
+			}
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package gnutellaClient;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event of a batch of descriptors written on the connection
+ * with a neighbor. Without compression every descriptor is a batch; with
+ * compression the batch ends when the compressor is flushed. Its duration
+ * goes from the first write of the batch to the last one.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+@Name("gnutella.Write")
+@Label("Descriptor Write Batch")
+@Category({ "Gnutella", "Connections" })
+@Description("Descriptors written on the connection with a neighbor")
+@StackTrace(false)
+public class WriteEvent extends jdk.jfr.Event {
+	@Label("Neighbor")
+	String neighbor;
+
+	@Label("Descriptors")
+	int descriptors;
+
+	@Label("Bytes")
+	@Description("Bytes of the descriptors before compression")
+	@DataAmount
+	long bytes;
+
+	@Label("Wire Bytes")
+	@Description("Bytes written on the socket")
+	@DataAmount
+	long wireBytes;
+
+	@Label("Last GUID")
+	@Description("GUID of the last descriptor of the batch")
+	String guid;
+
+	@Label("Last Type")
+	String type;
+
+	@Label("Last Hops")
+	int hops;
+}
@@ -0,0 +1,121 @@
+package gnutellaClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the TokenBucket and the FloodPolicer of a neighbor: the ttl clamp,
+ * the rate per type of descriptor and the disconnection of an abusive
+ * neighbor.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class FloodPolicerTest {
+	private static final InetSocketAddress NODE = new InetSocketAddress(
+			InetAddress.getLoopbackAddress(), 6346);
+	private static final int PING_BURST = GnutellaConstants.FLOOD_BURST
+			* GnutellaConstants.FLOOD_PING_RATE;
+
+	private Metrics metrics;
+	private FloodPolicer policer;
+
+	@Before
+	public void setUp() {
+		metrics = new Metrics();
+		policer = new FloodPolicer(metrics);
+	}
+
+	private static Message ping(int ttl, int hop) {
+		return new PingMessage((byte) ttl, (byte) hop, NODE);
+	}
+
+	@Test
+	public void bucketAllowsItsBurstAndThenRefills()
+			throws InterruptedException {
+		TokenBucket b = new TokenBucket(100, 5);
+		assertTrue(b.getFull());
+		int taken = 0;
+		while (taken < 10 && b.take()) {
+			taken++;
+		}
+		assertEquals(5, taken);
+		assertFalse(b.getFull());
+
+		// 100 por segundo, un token cada 10 ms
+		Thread.sleep(100);
+		assertTrue(b.take());
+	}
+
+	@Test
+	public void idleBucketDoesNotGrowOverItsBurst() throws InterruptedException {
+		TokenBucket b = new TokenBucket(1000, 3);
+		Thread.sleep(50);
+		assertTrue(b.getFull());
+		int taken = 0;
+		while (taken < 10 && b.take()) {
+			taken++;
+		}
+		assertEquals(3, taken);
+	}
+
+	@Test
+	public void ttlIsClampedToTheMaximum() {
+		Message m = ping(GnutellaConstants.MAX_TTL, 3);
+		assertTrue(policer.admit(m));
+		assertEquals(GnutellaConstants.MAX_TTL - 3, m.getTtl());
+		assertEquals(1, metrics.getTtlClamped());
+
+		Message ok = ping(GnutellaConstants.MAX_TTL - 3, 3);
+		assertTrue(policer.admit(ok));
+		assertEquals(GnutellaConstants.MAX_TTL - 3, ok.getTtl());
+		assertEquals(1, metrics.getTtlClamped());
+	}
+
+	@Test
+	public void descriptorWithTooManyHopsIsDropped() {
+		assertFalse(policer.admit(ping(1, GnutellaConstants.MAX_TTL + 1)));
+		assertEquals(1, metrics.getPoliced()[Metrics
+				.typeIndex(GnutellaConstants.PING)]);
+	}
+
+	@Test
+	public void descriptorsOverTheRateAreDropped() {
+		int admitted = 0;
+		for (int i = 0; i < 2 * PING_BURST; i++) {
+			if (policer.admit(ping(1, 0))) {
+				admitted++;
+			}
+		}
+		// Durante el ciclo puede llegar a lo mas un token mas
+		assertTrue("admitted " + admitted, admitted >= PING_BURST
+				&& admitted <= PING_BURST + 1);
+		assertFalse(policer.getAbusive());
+
+		// Cada tipo tiene su propia cubeta
+		assertTrue(policer.admit(new QueryMessage((byte) 1, (byte) 0, 0,
+				NODE, (short) 0, "song")));
+	}
+
+	@Test
+	public void sustainedFloodMakesTheNeighborAbusive() {
+		for (int i = 0; i < PING_BURST + GnutellaConstants.FLOOD_ABUSE_LIMIT
+				- 2; i++) {
+			policer.admit(ping(1, 0));
+		}
+		assertFalse(policer.getAbusive());
+		// Uno mas por si llego un token durante el ciclo
+		for (int i = 0; i < 3; i++) {
+			policer.admit(ping(1, 0));
+		}
+		assertTrue(policer.getAbusive());
+	}
+}
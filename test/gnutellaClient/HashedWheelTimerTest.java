@@ -0,0 +1,121 @@
+package gnutellaClient;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the timeouts of the HashedWheelTimer never expire before their
+ * delay and that a cancelled timeout never runs.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class HashedWheelTimerTest {
+	// Margen para un sistema cargado, la precision es de un tick
+	private static final long LATE = 2 * GnutellaConstants.TIMER_TICK + 1000;
+
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setUp() {
+		timer = new HashedWheelTimer("Timer-test");
+	}
+
+	@After
+	public void tearDown() {
+		timer.close();
+	}
+
+	@Test
+	public void timeoutsNeverExpireEarly() throws InterruptedException {
+		long[] delays = { 0, 1, GnutellaConstants.TIMER_TICK / 2,
+				GnutellaConstants.TIMER_TICK, 3 * GnutellaConstants.TIMER_TICK + 7,
+				1000 };
+		final CountDownLatch done = new CountDownLatch(delays.length);
+		final AtomicLong[] elapsed = new AtomicLong[delays.length];
+		for (int i = 0; i < delays.length; i++) {
+			final AtomicLong e = new AtomicLong(-1);
+			elapsed[i] = e;
+			final long start = System.nanoTime();
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					e.set(System.nanoTime() - start);
+					done.countDown();
+				}
+			}, delays[i]);
+		}
+		assertTrue(done.await(1000 + LATE, TimeUnit.MILLISECONDS));
+		for (int i = 0; i < delays.length; i++) {
+			long ms = TimeUnit.NANOSECONDS.toMillis(elapsed[i].get());
+			assertTrue("delay " + delays[i] + " expired after " + ms + " ms",
+					elapsed[i].get() >= TimeUnit.MILLISECONDS
+							.toNanos(delays[i]));
+			assertTrue("delay " + delays[i] + " expired after " + ms + " ms",
+					ms <= delays[i] + LATE);
+		}
+	}
+
+	@Test
+	public void cancelledTimeoutNeverRuns() throws InterruptedException {
+		final AtomicBoolean ran = new AtomicBoolean();
+		HashedWheelTimer.Timeout t = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				ran.set(true);
+			}
+		}, 2 * GnutellaConstants.TIMER_TICK);
+
+		assertTrue(t.cancel());
+		assertTrue(t.isCancelled());
+		assertFalse(t.cancel());
+		Thread.sleep(5 * GnutellaConstants.TIMER_TICK);
+		assertFalse(ran.get());
+		assertFalse(t.isExpired());
+	}
+
+	@Test
+	public void expiredTimeoutCanNotBeCancelled() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		HashedWheelTimer.Timeout t = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		}, 0);
+
+		assertTrue(done.await(LATE, TimeUnit.MILLISECONDS));
+		assertTrue(t.isExpired());
+		assertFalse(t.cancel());
+	}
+
+	@Test
+	public void failingTaskDoesNotStopTheTimer() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				throw new IllegalStateException("task failed");
+			}
+		}, 0);
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		}, GnutellaConstants.TIMER_TICK);
+
+		assertTrue(done.await(GnutellaConstants.TIMER_TICK + LATE,
+				TimeUnit.MILLISECONDS));
+	}
+}
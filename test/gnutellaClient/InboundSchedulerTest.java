@@ -0,0 +1,137 @@
+package gnutellaClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the deficit round robin of the InboundScheduler between neighbors and
+ * what it drops when the queue of a neighbor is full.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class InboundSchedulerTest {
+	private static final InetSocketAddress A = new InetSocketAddress(
+			InetAddress.getLoopbackAddress(), 1);
+	private static final InetSocketAddress B = new InetSocketAddress(
+			InetAddress.getLoopbackAddress(), 2);
+	private static final int BIG = 400;
+
+	private Metrics metrics;
+	private InboundScheduler scheduler;
+
+	@Before
+	public void setUp() {
+		metrics = new Metrics();
+		scheduler = new InboundScheduler(metrics);
+	}
+
+	private static Message message(byte payloadD, int payloadL,
+			InetSocketAddress from) {
+		return new Message(payloadD, GnutellaConstants.DEFAULT_TTL, (byte) 0,
+				payloadL, from);
+	}
+
+	private static int cost(Message m) {
+		return GnutellaConstants.HEADER_LENGTH + m.getPayloadL();
+	}
+
+	private Message poll() throws InterruptedException {
+		return scheduler.poll(0, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void neighborsGetTheSameBytesNoMatterTheSizeOfTheirDescriptors()
+			throws InterruptedException {
+		for (int i = 0; i < 50; i++) {
+			scheduler.add(message(GnutellaConstants.QUERY, BIG, A));
+		}
+		for (int i = 0; i < 500; i++) {
+			scheduler.add(message(GnutellaConstants.PING,
+					GnutellaConstants.PING_PLL, B));
+		}
+
+		long bytesA = 0;
+		long bytesB = 0;
+		for (int i = 0; i < 200; i++) {
+			Message m = poll();
+			if (m.getReceptorNode().equals(A)) {
+				bytesA += cost(m);
+			} else {
+				bytesB += cost(m);
+			}
+		}
+		// Ningun vecino se adelanta mas de un turno y un descriptor
+		assertTrue(bytesA + " / " + bytesB,
+				Math.abs(bytesA - bytesB) <= GnutellaConstants.INBOUND_QUANTUM
+						+ GnutellaConstants.HEADER_LENGTH + BIG);
+		assertEquals(550 - 200, scheduler.size());
+	}
+
+	@Test
+	public void descriptorsOfANeighborKeepTheirOrder()
+			throws InterruptedException {
+		Message[] sent = new Message[10];
+		for (int i = 0; i < sent.length; i++) {
+			sent[i] = message(GnutellaConstants.QUERY, 10 * i, A);
+			scheduler.add(sent[i]);
+		}
+		for (Message m : sent) {
+			assertSame(m, poll());
+		}
+		assertTrue(scheduler.isEmpty());
+		assertNull(poll());
+	}
+
+	@Test
+	public void fullQueueDropsItsOldestPing() throws InterruptedException {
+		Message hit = message(GnutellaConstants.QUERY_HIT, BIG, A);
+		scheduler.add(hit);
+		Message oldest = message(GnutellaConstants.PING,
+				GnutellaConstants.PING_PLL, A);
+		scheduler.add(oldest);
+		for (int i = 2; i < GnutellaConstants.INBOUND_QUEUE_CAPACITY; i++) {
+			scheduler.add(message(GnutellaConstants.PING,
+					GnutellaConstants.PING_PLL, A));
+		}
+		Message last = message(GnutellaConstants.QUERY,
+				GnutellaConstants.PING_PLL, A);
+
+		assertTrue(scheduler.add(last));
+		assertEquals(GnutellaConstants.INBOUND_QUEUE_CAPACITY,
+				scheduler.size(A));
+		assertEquals(1, metrics.getDropped()[Metrics
+				.typeIndex(GnutellaConstants.PING)]);
+		// El query hit se conserva, el ping mas viejo no
+		assertSame(hit, poll());
+		assertTrue(poll() != oldest);
+	}
+
+	@Test
+	public void fullQueueOfQueryHitsDropsTheNewDescriptor() {
+		for (int i = 0; i < GnutellaConstants.INBOUND_QUEUE_CAPACITY; i++) {
+			scheduler.add(message(GnutellaConstants.QUERY_HIT, BIG, A));
+		}
+
+		assertFalse(scheduler.add(message(GnutellaConstants.QUERY_HIT, BIG,
+				A)));
+		assertEquals(GnutellaConstants.INBOUND_QUEUE_CAPACITY,
+				scheduler.size(A));
+		assertEquals(1, metrics.getDropped()[Metrics
+				.typeIndex(GnutellaConstants.QUERY_HIT)]);
+		// La cola llena de un vecino no afecta a los demas
+		assertTrue(scheduler.add(message(GnutellaConstants.PING,
+				GnutellaConstants.PING_PLL, B)));
+	}
+}
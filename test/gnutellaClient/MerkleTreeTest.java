@@ -0,0 +1,167 @@
+package gnutellaClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests the roots of the MerkleTree against known vectors, the verification
+ * of the chunks and the tree sent with an upload.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class MerkleTreeTest {
+	private static final int CHUNK = GnutellaConstants.MERKLE_CHUNK;
+
+	/**
+	 * Content of the given length whose byte i is i mod 251, so no chunk
+	 * repeats another
+	 */
+	private static byte[] content(int length) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = (byte) (i % 251);
+		}
+		return b;
+	}
+
+	private static byte[] hex(String s) {
+		byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return b;
+	}
+
+	private static void assertRoot(String expected, byte[] content) {
+		assertArrayEquals(hex(expected), MerkleTree.of(content).getRoot());
+	}
+
+	@Test
+	public void singleChunkRootIsTheSha1OfTheContent() {
+		// Vectores de SHA-1 de FIPS 180
+		assertRoot("da39a3ee5e6b4b0d3255bfef95601890afd80709", new byte[0]);
+		assertRoot("a9993e364706816aba3e25717850c26c9cd0d89d",
+				"abc".getBytes());
+	}
+
+	@Test
+	public void rootMatchesKnownVectors() {
+		assertRoot("8e2ba8c6fd3d3fd6c2c073443b18f4f484639dd3", content(CHUNK));
+		// Dos hojas, la segunda de un byte
+		assertRoot("b49c2f0058570f636c866ea282dd5cc9463416e8",
+				content(CHUNK + 1));
+		assertRoot("9fb29fe34cbece9d7ce9297cb0213de10d6f6735",
+				content(4 * CHUNK));
+		// Cinco hojas, la ultima sube sin hermano
+		assertRoot("e26d2cc1546327b1c2395854941abaa8e5279e37",
+				content(5 * CHUNK - 3));
+	}
+
+	@Test
+	public void treeOfAFileIsTheTreeOfItsContent() throws IOException {
+		byte[] b = content(3 * CHUNK + 17);
+		File f = File.createTempFile("merkle", ".bin");
+		try {
+			Files.write(f.toPath(), b);
+			FileChannel channel = FileChannel.open(f.toPath(),
+					StandardOpenOption.READ);
+			try {
+				MerkleTree tree = MerkleTree.of(channel);
+				assertTrue(tree.sameRoot(MerkleTree.of(b)));
+				assertEquals(4, tree.getChunks());
+				assertEquals(b.length, tree.getFileLength());
+			} finally {
+				channel.close();
+			}
+		} finally {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void onlyTheCorruptChunkFailsVerification() {
+		byte[] b = content(3 * CHUNK + 17);
+		MerkleTree tree = MerkleTree.of(b);
+		b[CHUNK + 5] ^= 1;
+		MessageDigest digest = MerkleTree.newDigest();
+		for (int i = 0; i < tree.getChunks(); i++) {
+			digest.update(b, (int) tree.getChunkStart(i),
+					(int) (tree.getChunkEnd(i) - tree.getChunkStart(i)));
+			assertEquals("chunk " + i, i != 1, tree.verify(i, digest.digest()));
+		}
+		assertEquals(3 * CHUNK + 17, tree.getChunkEnd(3));
+		assertFalse(tree.sameRoot(MerkleTree.of(b)));
+	}
+
+	@Test
+	public void repairedContentHasTheSameRoot() {
+		byte[] b = content(2 * CHUNK + 1);
+		MerkleTree tree = MerkleTree.of(b);
+		byte[] corrupt = b.clone();
+		Arrays.fill(corrupt, CHUNK, 2 * CHUNK, (byte) 0);
+		assertFalse(tree.sameRoot(MerkleTree.of(corrupt)));
+
+		// Se vuelve a pedir solo el trozo que fallo
+		System.arraycopy(b, CHUNK, corrupt, CHUNK, CHUNK);
+		assertTrue(tree.sameRoot(MerkleTree.of(corrupt)));
+	}
+
+	@Test
+	public void writtenTreeIsReadBack() throws IOException {
+		byte[] b = content(5 * CHUNK - 3);
+		MerkleTree tree = MerkleTree.of(b);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		tree.write(new DataOutputStream(bytes));
+
+		MerkleTree read = MerkleTree.read(new DataInputStream(
+				new ByteArrayInputStream(bytes.toByteArray())), b.length);
+		assertTrue(tree.sameRoot(read));
+		assertEquals(tree.getChunks(), read.getChunks());
+	}
+
+	@Test
+	public void treeThatDoesNotMatchTheFileIsRejected() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		MerkleTree.of(content(2 * CHUNK)).write(new DataOutputStream(bytes));
+		try {
+			MerkleTree.read(new DataInputStream(new ByteArrayInputStream(
+					bytes.toByteArray())), 3 * CHUNK);
+			fail("tree of 2 chunks accepted for a file of 3");
+		} catch (IOException e) {
+			// Esperado
+		}
+
+		// Un uploader no puede pedir que se reserven demasiadas hojas
+		bytes.reset();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(CHUNK);
+		out.writeInt(GnutellaConstants.MERKLE_MAX_CHUNKS + 1);
+		try {
+			MerkleTree.read(new DataInputStream(new ByteArrayInputStream(
+					bytes.toByteArray())),
+					(long) (GnutellaConstants.MERKLE_MAX_CHUNKS + 1) * CHUNK);
+			fail("tree of more than MERKLE_MAX_CHUNKS leaves accepted");
+		} catch (IOException e) {
+			// Esperado
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package gnutellaClient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Tests that the sizes of the files of a QueryHitMessage survive the encoding
+ * and the decoding, the ones over 4 GiB through the GGEP extension "LF".
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class QueryHitMessageTest {
+	private static final InetSocketAddress NODE = new InetSocketAddress(
+			InetAddress.getLoopbackAddress(), 6346);
+
+	private static QueryHitMessage hit(long[] size) throws Exception {
+		int[] index = new int[size.length];
+		String[] name = new String[size.length];
+		for (int i = 0; i < size.length; i++) {
+			index[i] = i + 1;
+			name[i] = "file " + i + ".iso";
+		}
+		return new QueryHitMessage(IdGenerator.getIdMessage(),
+				GnutellaConstants.DEFAULT_TTL, (byte) 0, 0, NODE,
+				(byte) size.length, (short) 6346,
+				InetAddress.getByName("10.1.2.3"),
+				GnutellaConstants.DFLT_SPEED, index, size, name,
+				IdGenerator.getIdServent());
+	}
+
+	private static QueryHitMessage decode(byte[] descriptor) {
+		Message m = new MessageHandler(NODE, new Metrics())
+				.getMessage(descriptor);
+		assertTrue(m instanceof QueryHitMessage);
+		return (QueryHitMessage) m;
+	}
+
+	@Test
+	public void sizesOverFourGigabytesSurviveTheRoundTrip() throws Exception {
+		long[] size = { 0, 1000, GnutellaConstants.MAX_HIT_SIZE - 1,
+				GnutellaConstants.MAX_HIT_SIZE, 5L << 30, 1L << 40,
+				Long.MAX_VALUE };
+		QueryHitMessage sent = hit(size);
+		QueryHitMessage received = decode(sent.toByteArray());
+
+		assertArrayEquals(size, received.getFileSize());
+		assertArrayEquals(sent.getFileName(), received.getFileName());
+		assertArrayEquals(sent.getFileIndex(), received.getFileIndex());
+		assertEquals(size.length, received.getNumberOfHits());
+	}
+
+	@Test
+	public void largeFileCarriesAFullSizeField() throws Exception {
+		byte[] descriptor = hit(new long[] { 5L << 30 }).toByteArray();
+		// Numero de hits, puerto, ip, velocidad e indice preceden al tamano
+		int field = GnutellaConstants.HEADER_LENGTH + 1 + 2 + 4 + 4 + 4;
+		long sizeField = ByteBuffer.wrap(descriptor, field, 4)
+				.order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xFFFFFFFFL;
+
+		// Un servent sin "LF" ve el mayor tamano que cabe
+		assertEquals(GnutellaConstants.MAX_HIT_SIZE, sizeField);
+		assertEquals(descriptor.length - GnutellaConstants.HEADER_LENGTH,
+				ByteBuffer.wrap(descriptor, GnutellaConstants.HEADER_LENGTH
+						- GnutellaConstants.PLL_LENGTH,
+						GnutellaConstants.PLL_LENGTH).getInt());
+	}
+
+	@Test
+	public void reencodedHitKeepsTheSizes() throws Exception {
+		long[] size = { 7L << 32, 42 };
+		QueryHitMessage received = decode(hit(size).toByteArray());
+		QueryHitMessage forwarded = decode(new QueryHitMessage(
+				IdGenerator.getIdMessage(), received).toByteArray());
+
+		assertArrayEquals(size, forwarded.getFileSize());
+	}
+}
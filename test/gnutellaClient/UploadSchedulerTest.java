@@ -0,0 +1,187 @@
+package gnutellaClient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the order in which the UploadScheduler gives its slots and the
+ * limits per host, with connections that only record the answers they get.
+ *
+ * @author Ismael Fernandez
+ * @author Miguel Vilchis
+ *
+ */
+public class UploadSchedulerTest {
+
+	/**
+	 * Connection of a requester that records the answers of the scheduler
+	 * instead of writing them
+	 */
+	private static class Requester extends ServentThread {
+		private ArrayList<String> accepted;
+		private int position;
+		private boolean denied;
+
+		private Requester(InetSocketAddress key, ArrayList<String> accepted) {
+			super(new Socket(), null, key, null, new Metrics(), null, null);
+			this.accepted = accepted;
+		}
+
+		@Override
+		public boolean acceptUpload() {
+			accepted.add(String.valueOf(getKey()));
+			return true;
+		}
+
+		@Override
+		public boolean queueUpload(int position) {
+			this.position = position;
+			return true;
+		}
+
+		@Override
+		public void denyUpload() {
+			denied = true;
+			close();
+		}
+
+		@Override
+		public void run() {
+			// La subida no se envia
+		}
+	}
+
+	private ConnectionExecutor executor;
+	private UploadScheduler scheduler;
+	private ArrayList<String> accepted;
+
+	@Before
+	public void setUp() {
+		executor = new ConnectionExecutor(GnutellaConstants.PLATFORM_THREADS,
+				0);
+		scheduler = new UploadScheduler(
+				new ConcurrentHashMap<InetSocketAddress, ServentThread>(),
+				executor, new Metrics());
+		accepted = new ArrayList<String>();
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.close();
+		executor.shutdown();
+	}
+
+	private static InetSocketAddress key(int host, int port)
+			throws UnknownHostException {
+		return new InetSocketAddress(InetAddress.getByAddress(new byte[] {
+				10, 0, 0, (byte) host }), port);
+	}
+
+	private Requester offer(int host, int port) throws UnknownHostException {
+		InetSocketAddress key = key(host, port);
+		Requester r = new Requester(key, accepted);
+		scheduler.offer(key, r);
+		return r;
+	}
+
+	/**
+	 * Takes every slot with uploads of hosts 100 and up
+	 */
+	private ArrayList<Requester> fillSlots() throws UnknownHostException {
+		ArrayList<Requester> active = new ArrayList<Requester>();
+		for (int i = 0; i < GnutellaConstants.MAX_UPLOADS; i++) {
+			active.add(offer(100 + i / GnutellaConstants.MAX_UPLOADS_PER_HOST,
+					1000 + i));
+		}
+		assertEquals(GnutellaConstants.MAX_UPLOADS, scheduler.getActiveUploads());
+		return active;
+	}
+
+	@Test
+	public void queuedRequestersAreToldTheirRoundRobinPosition()
+			throws UnknownHostException {
+		fillSlots();
+		Requester a1 = offer(1, 1);
+		Requester a2 = offer(1, 2);
+		Requester a3 = offer(1, 3);
+		Requester b1 = offer(2, 1);
+		Requester b2 = offer(2, 2);
+		Requester c1 = offer(3, 1);
+
+		assertEquals(6, scheduler.getQueuedUploads());
+		assertEquals(1, a1.position);
+		assertEquals(2, b1.position);
+		assertEquals(3, c1.position);
+		assertEquals(4, a2.position);
+		assertEquals(5, b2.position);
+		assertEquals(6, a3.position);
+	}
+
+	@Test
+	public void freedSlotsAreGivenRoundRobinBetweenHosts()
+			throws UnknownHostException {
+		ArrayList<Requester> active = fillSlots();
+		accepted.clear();
+		offer(1, 1);
+		offer(1, 2);
+		offer(1, 3);
+		offer(2, 1);
+		offer(3, 1);
+
+		for (int i = 0; i < 5; i++) {
+			active.get(i).close();
+		}
+
+		ArrayList<String> expected = new ArrayList<String>();
+		expected.add(String.valueOf(key(1, 1)));
+		expected.add(String.valueOf(key(2, 1)));
+		expected.add(String.valueOf(key(3, 1)));
+		expected.add(String.valueOf(key(1, 2)));
+		// El host 1 ya tiene MAX_UPLOADS_PER_HOST lugares
+		assertEquals(expected, accepted);
+		assertEquals(1, scheduler.getQueuedUploads());
+		assertEquals(GnutellaConstants.MAX_UPLOADS - 1,
+				scheduler.getActiveUploads());
+	}
+
+	@Test
+	public void aHostDoesNotTakeMoreThanItsSlots() throws UnknownHostException {
+		for (int i = 0; i < GnutellaConstants.MAX_UPLOADS_PER_HOST; i++) {
+			offer(1, i);
+		}
+		Requester extra = offer(1, 99);
+
+		assertEquals(GnutellaConstants.MAX_UPLOADS_PER_HOST,
+				scheduler.getActiveUploads());
+		assertEquals(1, extra.position);
+
+		// Otro host entra aunque el primero espere
+		offer(2, 1);
+		assertEquals(GnutellaConstants.MAX_UPLOADS_PER_HOST + 1,
+				scheduler.getActiveUploads());
+	}
+
+	@Test
+	public void aHostCanNotQueueMoreThanItsLimit() throws UnknownHostException {
+		fillSlots();
+		for (int i = 0; i < GnutellaConstants.MAX_QUEUED_PER_HOST; i++) {
+			offer(1, i);
+		}
+		Requester extra = offer(1, 99);
+
+		assertTrue(extra.denied);
+		assertEquals(GnutellaConstants.MAX_QUEUED_PER_HOST,
+				scheduler.getQueuedUploads());
+	}
+}